@@ -0,0 +1,22 @@
+package io.cloudnative.teamcity;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs benchmarks selected by JMH command line options, always with the GC profiler,
+ * so that allocation rate ("gc.alloc.rate.norm", bytes per operation) is reported next to throughput.
+ */
+public final class Benchmarks {
+
+  private Benchmarks() {}
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).
+                                    addProfiler(GCProfiler.class).
+                                    build()).run();
+  }
+}
@@ -0,0 +1,68 @@
+package io.cloudnative.teamcity;
+
+import jetbrains.buildServer.serverSide.SBuild;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * POST of a finished build payload (10, 1k and 50k artifacts) to an in-process HTTP sink over pooled connections,
+ * uncompressed and gzip-ed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeliveryBenchmark {
+
+  @Param({ "10", "1000", "50000" })
+  int artifacts;
+
+  @Param({ "none", "gzip" })
+  String compression;
+
+  HttpSink           sink;
+  WebhooksHttpClient client;
+  WebhooksDispatcher dispatcher;
+  EncodedPayload     uncompressed;
+  EncodedPayload     payload;
+
+
+  @Setup
+  public void setUp() throws IOException {
+    sink       = new HttpSink(0, 4);
+    client     = new WebhooksHttpClient();
+    dispatcher = new WebhooksDispatcher(new WebhooksOutbox(Stubs.serverPaths()), new WebhooksMetrics());
+    WebhooksListener listener = Stubs.listener(new WebhooksSettings(Stubs.serverPaths()), dispatcher);
+    SBuild build = Stubs.build(1, Stubs.artifactsDirectory(artifacts));
+    uncompressed = WebhookPayloadWriter.write(listener.buildPayload(build, "success", build.getStartDate(), build.getFinishDate()));
+    payload      = compress();
+  }
+
+
+  @TearDown
+  public void tearDown(){
+    client.shutdown();
+    dispatcher.shutdown();
+    sink.stop();
+  }
+
+
+  @Benchmark
+  @Threads(4)
+  public int post() throws IOException {
+    return client.post(sink.url(), payload, "application/json").getStatusCode();
+  }
+
+
+  /**
+   * Compression of the uncompressed payload, paid by the dispatching thread for compressed webhooks.
+   */
+  @Benchmark
+  public EncodedPayload compress(){
+    return uncompressed.compress(WebhookEndpoint.Compression.parse(compression), 0);
+  }
+}
@@ -0,0 +1,138 @@
+package io.cloudnative.teamcity;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * In-process webhook receiver: reads payloads POST-ed to it and responds with "200 OK" after "latency" ms.
+ * Faults can be injected: "errorRate" of requests are answered with "503 Service Unavailable"
+ * and "stallRate" of requests are answered after "stall" ms only.
+ */
+final class HttpSink {
+
+  /**
+   * Receives (decompressed) bodies of requests answered with "200 OK".
+   */
+  interface Receiver {
+    void received(byte[] body);
+  }
+
+  private final HttpServer      server;
+  private final ExecutorService executor;
+  private final AtomicLong      requests = new AtomicLong();
+  private final AtomicLong      errors   = new AtomicLong();
+  private final AtomicLong      stalls   = new AtomicLong();
+  private final AtomicLong      bytes    = new AtomicLong();
+
+
+  HttpSink(long latency, int threads) throws IOException {
+    this(latency, 0, 0, 0, threads, null);
+  }
+
+
+  HttpSink(final long latency, final double errorRate, final double stallRate, final long stall,
+           int threads, final Receiver receiver) throws IOException {
+    server   = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      final Random random = new Random();
+
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          requests.incrementAndGet();
+          byte[] body = read(exchange.getRequestBody());
+          bytes.addAndGet(body.length);
+
+          double dice;
+          synchronized (random) { dice = random.nextDouble(); }
+
+          if (dice < errorRate) {
+            errors.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            return;
+          }
+
+          if (dice < errorRate + stallRate) {
+            stalls.incrementAndGet();
+            Thread.sleep(stall);
+          }
+          else if (latency > 0) {
+            Thread.sleep(latency);
+          }
+
+          exchange.sendResponseHeaders(200, -1);
+          if (receiver != null) {
+            receiver.received(decode(body, exchange.getRequestHeaders().getFirst("Content-Encoding")));
+          }
+        }
+        catch (InterruptedException ignored) {
+          Thread.currentThread().interrupt();
+        }
+        finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+
+  String url(){
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/webhook";
+  }
+
+
+  long requests(){
+    return requests.get();
+  }
+
+
+  long errors(){
+    return errors.get();
+  }
+
+
+  long stalls(){
+    return stalls.get();
+  }
+
+
+  long bytes(){
+    return bytes.get();
+  }
+
+
+  void stop(){
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+
+  private static byte[] decode(byte[] body, String contentEncoding) throws IOException {
+    if ("gzip".equalsIgnoreCase(contentEncoding))    { return read(new GZIPInputStream(new ByteArrayInputStream(body))); }
+    if ("deflate".equalsIgnoreCase(contentEncoding)) { return read(new InflaterInputStream(new ByteArrayInputStream(body))); }
+    return body;
+  }
+
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) >= 0; ) { out.write(buffer, 0, read); }
+    return out.toByteArray();
+  }
+}
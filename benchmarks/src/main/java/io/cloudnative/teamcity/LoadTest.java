@@ -0,0 +1,254 @@
+package io.cloudnative.teamcity;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Load test simulating a build farm: caller threads drive {@link WebhooksListener} with queued, started and
+ * finished (or interrupted) events of synthetic builds across many projects, every project has a webhook
+ * pointing to an in-process {@link HttpSink} which may inject latency, errors and stalls.
+ *
+ * Reports events per second, blocking time of the calling threads and end-to-end latency (from the listener
+ * callback until the payload is received). Options are system properties, "teamcity.webhooks.*" properties
+ * configure the plugin as usual:
+ *
+ *   java -Dloadtest.builds=5000 -Dloadtest.sink.errorRate=0.01 -Dteamcity.webhooks.delivery.workers=8 \
+ *        -cp benchmarks/target/benchmarks.jar io.cloudnative.teamcity.LoadTest
+ */
+public final class LoadTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int     BUILDS           = Integer.getInteger("loadtest.builds", 2000);
+  private static final int     PROJECTS         = Integer.getInteger("loadtest.projects", 100);
+  private static final int     THREADS          = Integer.getInteger("loadtest.threads", 8);
+  private static final int     ARTIFACTS        = Integer.getInteger("loadtest.artifacts", 100);
+  private static final double  FAILED_RATE      = Double.parseDouble(System.getProperty("loadtest.failedRate", "0.2"));
+  private static final double  INTERRUPTED_RATE = Double.parseDouble(System.getProperty("loadtest.interruptedRate", "0.05"));
+  private static final String  COMPRESSION      = System.getProperty("loadtest.compression", "none");
+  private static final boolean BATCH            = Boolean.getBoolean("loadtest.batch");
+  private static final boolean COALESCE         = (! "false".equals(System.getProperty("loadtest.coalesce")));
+  private static final String  SUBSCRIPTION     = System.getProperty("loadtest.subscription", "");
+  private static final String  RATE_LIMIT       = System.getProperty("loadtest.rateLimit", "");
+  private static final String  BURST            = System.getProperty("loadtest.burst", "");
+  private static final long    SINK_LATENCY     = Long.getLong("loadtest.sink.latency", 20);
+  private static final double  SINK_ERROR_RATE  = Double.parseDouble(System.getProperty("loadtest.sink.errorRate", "0"));
+  private static final double  SINK_STALL_RATE  = Double.parseDouble(System.getProperty("loadtest.sink.stallRate", "0"));
+  private static final long    SINK_STALL       = Long.getLong("loadtest.sink.stall", 15000);
+  private static final int     SINK_THREADS     = Integer.getInteger("loadtest.sink.threads", 32);
+  private static final long    QUIET_PERIOD     = Long.getLong("loadtest.quietPeriod", 3000);
+  private static final long    DRAIN_TIMEOUT    = Long.getLong("loadtest.drainTimeout", 120000);
+
+  /**
+   * Time (System.nanoTime()) events were passed to the listener, by "full_url status" of their payloads.
+   */
+  private final ConcurrentMap<String, Long> sent      = new ConcurrentHashMap<String, Long>();
+  private final Samples                     blocking  = new Samples();
+  private final Samples                     latencies = new Samples();
+  private final AtomicLong                  events    = new AtomicLong();
+  private final AtomicLong                  nextBuild = new AtomicLong();
+  private volatile long                     lastReceived;
+
+  private LoadTest() {}
+
+
+  public static void main(String[] args) throws Exception {
+    new LoadTest().run();
+    System.exit(0);
+  }
+
+
+  private void run() throws Exception {
+    final HttpSink sink = new HttpSink(SINK_LATENCY, SINK_ERROR_RATE, SINK_STALL_RATE, SINK_STALL, SINK_THREADS,
+                                       new HttpSink.Receiver() {
+      public void received(byte[] body) { receive(body); }
+    });
+
+    final File               artifactsDirectory = Stubs.artifactsDirectory(ARTIFACTS);
+    final WebhooksSettings   settings           = new WebhooksSettings(Stubs.serverPaths());
+    final WebhooksDispatcher dispatcher         = new WebhooksDispatcher(new WebhooksOutbox(Stubs.serverPaths()),
+                                                                         new WebhooksMetrics());
+    final WebhooksListener   listener           = Stubs.listener(settings, dispatcher);
+
+    for (int j = 0; j < PROJECTS; j++) {
+      settings.addEndpoint(project(j), WebhookEndpoint.of(sink.url(), WebhookEndpoint.Compression.parse(COMPRESSION),
+                                                          BATCH, COALESCE, WebhookSubscription.parse(SUBSCRIPTION),
+                                                          WebhookEndpoint.parseRateLimit(RATE_LIMIT), WebhookEndpoint.parseBurst(BURST)));
+    }
+    dispatcher.start();
+
+    System.out.printf("%,d builds across %,d projects, %d caller threads, %,d artifacts per build%n",
+                      BUILDS, PROJECTS, THREADS, ARTIFACTS);
+    System.out.printf("Sink: %d ms latency, %.2f%% errors, %.2f%% stalls of %d ms; compression '%s', batch %s, coalesce %s, subscription '%s', rate limit '%s', burst '%s'%n",
+                      SINK_LATENCY, SINK_ERROR_RATE * 100, SINK_STALL_RATE * 100, SINK_STALL, COMPRESSION, BATCH, COALESCE,
+                      WebhookSubscription.parse(SUBSCRIPTION), RATE_LIMIT, BURST);
+
+    final long      started = System.nanoTime();
+    ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+    for (int j = 0; j < THREADS; j++) {
+      callers.execute(new Runnable() {
+        public void run() { simulate(listener, artifactsDirectory); }
+      });
+    }
+    callers.shutdown();
+    callers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    final long dispatched = System.nanoTime();
+
+    drain(dispatcher);
+
+    double dispatchSeconds = (dispatched - started) / 1e9;
+    double deliverySeconds = (Math.max(lastReceived, dispatched) - started) / 1e9;
+
+    System.out.printf("%nDispatched: %,d events in %.2f s, %,.0f events/s%n",
+                      events.get(), dispatchSeconds, events.get() / dispatchSeconds);
+    System.out.printf("Caller blocking (ms): %s%n", blocking);
+    System.out.printf("Delivered:  %,d events in %.2f s, %,.0f events/s; %,d coalesced, %,d dropped, %,d parked, %,d throttled, %,d pending%n",
+                      latencies.size(), deliverySeconds, latencies.size() / deliverySeconds,
+                      dispatcher.coalescedCount(), dispatcher.droppedCount(), dispatcher.parkedCount(),
+                      dispatcher.throttledCount(), dispatcher.pendingCount());
+    System.out.printf("End-to-end latency (ms): %s%n", latencies);
+    System.out.printf("Sink: %,d requests, %,d errors, %,d stalls, %,d bytes%n",
+                      sink.requests(), sink.errors(), sink.stalls(), sink.bytes());
+
+    dispatcher.shutdown();
+    sink.stop();
+  }
+
+
+  /**
+   * Runs builds through their lifecycle until all builds are taken by the callers.
+   */
+  private void simulate(WebhooksListener listener, File artifactsDirectory){
+    Random random = new Random();
+    long   buildId;
+    while ((buildId = nextBuild.incrementAndGet()) <= BUILDS) {
+      String        projectId = project((int) (buildId % PROJECTS));
+      String        buildUrl  = String.format("%s/viewLog.html?buildTypeId=%s_Build&buildId=%s", Stubs.ROOT_URL, projectId, buildId);
+      Status        status    = (random.nextDouble() < FAILED_RATE) ? Status.FAILURE : Status.NORMAL;
+      SRunningBuild build     = Stubs.build(buildId, projectId, artifactsDirectory, status);
+
+      long time = send(String.format("%s/viewQueued.html?itemId=%d", Stubs.ROOT_URL, buildId), "queued");
+      listener.buildTypeAddedToQueue(Stubs.queuedBuild(buildId, projectId));
+      blocked(time);
+
+      time = send(buildUrl, "pending");
+      listener.changesLoaded(build);
+      blocked(time);
+
+      if (random.nextDouble() < INTERRUPTED_RATE) {
+        time = send(buildUrl, "error");
+        listener.buildInterrupted(build);
+      }
+      else {
+        time = send(buildUrl, status.getText().toLowerCase());
+        listener.buildFinished(build);
+      }
+      blocked(time);
+    }
+  }
+
+
+  private long send(String fullUrl, String status){
+    long time = System.nanoTime();
+    sent.put(fullUrl + " " + status, time);
+    events.incrementAndGet();
+    return time;
+  }
+
+
+  private void blocked(long time){
+    blocking.add(System.nanoTime() - time);
+  }
+
+
+  /**
+   * Matches payloads (a single one or a batch) received by the sink with events sent.
+   */
+  private void receive(byte[] body){
+    long        time    = System.nanoTime();
+    JsonElement element = new JsonParser().parse(new String(body, UTF8));
+    Iterable<JsonElement> payloads = element.isJsonArray() ? element.getAsJsonArray() :
+                                                             Collections.singletonList(element);
+    for (JsonElement payload : payloads){
+      JsonObject build  = payload.getAsJsonObject().getAsJsonObject("build");
+      Long       sentAt = sent.remove(build.get("full_url").getAsString() + " " + build.get("status").getAsString());
+      if (sentAt != null) {
+        latencies.add(time - sentAt);
+      }
+    }
+    lastReceived = time;
+  }
+
+
+  /**
+   * Waits until the dispatcher has nothing queued or pending for a quiet period (longer than a batch window),
+   * or until the drain timeout.
+   */
+  private static void drain(WebhooksDispatcher dispatcher) throws InterruptedException {
+    long deadline  = System.currentTimeMillis() + DRAIN_TIMEOUT;
+    long idleSince = 0;
+    while (System.currentTimeMillis() < deadline) {
+      if ((dispatcher.queueSize() == 0) && (dispatcher.pendingCount() == 0)) {
+        if (idleSince == 0) { idleSince = System.currentTimeMillis(); }
+        if (System.currentTimeMillis() - idleSince >= QUIET_PERIOD) { return; }
+      }
+      else {
+        idleSince = 0;
+      }
+      Thread.sleep(100);
+    }
+    System.out.printf("Deliveries not drained in %,d ms%n", DRAIN_TIMEOUT);
+  }
+
+
+  private static String project(int j){
+    return String.format("Project%04d", j);
+  }
+
+
+  /**
+   * Durations (ns) recorded, reported in ms.
+   */
+  private static final class Samples {
+    private long[] samples = new long[1024];
+    private int    size;
+
+    synchronized void add(long sample){
+      if (size == samples.length) { samples = Arrays.copyOf(samples, size * 2); }
+      samples[size++] = sample;
+    }
+
+    synchronized int size(){
+      return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+      if (size == 0) { return "no samples"; }
+      long[] sorted = Arrays.copyOf(samples, size);
+      Arrays.sort(sorted);
+      return String.format("p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                           percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                           sorted[size - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile){
+      return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package io.cloudnative.teamcity;
+
+import com.google.gson.Gson;
+import jetbrains.buildServer.serverSide.SBuild;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Payload construction and serialization of a finished build with 10, 1k and 50k artifacts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Param({ "10", "1000", "50000" })
+  int artifacts;
+
+  WebhooksListener listener;
+  WebhooksDispatcher dispatcher;
+  SBuild           build;
+  WebhookPayload   payload;
+  String           json;
+  Gson             gson = new Gson();
+
+
+  @Setup
+  public void setUp() throws IOException {
+    File artifactsDirectory = Stubs.artifactsDirectory(artifacts);
+    dispatcher = new WebhooksDispatcher(new WebhooksOutbox(Stubs.serverPaths()), new WebhooksMetrics());
+    listener   = Stubs.listener(new WebhooksSettings(Stubs.serverPaths()), dispatcher);
+    build      = Stubs.build(1, artifactsDirectory);
+    payload    = listener.buildPayload(build, "success", build.getStartDate(), build.getFinishDate());
+    json       = gson.toJson(payload);
+  }
+
+
+  @TearDown
+  public void tearDown(){
+    dispatcher.shutdown();
+  }
+
+
+  /**
+   * Build's later event: payload fragments are cached by the setup.
+   */
+  @Benchmark
+  public WebhookPayload buildPayload(){
+    return listener.buildPayload(build, "success", build.getStartDate(), build.getFinishDate());
+  }
+
+
+  @Benchmark
+  public PayloadArtifacts artifacts(){
+    return listener.artifacts(build);
+  }
+
+
+  /**
+   * Streaming writer used by the listener.
+   */
+  @Benchmark
+  public EncodedPayload write(){
+    return WebhookPayloadWriter.write(payload);
+  }
+
+
+  /**
+   * Gson serialization, as a baseline for {@link #write()}.
+   */
+  @Benchmark
+  public byte[] gsonToJson(){
+    return gson.toJson(payload).getBytes(UTF8);
+  }
+
+
+  @Benchmark
+  public Object gsonFromJson(){
+    return gson.fromJson(json, Map.class);
+  }
+
+
+  @Benchmark
+  public Object gsonRoundTrip(){
+    return gson.fromJson(gson.toJson(payload), Map.class);
+  }
+}
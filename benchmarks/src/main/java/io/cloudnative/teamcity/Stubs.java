@@ -0,0 +1,203 @@
+package io.cloudnative.teamcity;
+
+import jetbrains.buildServer.StatusDescriptor;
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.parameters.ParametersProvider;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * TeamCity API stubs: dynamic proxies answering methods by name from a map,
+ * and with empty values (null, 0, false, empty collections) otherwise.
+ */
+final class Stubs {
+
+  static final String ROOT_URL        = "http://127.0.0.1:8111";
+  static final String PROJECT_ID      = "Echo";
+  static final String ROOT_PROJECT_ID = "_Root";
+
+  private Stubs() {}
+
+
+  /**
+   * Answers a method call depending on its arguments.
+   */
+  interface Answer {
+    Object answer(Object[] args);
+  }
+
+
+  /**
+   * Listener with S3 artifacts disabled (no S3 settings in the data directory).
+   */
+  static WebhooksListener listener(WebhooksSettings settings, WebhooksDispatcher dispatcher) throws IOException {
+    return new WebhooksListener(new WebhooksIndex(settings, buildServer(), projectManager()), buildServer(),
+                                artifactsGuard(), dispatcher, new WebhooksS3Resolver(serverPaths()),
+                                new WebhooksS3Lister(), new WebhooksManifest(artifactsGuard()), new WebhooksPayloadCache(),
+                                new WebhooksChanges(), new WebhooksMetrics(), new WebhooksPayloadLog());
+  }
+
+
+  /**
+   * Every project is a child of the root project.
+   */
+  static ProjectManager projectManager(){
+    final SProject root = project(ROOT_PROJECT_ID, null);
+    return stub(ProjectManager.class, answers("findProjectByExternalId", new Answer() {
+      public Object answer(Object[] args) {
+        return ROOT_PROJECT_ID.equals(args[0]) ? root : project((String) args[0], root);
+      }
+    }));
+  }
+
+
+  static SProject project(String projectId, SProject parent){
+    return stub(SProject.class, answers("getExternalId",    projectId,
+                                        "getFullName",      projectId,
+                                        "getParentProject", parent));
+  }
+
+
+  static SBuildServer buildServer(){
+    return stub(SBuildServer.class, answers("getRootUrl", ROOT_URL));
+  }
+
+
+  static ArtifactsGuard artifactsGuard(){
+    return stub(ArtifactsGuard.class, answers());
+  }
+
+
+  /**
+   * Successful running build of "Echo :: Build" configuration with artifacts directory specified.
+   */
+  static SRunningBuild build(long buildId, File artifactsDirectory){
+    return build(buildId, PROJECT_ID, artifactsDirectory, Status.NORMAL);
+  }
+
+
+  /**
+   * Running build of "<projectId> :: Build" configuration, build promotion has the same id as the build.
+   */
+  static SRunningBuild build(long buildId, String projectId, File artifactsDirectory, Status status){
+    Map<String, Object> answers = answers(
+      "getBuildId",             buildId,
+      "getBuildNumber",         String.valueOf(buildId),
+      "getFullName",            projectId + " :: Build",
+      "getProjectExternalId",   projectId,
+      "getStartDate",           new Date(),
+      "getFinishDate",          new Date(),
+      "getStatusDescriptor",    new StatusDescriptor(status, status.getText()),
+      "getArtifactsDirectory",  artifactsDirectory,
+      "getBuildType",           buildType(projectId),
+      "getBuildPromotion",      buildPromotion(buildId),
+      "getParametersProvider",  stub(ParametersProvider.class, answers("get", "2015-06-01T12:00:00Z")));
+    return stub(SRunningBuild.class, answers);
+  }
+
+
+  static SQueuedBuild queuedBuild(long promotionId, String projectId){
+    return stub(SQueuedBuild.class, answers("getBuildPromotion", buildPromotion(promotionId),
+                                            "getBuildType",      buildType(projectId)));
+  }
+
+
+  static BuildPromotion buildPromotion(long promotionId){
+    return stub(BuildPromotion.class, answers("getId", promotionId));
+  }
+
+
+  static SBuildType buildType(String projectId){
+    return stub(SBuildType.class, answers("getExternalId",        projectId + "_Build",
+                                          "getFullName",          projectId + " :: Build",
+                                          "getProjectExternalId", projectId));
+  }
+
+
+  /**
+   * Temporary directory with number of artifact files specified, deleted on exit.
+   */
+  static File artifactsDirectory(int artifacts) throws IOException {
+    File directory = temporaryDirectory("artifacts");
+    for (int j = 0; j < artifacts; j++) {
+      File artifact = new File(directory, String.format("echo-service-0.0.1-%05d.jar", j));
+      if (! artifact.createNewFile()) { throw new IOException("Failed to create " + artifact); }
+      artifact.deleteOnExit();
+    }
+    return directory;
+  }
+
+
+  static ServerPaths serverPaths() throws IOException {
+    return new ServerPaths(temporaryDirectory("data").getAbsolutePath());
+  }
+
+
+  static File temporaryDirectory(String prefix) throws IOException {
+    File directory = File.createTempFile("webhooks-" + prefix, "");
+    if (! (directory.delete() && directory.mkdirs())) { throw new IOException("Failed to create " + directory); }
+    directory.deleteOnExit();
+    return directory;
+  }
+
+
+  static Map<String, Object> answers(Object ... namesAndValues){
+    Map<String, Object> answers = new HashMap<String, Object>();
+    for (int j = 0; j < namesAndValues.length; j += 2) {
+      answers.put((String) namesAndValues[j], namesAndValues[j + 1]);
+    }
+    return answers;
+  }
+
+
+  static <T> T stub(final Class<T> type, final Map<String, Object> answers){
+    return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name   = method.getName();
+        Object answer = answers.get(name);
+        if (answer instanceof Answer)                          { return ((Answer) answer).answer(args); }
+        if (answers.containsKey(name))                         { return answer; }
+        if ("toString".equals(name) && (args == null))         { return type.getSimpleName() + answers; }
+        if ("hashCode".equals(name) && (args == null))         { return System.identityHashCode(proxy); }
+        if ("equals".equals(name) && (args != null) && (args.length == 1)) { return proxy == args[0]; }
+        return empty(method.getReturnType());
+      }
+    }));
+  }
+
+
+  private static Object empty(Class<?> type){
+    if (type == boolean.class)             { return false; }
+    if (type == long.class)                { return 0L; }
+    if (type == int.class)                 { return 0; }
+    if (type == short.class)               { return (short) 0; }
+    if (type == byte.class)                { return (byte) 0; }
+    if (type == double.class)              { return 0.0; }
+    if (type == float.class)               { return 0.0f; }
+    if (type == char.class)                { return (char) 0; }
+    if (! type.isInterface())              { return null; }
+    if (type.isAssignableFrom(List.class)) { return Collections.emptyList(); }
+    if (type.isAssignableFrom(Set.class))  { return Collections.emptySet(); }
+    if (type.isAssignableFrom(Map.class))  { return Collections.emptyMap(); }
+    return null;
+  }
+}
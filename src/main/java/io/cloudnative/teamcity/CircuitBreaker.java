@@ -0,0 +1,191 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import com.google.common.base.Ticker;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Circuit breaker of a single webhook URL, so that a dead receiver stops costing a POST timeout per event.
+ *
+ * CLOSED: requests go through, outcomes of the last "teamcity.webhooks.breaker.window" requests are kept.
+ * A request fails if it got a network error or a retryable response, or took longer than
+ * "teamcity.webhooks.breaker.slowCall" ms. Once at least "teamcity.webhooks.breaker.minCalls" outcomes are known
+ * and "teamcity.webhooks.breaker.failureRate" percent of them are failures, the breaker opens.
+ *
+ * OPEN: no requests go through for "teamcity.webhooks.breaker.openDuration" ms, then the breaker is HALF_OPEN.
+ *
+ * HALF_OPEN: a single probe request goes through, its success closes the breaker and its failure opens it again.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+class CircuitBreaker {
+
+  enum State { CLOSED, OPEN, HALF_OPEN }
+
+  final int                 failureThreshold;
+  final long                slowCall;
+  final int                 minCalls;
+  final long                openDuration;
+  final Ticker              ticker;
+
+  /**
+   * Ring of last outcomes, true for failures.
+   */
+  final boolean[]           outcomes;
+  int                       calls;
+  int                       next;
+  int                       failures;
+
+  State                     state = State.CLOSED;
+  long                      openedAt;
+  boolean                   probing;
+  long                      trips;
+
+
+  CircuitBreaker() {
+    this(Ticker.systemTicker());
+  }
+
+
+  /**
+   * @param ticker time source of the open duration
+   */
+  CircuitBreaker(@NonNull Ticker ticker) {
+    this.ticker      = ticker;
+    failureThreshold = Math.min(100, Math.max(1, TeamCityProperties.getInteger(BREAKER_FAILURE_RATE_PROPERTY, BREAKER_FAILURE_RATE)));
+    slowCall         = Math.max(1, TeamCityProperties.getLong(BREAKER_SLOW_CALL_PROPERTY, BREAKER_SLOW_CALL));
+    openDuration     = Math.max(1, TeamCityProperties.getLong(BREAKER_OPEN_DURATION_PROPERTY, BREAKER_OPEN_DURATION));
+    outcomes         = new boolean[Math.max(1, TeamCityProperties.getInteger(BREAKER_WINDOW_PROPERTY, BREAKER_WINDOW))];
+    minCalls         = Math.min(outcomes.length, Math.max(1, TeamCityProperties.getInteger(BREAKER_MIN_CALLS_PROPERTY, BREAKER_MIN_CALLS)));
+  }
+
+
+  /**
+   * Determines if a request can be made now, a positive answer in HALF_OPEN state makes the caller the probe
+   * which has to report its outcome with {@link #record}.
+   */
+  synchronized boolean allow(){
+    switch (state) {
+      case CLOSED:
+        return true;
+
+      case OPEN:
+        if (now() - openedAt < openDuration) { return false; }
+        state   = State.HALF_OPEN;
+        probing = true;
+        return true;
+
+      default:
+        if (probing) { return false; }
+        probing = true;
+        return true;
+    }
+  }
+
+
+  /**
+   * Gives up a request allowed without making it, so that a probe given up doesn't hold the HALF_OPEN breaker.
+   */
+  synchronized void release(){
+    if (state == State.HALF_OPEN) { probing = false; }
+  }
+
+
+  /**
+   * Records outcome of a request allowed.
+   *
+   * @param failed whether request has failed (network error or retryable response)
+   * @param latency request duration, in ms
+   */
+  synchronized void record(boolean failed, long latency){
+    val failure = failed || (latency > slowCall);
+
+    if (state == State.OPEN) {
+      // Request was allowed before the breaker opened
+      return;
+    }
+
+    if (state == State.HALF_OPEN) {
+      probing = false;
+      if (failure) { open(); }
+      else         { close(); }
+      return;
+    }
+
+    if (calls == outcomes.length) {
+      if (outcomes[next]) { failures--; }
+    }
+    else {
+      calls++;
+    }
+    outcomes[next] = failure;
+    if (failure) { failures++; }
+    next = (next + 1) % outcomes.length;
+
+    if ((calls >= minCalls) && (failures * 100 >= failureThreshold * calls)) {
+      open();
+    }
+  }
+
+
+  /**
+   * How long (ms) a request not allowed now should wait before it asks again.
+   */
+  synchronized long retryDelay(){
+    return (state == State.OPEN) ? Math.max(0, openDuration - (now() - openedAt)) : 0;
+  }
+
+
+  synchronized State state(){
+    return state;
+  }
+
+
+  /**
+   * Failure rate of the last requests, in percents.
+   */
+  synchronized int failureRate(){
+    return (calls == 0) ? 0 : (failures * 100) / calls;
+  }
+
+
+  /**
+   * Number of times the breaker has opened.
+   */
+  synchronized long trips(){
+    return trips;
+  }
+
+
+  @Override
+  public synchronized String toString() {
+    return (state == State.CLOSED) ? "%s, %s%% failed".f(state, failureRate()) : state.toString();
+  }
+
+
+  private void open(){
+    state    = State.OPEN;
+    openedAt = now();
+    trips++;
+  }
+
+
+  private long now(){
+    return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+  }
+
+
+  private void close(){
+    state    = State.CLOSED;
+    calls    = 0;
+    next     = 0;
+    failures = 0;
+  }
+}
@@ -0,0 +1,187 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Payload encoded as compact UTF-8 JSON, encoded once per event and shared by deliveries to all its webhooks.
+ *
+ * Bytes are kept in a heap ByteBuffer that is never modified and never copied on the way out: every consumer
+ * gets its own {@link #buffer()} view of it and writes it to a channel directly. Payloads are not kept in direct
+ * buffers: they live as long as their slowest delivery, and queued payloads of unresponsive webhooks would
+ * exhaust direct memory, which is much smaller than the heap and is only reclaimed by full GC.
+ *
+ * Compressed payload is a separate EncodedPayload with its "Content-Encoding", see {@link #compress}.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+final class EncodedPayload {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  ByteBuffer buffer;
+  long       crc;
+  String     contentEncoding;
+
+
+  private EncodedPayload(@NonNull ByteBuffer buffer, long crc, String contentEncoding) {
+    this.buffer          = buffer;
+    this.crc             = crc;
+    this.contentEncoding = contentEncoding;
+  }
+
+
+  /**
+   * Wraps bytes specified, they should not be modified afterwards.
+   */
+  static EncodedPayload of(@NonNull byte[] bytes, String contentEncoding){
+    return new EncodedPayload(ByteBuffer.wrap(bytes), crc(bytes, bytes.length), contentEncoding);
+  }
+
+
+  /**
+   * Copies "length" bytes of the array specified into a new payload (the only copy made on the payload path).
+   */
+  static EncodedPayload copyOf(@NonNull byte[] bytes, int length){
+    PayloadCounters.encoded();
+    return allocate(bytes, length, null);
+  }
+
+
+  /**
+   * Joins uncompressed payloads specified into a single JSON array payload.
+   */
+  static EncodedPayload array(@NonNull List<EncodedPayload> elements){
+    int length = 2 + Math.max(0, elements.size() - 1);
+    for (val element : elements){
+      if (element.contentEncoding != null) {
+        throw new IllegalArgumentException("Compressed payload can't be an array element");
+      }
+      length += element.size();
+    }
+
+    // Elements are copied once, straight into the array payload
+    val bytes = new byte[length];
+    int count = 0;
+    bytes[count++] = '[';
+    for (val element : elements){
+      if (count > 1) { bytes[count++] = ','; }
+      element.buffer().get(bytes, count, element.size());
+      count += element.size();
+    }
+    bytes[count] = ']';
+
+    PayloadCounters.allocated(length);
+    PayloadCounters.copied(length);
+    return new EncodedPayload(ByteBuffer.wrap(bytes), crc(bytes, length), null);
+  }
+
+
+  /**
+   * Compresses this payload, returns this payload if compression is not requested, if payload is smaller than
+   * "teamcity.webhooks.compression.threshold" bytes or if compressed bytes don't come out any smaller.
+   */
+  EncodedPayload compress(@NonNull WebhookEndpoint.Compression compression, int threshold){
+    if ((compression == WebhookEndpoint.Compression.NONE) || (contentEncoding != null) || (size() < threshold)) {
+      return this;
+    }
+
+    try {
+      val bytes = new Bytes(Math.max(256, size() / 4));
+      val out   = (compression == WebhookEndpoint.Compression.GZIP) ? new GZIPOutputStream(bytes, 8 * 1024) :
+                                                                     new DeflaterOutputStream(bytes);
+      writeTo(out);
+      out.close();
+      return (bytes.size() < size()) ? allocate(bytes.array(), bytes.size(), compression.getContentEncoding()) : this;
+    }
+    catch (IOException e) {
+      // Not expected from in-memory streams
+      throw new RuntimeException("Failed to compress payload with '%s'".f(compression.getName()), e);
+    }
+  }
+
+
+  /**
+   * A new view of payload bytes, positioned at the beginning. Shares the content, which should not be modified.
+   */
+  ByteBuffer buffer(){
+    return buffer.duplicate();
+  }
+
+
+  /**
+   * "Content-Encoding" of payload bytes, null if they are not compressed.
+   */
+  String contentEncoding(){
+    return contentEncoding;
+  }
+
+
+  int size(){
+    return buffer.limit();
+  }
+
+
+  /**
+   * CRC32 of payload bytes.
+   */
+  long crc(){
+    return crc;
+  }
+
+
+  /**
+   * Writes payload to the stream specified, for sinks that have no channel (compressing streams).
+   */
+  void writeTo(@NonNull OutputStream out) throws IOException {
+    out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+  }
+
+
+  @Override
+  public String toString() {
+    if (contentEncoding != null) {
+      return "<%s bytes, %s>".f(size(), contentEncoding);
+    }
+    return new String(buffer.array(), buffer.arrayOffset(), buffer.limit(), UTF8);
+  }
+
+
+  private static EncodedPayload allocate(@NonNull byte[] bytes, int length, String contentEncoding){
+    val buffer = ByteBuffer.allocate(length);
+    buffer.put(bytes, 0, length).flip();
+    PayloadCounters.allocated(length);
+    PayloadCounters.copied(length);
+    return new EncodedPayload(buffer, crc(bytes, length), contentEncoding);
+  }
+
+
+  private static long crc(@NonNull byte[] bytes, int length){
+    val crc = new CRC32();
+    crc.update(bytes, 0, length);
+    return crc.getValue();
+  }
+
+
+  /**
+   * Output buffer exposing its array, so that compressed bytes are copied only once, into the payload.
+   */
+  private static final class Bytes extends ByteArrayOutputStream {
+    Bytes(int size) { super(size); }
+
+    byte[] array(){ return buf; }
+  }
+}
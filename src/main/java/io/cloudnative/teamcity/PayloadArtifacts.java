@@ -0,0 +1,214 @@
+package io.cloudnative.teamcity;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import lombok.NonNull;
+import lombok.val;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Build's artifacts (archived in TeamCity and uploaded to S3), serialized as
+ * {'artifact.jar' => {'archive' => 'http://teamcity/artifact/url', 's3' => 'https://s3-artifact/url'}}
+ *
+ * Only artifact names (and S3 keys) are kept, URLs are written as a shared prefix followed by the name (or key),
+ * so no URL string or per-artifact map is created. At most "max" artifacts are kept, artifacts beyond that
+ * are counted only and the payload is marked as "artifacts_truncated".
+ *
+ * Written by {@link WebhookPayloadWriter}, and written and read by Gson with the same structure.
+ */
+@JsonAdapter(PayloadArtifacts.GsonAdapter.class)
+final class PayloadArtifacts {
+
+  /**
+   * Shared empty artifacts, adding to them has no effect.
+   */
+  static final PayloadArtifacts NONE = new PayloadArtifacts(null, null, 0);
+
+  /**
+   * Receives artifacts kept, see {@link #visit}.
+   */
+  interface Visitor {
+    /**
+     * @param name  artifact name
+     * @param s3Key S3 key of the artifact, null if it's not uploaded to S3
+     */
+    void visit(@NonNull String name, boolean archived, String s3Key);
+  }
+
+  private final String              archivePrefix;
+  private final String              s3Prefix;
+  private final int                 max;
+  private final Set<String>         archived = new LinkedHashSet<String>();
+  private final Map<String, String> s3Keys   = new LinkedHashMap<String, String>();
+  private int                       size;
+  private int                       skipped;
+
+
+  /**
+   * @param archivePrefix URL artifact names are appended to, null if artifacts archived in TeamCity are not reported
+   * @param s3Prefix      URL S3 keys are appended to, null if S3 artifacts are not reported
+   * @param max           maximal number of artifacts kept
+   */
+  PayloadArtifacts(String archivePrefix, String s3Prefix, int max) {
+    this.archivePrefix = archivePrefix;
+    this.s3Prefix      = s3Prefix;
+    this.max           = max;
+  }
+
+
+  String getArchivePrefix(){
+    return archivePrefix;
+  }
+
+
+  String getS3Prefix(){
+    return s3Prefix;
+  }
+
+
+  /**
+   * Adds artifact archived in TeamCity.
+   */
+  void addArchived(@NonNull String name){
+    if ((this == NONE) || archived.contains(name)) { return; }
+    if (! s3Keys.containsKey(name)) {
+      if (size == max) { skipped++; return; }
+      size++;
+    }
+    archived.add(name);
+  }
+
+
+  /**
+   * Adds artifact uploaded to S3, the last key wins for artifacts with the same name.
+   */
+  void addS3(@NonNull String name, @NonNull String key){
+    if (this == NONE) { return; }
+    if (! (s3Keys.containsKey(name) || archived.contains(name))) {
+      if (size == max) { skipped++; return; }
+      size++;
+    }
+    s3Keys.put(name, key);
+  }
+
+
+  int size(){
+    return size;
+  }
+
+
+  boolean isEmpty(){
+    return (size == 0);
+  }
+
+
+  /**
+   * Whether some of the artifacts were not kept.
+   */
+  boolean isTruncated(){
+    return (skipped > 0);
+  }
+
+
+  /**
+   * Visits artifacts archived in TeamCity first, then artifacts uploaded to S3 only, in the order they were added.
+   */
+  void visit(@NonNull Visitor visitor){
+    for (val name : archived){
+      visitor.visit(name, true, s3Keys.get(name));
+    }
+    for (val s3Key : s3Keys.entrySet()){
+      if (! archived.contains(s3Key.getKey())) {
+        visitor.visit(s3Key.getKey(), false, s3Key.getValue());
+      }
+    }
+  }
+
+
+  /**
+   * Same output as {@link WebhookPayloadWriter}, for payloads serialized with Gson.
+   */
+  static final class GsonAdapter extends TypeAdapter<PayloadArtifacts> {
+
+    @Override
+    public void write(JsonWriter out, PayloadArtifacts artifacts) throws IOException {
+      if (artifacts == null) { out.nullValue(); return; }
+
+      out.beginObject();
+      for (val name : artifacts.archived){
+        out.name(name).beginObject();
+        out.name("archive").value(artifacts.archivePrefix + name);
+        if (artifacts.s3Keys.containsKey(name)) { out.name("s3").value(artifacts.s3Prefix + artifacts.s3Keys.get(name)); }
+        out.endObject();
+      }
+      for (val s3Key : artifacts.s3Keys.entrySet()){
+        if (artifacts.archived.contains(s3Key.getKey())) { continue; }
+        out.name(s3Key.getKey()).beginObject();
+        out.name("s3").value(artifacts.s3Prefix + s3Key.getValue());
+        out.endObject();
+      }
+      out.endObject();
+    }
+
+    /**
+     * Reads artifacts written by {@link #write}, archive URLs must share their prefix and S3 URLs are kept as keys,
+     * so that artifacts read are written back the same.
+     */
+    @Override
+    public PayloadArtifacts read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+
+      val names       = new ArrayList<String>();
+      val archiveUrls = new HashMap<String, String>();
+      val s3Urls      = new HashMap<String, String>();
+
+      in.beginObject();
+      while (in.hasNext()) {
+        val name = in.nextName();
+        names.add(name);
+        in.beginObject();
+        while (in.hasNext()) {
+          val property = in.nextName();
+          if ("archive".equals(property)) {
+            archiveUrls.put(name, in.nextString());
+          } else if ("s3".equals(property)) {
+            s3Urls.put(name, in.nextString());
+          } else {
+            in.skipValue();
+          }
+        }
+        in.endObject();
+      }
+      in.endObject();
+
+      String archivePrefix = null;
+      for (val archiveUrl : archiveUrls.entrySet()){
+        val name = archiveUrl.getKey();
+        val url  = archiveUrl.getValue();
+        val prefix = url.endsWith(name) ? url.substring(0, url.length() - name.length()) : null;
+        if ((prefix == null) || ((archivePrefix != null) && (! archivePrefix.equals(prefix)))) {
+          throw new JsonSyntaxException("Artifact '" + name + "' URL '" + url + "' doesn't match other artifact URLs");
+        }
+        archivePrefix = prefix;
+      }
+
+      val artifacts = new PayloadArtifacts(archivePrefix, s3Urls.isEmpty() ? null : "", Integer.MAX_VALUE);
+      for (val name : names){
+        if (archiveUrls.containsKey(name)) { artifacts.addArchived(name); }
+        if (s3Urls.containsKey(name))      { artifacts.addS3(name, s3Urls.get(name)); }
+      }
+      return artifacts;
+    }
+  }
+}
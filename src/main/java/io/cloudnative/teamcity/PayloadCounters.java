@@ -0,0 +1,70 @@
+package io.cloudnative.teamcity;
+
+import lombok.experimental.ExtensionMethod;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counts bytes allocated and copied on the payload path, from encoding to the socket,
+ * so that the cost of a single delivery can be measured.
+ */
+@ExtensionMethod(LombokExtensions.class)
+final class PayloadCounters {
+
+  private static final AtomicLong PAYLOADS   = new AtomicLong();
+  private static final AtomicLong DELIVERIES = new AtomicLong();
+  private static final AtomicLong ALLOCATED  = new AtomicLong();
+  private static final AtomicLong COPIED     = new AtomicLong();
+
+  private PayloadCounters() {}
+
+
+  static void encoded(){
+    PAYLOADS.incrementAndGet();
+  }
+
+
+  static void delivered(){
+    DELIVERIES.incrementAndGet();
+  }
+
+
+  static void allocated(long bytes){
+    ALLOCATED.addAndGet(bytes);
+  }
+
+
+  static void copied(long bytes){
+    COPIED.addAndGet(bytes);
+  }
+
+
+  static long payloads(){
+    return PAYLOADS.get();
+  }
+
+
+  static long deliveries(){
+    return DELIVERIES.get();
+  }
+
+
+  static long allocatedBytes(){
+    return ALLOCATED.get();
+  }
+
+
+  static long copiedBytes(){
+    return COPIED.get();
+  }
+
+
+  /**
+   * "12 payloads, 30 deliveries, 1024 bytes allocated and 512 bytes copied per delivery"
+   */
+  static String summary(){
+    final long deliveries = Math.max(1, DELIVERIES.get());
+    return "%s payloads, %s deliveries, %s bytes allocated and %s bytes copied per delivery".f(
+      PAYLOADS.get(), DELIVERIES.get(), ALLOCATED.get() / deliveries, COPIED.get() / deliveries);
+  }
+}
@@ -0,0 +1,51 @@
+package io.cloudnative.teamcity;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counter updated without contention: every thread adds to its own stripe (chosen by thread id),
+ * stripes are summed up when the counter is read. Stripes are a cache line apart, so that threads
+ * updating neighbouring stripes don't invalidate each other's cache lines.
+ */
+final class StripedCounter {
+
+  /**
+   * 8 longs == 64 bytes, a typical cache line.
+   */
+  private static final int PADDING = 8;
+  private static final int STRIPES = stripes();
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+
+  void increment(){
+    add(1);
+  }
+
+
+  void add(long delta){
+    cells.getAndAdd(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, delta);
+  }
+
+
+  long get(){
+    long sum = 0;
+    for (int j = 0; j < STRIPES; j++) {
+      sum += cells.get(j * PADDING);
+    }
+    return sum;
+  }
+
+
+  /**
+   * Power of two, at least the number of processors, at most 16.
+   */
+  private static int stripes(){
+    int stripes = 1;
+    while ((stripes < Runtime.getRuntime().availableProcessors()) && (stripes < 16)) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
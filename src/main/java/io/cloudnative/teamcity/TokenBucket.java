@@ -0,0 +1,137 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.base.Ticker;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Rate limit of a single webhook URL: at most "rateLimit" requests per second, up to "burst" of them at once
+ * after a quiet period.
+ *
+ * Instead of refilling tokens, the bucket keeps the time its next request is due ("virtual scheduling" of GCRA)
+ * and every request reserves a slot, so requests over the limit are given evenly spaced send times rather than
+ * competing for the next free token.
+ *
+ * A "Retry-After" response pauses the bucket: nothing is sent for the time requested, then requests resume
+ * one by one at the configured rate. Without a rate limit configured the bucket only honors such pauses.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+class TokenBucket {
+
+  final Ticker ticker;
+
+  /**
+   * Ticker reading times (ms) below are measured from, so that they start at 0.
+   */
+  final long   origin;
+
+  /**
+   * Time between requests (ms), 0 when there's no limit.
+   */
+  double interval;
+
+  /**
+   * How long before its due time (ms) a request may be sent, "burst - 1" intervals.
+   */
+  double tolerance;
+
+  /**
+   * Time (ms) the next request is due.
+   */
+  double due;
+
+  long   pausedUntil;
+  double rateLimit;
+  int    burst = 1;
+
+
+  TokenBucket() {
+    this(Ticker.systemTicker());
+  }
+
+
+  /**
+   * @param ticker time source of reservations and pauses
+   */
+  TokenBucket(@NonNull Ticker ticker) {
+    this.ticker = ticker;
+    origin      = ticker.read();
+  }
+
+
+  /**
+   * Applies limit of the webhook, called when its events are dispatched.
+   *
+   * @param rateLimit requests per second, 0 for no limit
+   * @param burst     number of requests that may be sent at once
+   */
+  synchronized void configure(double rateLimit, int burst){
+    if ((rateLimit == this.rateLimit) && (burst == this.burst)) { return; }
+    this.rateLimit = rateLimit;
+    this.burst     = Math.max(1, burst);
+    interval       = (rateLimit > 0) ? 1000 / rateLimit : 0;
+    tolerance      = interval * (this.burst - 1);
+  }
+
+
+  /**
+   * Reserves a slot for a request.
+   *
+   * @return how long (ms) the request has to wait for its slot, 0 if it can be sent now
+   */
+  synchronized long reserve(){
+    val now = now();
+    if (interval == 0) {
+      return Math.max(0, pausedUntil - now);
+    }
+
+    val next   = Math.max(due, now);
+    val sendAt = Math.max(now, Math.max(next - tolerance, pausedUntil));
+    due        = Math.max(next, sendAt) + interval;
+    return (long) Math.ceil(sendAt - now);
+  }
+
+
+  /**
+   * Holds requests for the time specified (ms), as asked by "Retry-After" response.
+   */
+  synchronized void pause(long delay){
+    val until   = now() + delay;
+    pausedUntil = Math.max(pausedUntil, until);
+    // No burst right after the pause
+    due         = Math.max(due, until + tolerance);
+  }
+
+
+  synchronized boolean isPaused(){
+    return (now() < pausedUntil);
+  }
+
+
+  @Override
+  public synchronized String toString() {
+    val paused = Math.max(0, pausedUntil - now());
+    val limit  = (interval == 0) ? "no limit" :
+                 (burst == 1)    ? "%s/s".f(rate(rateLimit)) : "%s/s, burst %s".f(rate(rateLimit), burst);
+    return (paused > 0) ? "%s, paused for %s ms".f(limit, paused) : limit;
+  }
+
+
+  private long now(){
+    return TimeUnit.NANOSECONDS.toMillis(ticker.read() - origin);
+  }
+
+
+  /**
+   * 5.0 => "5", 0.5 => "0.5"
+   */
+  static String rate(double rateLimit){
+    return (rateLimit == Math.rint(rateLimit)) ? String.valueOf((long) rateLimit) : String.valueOf(rateLimit);
+  }
+}
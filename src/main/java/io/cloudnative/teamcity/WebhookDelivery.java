@@ -0,0 +1,128 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+
+
+/**
+ * Single payload to be POST-ed to a single webhook URL.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhookDelivery {
+
+  @NonNull String         url;
+  @NonNull EncodedPayload payload;
+
+  /**
+   * Human-readable event description, used in log messages: "Build 'Echo :: Build/#7' finished"
+   */
+  @NonNull String         description;
+
+  /**
+   * Build promotion the event is about, null for events that can't be coalesced (batches).
+   * Newer event with the same key supersedes the older one, see {@link WebhooksDispatcher}.
+   */
+  String                  key;
+
+  /**
+   * Set for events no newer event of the same key follows (build finished or interrupted).
+   */
+  boolean                 last;
+
+  /**
+   * Id of the delivery in {@link WebhooksOutbox}, assigned when delivery is journaled.
+   */
+  @NonFinal volatile long id;
+
+  /**
+   * Number of POST attempts made so far.
+   */
+  @NonFinal volatile int attempts;
+
+  /**
+   * Set when a newer event with the same key is dispatched to the same URL before this one is sent.
+   */
+  @NonFinal volatile boolean superseded;
+
+  /**
+   * Set when the delivery was delayed by its URL's {@link TokenBucket} and has a slot reserved.
+   */
+  @NonFinal volatile boolean reserved;
+
+  /**
+   * Set when the delivery didn't fit into the queue, it is only kept in {@link WebhooksOutbox} then.
+   */
+  @NonFinal volatile boolean dropped;
+
+
+  static WebhookDelivery of(@NonNull String url, @NonNull EncodedPayload payload, @NonNull String description){
+    return of(url, payload, description, null, false);
+  }
+
+
+  static WebhookDelivery of(@NonNull String url, @NonNull EncodedPayload payload, @NonNull String description, String key){
+    return of(url, payload, description, key, false);
+  }
+
+
+  static WebhookDelivery of(@NonNull String url, @NonNull EncodedPayload payload, @NonNull String description, String key,
+                            boolean last){
+    return new WebhookDelivery(url, payload, description, key, last, 0, 0, false, false, false);
+  }
+
+
+  void setId(long id){
+    this.id = id;
+  }
+
+
+  int attempted(){
+    return ++attempts;
+  }
+
+
+  /**
+   * Raises the number of attempts to the one journaled, when delivery is recovered from {@link WebhooksOutbox}.
+   */
+  void attempted(int attempts){
+    this.attempts = Math.max(this.attempts, attempts);
+  }
+
+
+  void supersede(){
+    superseded = true;
+  }
+
+
+  void drop(){
+    dropped = true;
+  }
+
+
+  void reserve(){
+    reserved = true;
+  }
+
+
+  /**
+   * Whether the delivery has a slot reserved, the reservation is used up.
+   */
+  boolean takeReservation(){
+    val wasReserved = reserved;
+    reserved = false;
+    return wasReserved;
+  }
+
+
+  @Override
+  public String toString() {
+    return description + " => '" + url + "'";
+  }
+}
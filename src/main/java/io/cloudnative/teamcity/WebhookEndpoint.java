@@ -0,0 +1,189 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Webhook URL and its delivery options, as configured for a project.
+ *
+ * Kept in settings as a plain URL when all options are default, as {"url": .., "compression": .., "batch": ..,
+ * "coalesce": .., "events": [..], "statuses": [..], "branches": [..], "buildTypes": [..], "rateLimit": .., "burst": ..}
+ * object otherwise,
+ * see {@link #toSettings()} and {@link #fromSettings(Object)}.
+ */
+@Getter
+@EqualsAndHashCode
+@ExtensionMethod(LombokExtensions.class)
+@AllArgsConstructor(staticName = "of")
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhookEndpoint {
+
+  /**
+   * How payloads are compressed before they are POST-ed, "Content-Encoding" header value is sent accordingly.
+   */
+  enum Compression {
+    NONE(null),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String contentEncoding;
+
+    Compression(String contentEncoding) {
+      this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * "Content-Encoding" header value, null for uncompressed payloads.
+     */
+    String getContentEncoding(){
+      return contentEncoding;
+    }
+
+    /**
+     * Name used in settings and in the UI: "none", "gzip", "deflate".
+     */
+    String getName(){
+      return name().toLowerCase();
+    }
+
+    static Compression parse(String compression){
+      if (isEmpty(compression)) {
+        return NONE;
+      }
+      try {
+        return valueOf(compression.trim().toUpperCase());
+      }
+      catch (IllegalArgumentException ignored) {
+        throw new RuntimeException("Unknown compression '%s'".f(compression));
+      }
+    }
+  }
+
+  @NonNull String      url;
+  @NonNull Compression compression;
+
+  /**
+   * Whether events are gathered and POST-ed as JSON arrays, see {@link WebhooksBatcher}.
+   */
+  boolean              batch;
+
+  /**
+   * Whether older undelivered events of a build are skipped when its newer event is dispatched,
+   * see {@link WebhooksDispatcher}.
+   */
+  boolean              coalesce;
+
+  /**
+   * Build events the webhook gets.
+   */
+  @NonNull WebhookSubscription subscription;
+
+  /**
+   * Maximal number of requests per second POST-ed to the webhook, 0 for no limit, see {@link TokenBucket}.
+   */
+  double               rateLimit;
+
+  /**
+   * Number of requests that may be POST-ed at once when the webhook has a rate limit.
+   */
+  int                  burst;
+
+
+  static WebhookEndpoint of(@NonNull String url){
+    return of(url, Compression.NONE, false, true, WebhookSubscription.ALL, 0, 1);
+  }
+
+
+  boolean isDefault(){
+    return (compression == Compression.NONE) && (! batch) && coalesce && subscription.isAll() && (rateLimit == 0);
+  }
+
+
+  /**
+   * "5" => 5.0 requests per second, empty for no limit.
+   */
+  static double parseRateLimit(String rateLimit){
+    if (isEmpty(rateLimit)) {
+      return 0;
+    }
+    try {
+      val limit = Double.parseDouble(rateLimit.trim());
+      if ((limit >= 0) && (! Double.isInfinite(limit))) { return limit; }
+    }
+    catch (NumberFormatException ignored) {}
+    throw new RuntimeException("Unknown rate limit '%s', should be a number of requests per second".f(rateLimit));
+  }
+
+
+  /**
+   * "10" => 10 requests at once, empty for a single one.
+   */
+  static int parseBurst(String burst){
+    if (isEmpty(burst)) {
+      return 1;
+    }
+    try {
+      val requests = Integer.parseInt(burst.trim());
+      if (requests > 0) { return requests; }
+    }
+    catch (NumberFormatException ignored) {}
+    throw new RuntimeException("Unknown burst '%s', should be a positive number of requests".f(burst));
+  }
+
+
+  /**
+   * Settings entry: either a plain URL or a map of URL and options.
+   */
+  Object toSettings(){
+    if (isDefault()) {
+      return url;
+    }
+
+    val entry = new LinkedHashMap<String, Object>();
+    entry.put("url", url);
+    if (compression != Compression.NONE) { entry.put("compression", compression.getName()); }
+    if (batch)                           { entry.put("batch", true); }
+    if (! coalesce)                      { entry.put("coalesce", false); }
+    subscription.toSettings(entry);
+    if (rateLimit > 0)                   { entry.put("rateLimit", rateLimit); }
+    if ((rateLimit > 0) && (burst > 1))  { entry.put("burst", burst); }
+    return entry;
+  }
+
+
+  /**
+   * Reads settings entry: either a plain URL or a map of URL and options.
+   */
+  static WebhookEndpoint fromSettings(Object entry){
+    if (entry instanceof String) {
+      return of((String) entry);
+    }
+    if (entry instanceof Map) {
+      val options = (Map<?, ?>) entry;
+      return of(notEmpty((String) options.get("url"), "Missing 'url' in webhook '%s'".f(entry)),
+                Compression.parse((String) options.get("compression")),
+                Boolean.TRUE.equals(options.get("batch")),
+                (! Boolean.FALSE.equals(options.get("coalesce"))),
+                WebhookSubscription.fromSettings(options),
+                (options.get("rateLimit") instanceof Number) ? Math.max(0, ((Number) options.get("rateLimit")).doubleValue()) : 0,
+                (options.get("burst") instanceof Number) ? Math.max(1, ((Number) options.get("burst")).intValue()) : 1);
+    }
+    throw new RuntimeException("Unknown webhook '%s'".f(entry));
+  }
+
+
+  @Override
+  public String toString() {
+    return url;
+  }
+}
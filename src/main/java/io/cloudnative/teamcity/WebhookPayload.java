@@ -3,6 +3,7 @@ package io.cloudnative.teamcity;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
+import lombok.Getter;
 import lombok.experimental.FieldDefaults;
 import java.util.Map;
 import java.util.List;
@@ -12,6 +13,7 @@ import java.util.Date;
 /**
  * https://cloudnative.io/docs/bakery/json-webhook/
  */
+@Getter
 @AllArgsConstructor(staticName = "of")
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebhookPayload {
@@ -28,7 +30,9 @@ public class WebhookPayload {
     Date started_at;
     Date finished_at;
     Scm    scm;
-    Map<String,Map<String,String>> artifacts;
+    PayloadArtifacts artifacts;
+    Boolean artifacts_truncated;
+    Map<String,Map<String,String>> manifest;
     Map<String, String> parameters;
   }
 
@@ -0,0 +1,316 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhookPayload.*;
+import lombok.NonNull;
+import lombok.val;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Writes {@link WebhookPayload} as compact UTF-8 JSON, straight into a reusable per-thread buffer,
+ * which is then copied once into the {@link EncodedPayload}.
+ *
+ * Output has the same structure as Gson would produce for the payload (fields in declaration order, nulls
+ * included, except for "manifest" which is only written when computed and "artifacts_truncated" which is only
+ * written when artifacts were truncated), but it is written by hand, so the JSON is well-formed by construction
+ * and doesn't need to be parsed back for verification.
+ */
+final class WebhookPayloadWriter {
+
+  static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+  /**
+   * Buffers larger than this are not kept between payloads.
+   */
+  static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+  private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() { return new Buffer(); }
+  };
+
+  private WebhookPayloadWriter() {}
+
+
+  static EncodedPayload write(@NonNull WebhookPayload payload){
+    val buffer = BUFFER.get();
+    try {
+      writePayload(buffer, payload);
+      return EncodedPayload.copyOf(buffer.bytes, buffer.count);
+    }
+    finally {
+      buffer.reset();
+    }
+  }
+
+
+  private static void writePayload(@NonNull Buffer out, @NonNull WebhookPayload payload){
+    out.raw('{');
+    out.name("name").string(payload.getName());
+    out.raw(',').name("url").string(payload.getUrl());
+    out.raw(',').name("build");
+    writeBuild(out, payload.getBuild());
+    out.raw('}');
+  }
+
+
+  private static void writeBuild(@NonNull Buffer out, PayloadBuild build){
+    if (build == null) { out.nil(); return; }
+
+    out.raw('{');
+    out.name("full_url").string(build.full_url);
+    out.raw(',').name("build_id").string(build.build_id);
+    out.raw(',').name("status").string(build.status);
+    out.raw(',').name("started_at").date(build.started_at);
+    out.raw(',').name("finished_at").date(build.finished_at);
+    out.raw(',').name("scm");
+    writeScm(out, build.scm);
+    out.raw(',').name("artifacts");
+    writeArtifacts(out, build.artifacts);
+    if (Boolean.TRUE.equals(build.artifacts_truncated)) {
+      out.raw(',').name("artifacts_truncated").bool(build.artifacts_truncated);
+    }
+    if (build.manifest != null) {
+      out.raw(',').name("manifest");
+      writeMaps(out, build.manifest);
+    }
+    out.raw(',').name("parameters");
+    writeStrings(out, build.parameters);
+    out.raw('}');
+  }
+
+
+  private static void writeScm(@NonNull Buffer out, Scm scm){
+    if (scm == null) { out.nil(); return; }
+
+    out.raw('{');
+    out.name("url").string(scm.url);
+    out.raw(',').name("branch").string(scm.branch);
+    out.raw(',').name("commit").string(scm.commit);
+    out.raw(',').name("changes");
+    writeList(out, scm.changes);
+    out.raw('}');
+  }
+
+
+  /**
+   * Artifact URLs are written as prefix and name, without concatenating them first.
+   */
+  private static void writeArtifacts(@NonNull final Buffer out, final PayloadArtifacts artifacts){
+    if (artifacts == null) { out.nil(); return; }
+
+    out.raw('{');
+    artifacts.visit(new PayloadArtifacts.Visitor() {
+      boolean first = true;
+
+      public void visit(@NonNull String name, boolean archived, String s3Key) {
+        if (! first) { out.raw(','); }
+        first = false;
+        out.name(name).raw('{');
+        if (archived) {
+          out.name("archive").string(artifacts.getArchivePrefix(), name);
+        }
+        if (s3Key != null) {
+          if (archived) { out.raw(','); }
+          out.name("s3").string(artifacts.getS3Prefix(), s3Key);
+        }
+        out.raw('}');
+      }
+    });
+    out.raw('}');
+  }
+
+
+  private static void writeMaps(@NonNull Buffer out, Map<String, Map<String, String>> maps){
+    if (maps == null) { out.nil(); return; }
+
+    out.raw('{');
+    boolean first = true;
+    for (val entry : maps.entrySet()){
+      if (! first) { out.raw(','); }
+      first = false;
+      out.name(entry.getKey());
+      writeStrings(out, entry.getValue());
+    }
+    out.raw('}');
+  }
+
+
+  private static void writeStrings(@NonNull Buffer out, Map<String, String> map){
+    if (map == null) { out.nil(); return; }
+
+    out.raw('{');
+    boolean first = true;
+    for (val entry : map.entrySet()){
+      if (! first) { out.raw(','); }
+      first = false;
+      out.name(entry.getKey()).string(entry.getValue());
+    }
+    out.raw('}');
+  }
+
+
+  private static void writeList(@NonNull Buffer out, List<String> list){
+    if (list == null) { out.nil(); return; }
+
+    out.raw('[');
+    boolean first = true;
+    for (val element : list){
+      if (! first) { out.raw(','); }
+      first = false;
+      out.string(element);
+    }
+    out.raw(']');
+  }
+
+
+  /**
+   * Growable byte buffer with JSON primitives written as UTF-8.
+   */
+  private static final class Buffer {
+
+    static final byte[] NULL  = { 'n', 'u', 'l', 'l' };
+    static final byte[] TRUE  = { 't', 'r', 'u', 'e' };
+    static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    static final byte[] HEX   = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    byte[]           bytes = new byte[8 * 1024];
+    int              count;
+    SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+
+    Buffer raw(char c){
+      ensure(1);
+      bytes[count++] = (byte) c;
+      return this;
+    }
+
+    Buffer nil(){
+      return raw(NULL);
+    }
+
+    Buffer bool(Boolean b){
+      return (b == null ? nil() : raw(b ? TRUE : FALSE));
+    }
+
+    Buffer name(String name){
+      string(name);
+      return raw(':');
+    }
+
+    Buffer date(Date date){
+      return (date == null ? nil() : string(dateFormat.format(date)));
+    }
+
+    /**
+     * Writes quoted and escaped string, as UTF-8.
+     */
+    Buffer string(String s){
+      if (s == null) { return nil(); }
+
+      raw('"');
+      chars(s);
+      return raw('"');
+    }
+
+    /**
+     * Writes quoted and escaped concatenation of the strings, as UTF-8.
+     */
+    Buffer string(String prefix, @NonNull String s){
+      raw('"');
+      if (prefix != null) { chars(prefix); }
+      chars(s);
+      return raw('"');
+    }
+
+    void reset(){
+      count = 0;
+      if (bytes.length > MAX_RETAINED_BUFFER) {
+        bytes = new byte[8 * 1024];
+      }
+    }
+
+    private Buffer raw(byte[] raw){
+      ensure(raw.length);
+      System.arraycopy(raw, 0, bytes, count, raw.length);
+      count += raw.length;
+      return this;
+    }
+
+    /**
+     * Writes escaped chars of the string, as UTF-8.
+     */
+    private void chars(@NonNull String s){
+      val length = s.length();
+      // Worst case is 6 bytes per char ("\\u001f")
+      ensure(length * 6);
+
+      for (int j = 0; j < length; j++) {
+        val c = s.charAt(j);
+        if (c < 0x80) {
+          switch (c) {
+            case '"'  : escape('"');  break;
+            case '\\' : escape('\\'); break;
+            case '\n' : escape('n');  break;
+            case '\r' : escape('r');  break;
+            case '\t' : escape('t');  break;
+            case '\b' : escape('b');  break;
+            case '\f' : escape('f');  break;
+            default   :
+              if (c < 0x20) { unicode(c); }
+              else          { bytes[count++] = (byte) c; }
+          }
+        }
+        else if (c < 0x800) {
+          bytes[count++] = (byte) (0xC0 | (c >> 6));
+          bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if ((c == '\u2028') || (c == '\u2029')) {
+          // Valid JSON but not valid JavaScript
+          unicode(c);
+        }
+        else if (Character.isHighSurrogate(c) && (j + 1 < length) && Character.isLowSurrogate(s.charAt(j + 1))) {
+          val codePoint = Character.toCodePoint(c, s.charAt(++j));
+          bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+          bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+          // Unpaired surrogate, same replacement as String.getBytes() uses
+          bytes[count++] = '?';
+        }
+        else {
+          bytes[count++] = (byte) (0xE0 | (c >> 12));
+          bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    private void escape(char c){
+      bytes[count++] = '\\';
+      bytes[count++] = (byte) c;
+    }
+
+    private void unicode(char c){
+      bytes[count++] = '\\';
+      bytes[count++] = 'u';
+      bytes[count++] = HEX[(c >> 12) & 0xF];
+      bytes[count++] = HEX[(c >> 8) & 0xF];
+      bytes[count++] = HEX[(c >> 4) & 0xF];
+      bytes[count++] = HEX[c & 0xF];
+    }
+
+    private void ensure(int extra){
+      if (count + extra > bytes.length) {
+        byte[] grown = new byte[Math.max(bytes.length * 2, count + extra)];
+        System.arraycopy(bytes, 0, grown, 0, count);
+        bytes = grown;
+      }
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+
+/**
+ * Build events a webhook is subscribed to: rules on event type, build status, branch and build configuration,
+ * an event has to satisfy all of them. A rule with no values is satisfied by any event.
+ *
+ * Rules are compiled once, when the webhook is configured, and are checked before the payload is built,
+ * so that events no webhook is subscribed to cost nothing beyond the check.
+ *
+ * Text form, used in the UI: "events=finished,interrupted; statuses=failure; branches=master,release/*; buildTypes=Echo_Build"
+ * Branch patterns may use "*" (any characters) and "?" (any single character) and are matched against
+ * the branch name and its display name ("refs/heads/master" and "master"), builds without branches are on
+ * the "<default>" branch.
+ */
+@EqualsAndHashCode(of = { "events", "statuses", "branches", "buildTypes" })
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+final class WebhookSubscription {
+
+  static final ImmutableSet<String> EVENTS         = ImmutableSet.of("queued", "started", "finished", "interrupted");
+  static final String               DEFAULT_BRANCH = "<default>";
+  static final WebhookSubscription  ALL            = new WebhookSubscription(ImmutableSet.<String>of(),
+                                                                             ImmutableSet.<String>of(),
+                                                                             ImmutableList.<String>of(),
+                                                                             ImmutableSet.<String>of());
+
+  ImmutableSet<String>  events;
+  ImmutableSet<String>  statuses;
+  ImmutableList<String> branches;
+  ImmutableSet<String>  buildTypes;
+
+  /**
+   * All branch patterns compiled into a single one, null if there are none.
+   */
+  Pattern               branchPattern;
+
+
+  private WebhookSubscription(@NonNull ImmutableSet<String>  events,
+                              @NonNull ImmutableSet<String>  statuses,
+                              @NonNull ImmutableList<String> branches,
+                              @NonNull ImmutableSet<String>  buildTypes) {
+    for (val event : events){
+      if (! EVENTS.contains(event)) {
+        throw new RuntimeException("Unknown event '%s', should be one of %s".f(event, EVENTS));
+      }
+    }
+    this.events        = events;
+    this.statuses      = statuses;
+    this.branches      = branches;
+    this.buildTypes    = buildTypes;
+    this.branchPattern = branches.isEmpty() ? null : Pattern.compile(globs(branches));
+  }
+
+
+  static WebhookSubscription of(Collection<String> events, Collection<String> statuses,
+                                Collection<String> branches, Collection<String> buildTypes){
+    val subscription = new WebhookSubscription(ImmutableSet.copyOf(lowerCase(events)),
+                                               ImmutableSet.copyOf(lowerCase(statuses)),
+                                               ImmutableList.copyOf(values(branches)),
+                                               ImmutableSet.copyOf(values(buildTypes)));
+    return subscription.isAll() ? ALL : subscription;
+  }
+
+
+  boolean isAll(){
+    return events.isEmpty() && statuses.isEmpty() && branches.isEmpty() && buildTypes.isEmpty();
+  }
+
+
+  /**
+   * Determines if event specified satisfies all rules.
+   *
+   * @param event       "queued", "started", "finished" or "interrupted"
+   * @param status      status reported in the payload: "queued", "pending", "success", "failure", "error", "cancelled"
+   * @param buildTypeId build configuration external id
+   * @param branchName  branch name, null if the build has no branch
+   * @param branchDisplayName branch display name, null if the build has no branch
+   */
+  boolean matches(@NonNull String event, @NonNull String status, @NonNull String buildTypeId,
+                  String branchName, String branchDisplayName){
+    if ((! events.isEmpty())     && (! events.contains(event)))           { return false; }
+    if ((! statuses.isEmpty())   && (! statuses.contains(status)))        { return false; }
+    if ((! buildTypes.isEmpty()) && (! buildTypes.contains(buildTypeId))) { return false; }
+    if (branchPattern != null) {
+      if (branchName == null) { return branchPattern.matcher(DEFAULT_BRANCH).matches(); }
+      return branchPattern.matcher(branchName).matches() ||
+             ((branchDisplayName != null) && branchPattern.matcher(branchDisplayName).matches());
+    }
+    return true;
+  }
+
+
+  /**
+   * Parses text form: "events=finished; statuses=failure,error", empty text subscribes to all events.
+   */
+  static WebhookSubscription parse(String text){
+    if (isEmpty(text)) { return ALL; }
+
+    List<String> events = null, statuses = null, branches = null, buildTypes = null;
+    for (val rule : Splitter.on(';').trimResults().omitEmptyStrings().split(text)){
+      val equals = rule.indexOf('=');
+      if (equals < 1) { throw new RuntimeException("Invalid subscription rule '%s', should be 'name=values'".f(rule)); }
+
+      val name   = rule.substring(0, equals).trim();
+      val values = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(rule.substring(equals + 1));
+      if      ("events".equals(name))     { events     = values; }
+      else if ("statuses".equals(name))   { statuses   = values; }
+      else if ("branches".equals(name))   { branches   = values; }
+      else if ("buildTypes".equals(name)) { buildTypes = values; }
+      else { throw new RuntimeException("Unknown subscription rule '%s', should be one of events, statuses, branches, buildTypes".f(name)); }
+    }
+    return of(events, statuses, branches, buildTypes);
+  }
+
+
+  /**
+   * Adds non-empty rules to the webhook's settings entry.
+   */
+  void toSettings(@NonNull Map<String, Object> entry){
+    if (! events.isEmpty())     { entry.put("events",     new ArrayList<String>(events)); }
+    if (! statuses.isEmpty())   { entry.put("statuses",   new ArrayList<String>(statuses)); }
+    if (! branches.isEmpty())   { entry.put("branches",   new ArrayList<String>(branches)); }
+    if (! buildTypes.isEmpty()) { entry.put("buildTypes", new ArrayList<String>(buildTypes)); }
+  }
+
+
+  @SuppressWarnings("unchecked")
+  static WebhookSubscription fromSettings(@NonNull Map<?, ?> options){
+    return of((List<String>) options.get("events"),
+              (List<String>) options.get("statuses"),
+              (List<String>) options.get("branches"),
+              (List<String>) options.get("buildTypes"));
+  }
+
+
+  @Override
+  public String toString() {
+    val rules = new ArrayList<String>();
+    if (! events.isEmpty())     { rules.add("events=" + Joiner.on(',').join(events)); }
+    if (! statuses.isEmpty())   { rules.add("statuses=" + Joiner.on(',').join(statuses)); }
+    if (! branches.isEmpty())   { rules.add("branches=" + Joiner.on(',').join(branches)); }
+    if (! buildTypes.isEmpty()) { rules.add("buildTypes=" + Joiner.on(',').join(buildTypes)); }
+    return Joiner.on("; ").join(rules);
+  }
+
+
+  private static List<String> values(Collection<String> values){
+    val result = new ArrayList<String>();
+    if (values != null) {
+      for (val value : values){
+        if (notEmpty(value)) { result.add(value.trim()); }
+      }
+    }
+    return result;
+  }
+
+
+  private static List<String> lowerCase(Collection<String> values){
+    val result = new ArrayList<String>();
+    for (val value : values(values)){ result.add(value.toLowerCase()); }
+    return result;
+  }
+
+
+  /**
+   * "master,release/*" => "\Qmaster\E|\Qrelease/\E.*"
+   */
+  private static String globs(@NonNull List<String> globs){
+    val regex = new StringBuilder();
+    for (val glob : globs){
+      if (regex.length() > 0) { regex.append('|'); }
+      val literal = new StringBuilder();
+      for (val c : glob.toCharArray()){
+        if ((c == '*') || (c == '?')) {
+          if (literal.length() > 0) { regex.append(Pattern.quote(literal.toString())); literal.setLength(0); }
+          regex.append((c == '*') ? ".*" : ".");
+        }
+        else {
+          literal.append(c);
+        }
+      }
+      if (literal.length() > 0) { regex.append(Pattern.quote(literal.toString())); }
+    }
+    return regex.toString();
+  }
+}
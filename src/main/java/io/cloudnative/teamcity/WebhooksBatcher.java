@@ -0,0 +1,210 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Gathers events of webhooks in batch mode and sends them as a single JSON array payload per webhook,
+ * "teamcity.webhooks.batch.window" ms after the first event of the batch or as soon as there are
+ * "teamcity.webhooks.batch.maxEvents" events in it, whichever comes first.
+ *
+ * An event replaces the older event of the same key (build promotion) still waiting in the batch, instead of
+ * being added to it.
+ *
+ * Batches are sent on the scheduler's thread, full ones too, so that building the array payload doesn't hold
+ * the thread adding the event.
+ *
+ * Events waiting in a batch are not journaled in {@link WebhooksOutbox} yet, so a server crash loses at most
+ * one window of them. Batches still open (or full and not sent yet) on shutdown are flushed into the outbox.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhooksBatcher {
+
+  /**
+   * Receives batches flushed.
+   */
+  interface Sink {
+    void send(@NonNull WebhookEndpoint endpoint, @NonNull EncodedPayload payload, @NonNull String description);
+  }
+
+  ScheduledExecutorService scheduler;
+  Sink                     sink;
+  long                     window;
+  int                      maxEvents;
+  Map<String, Batch>       batches   = new HashMap<String, Batch>();
+  // Full batches waiting to be sent by the scheduler, guarded by "batches"
+  List<Batch>              full      = new ArrayList<Batch>();
+  AtomicLong               coalesced = new AtomicLong();
+
+
+  WebhooksBatcher(@NonNull ScheduledExecutorService scheduler, @NonNull Sink sink) {
+    this.scheduler = scheduler;
+    this.sink      = sink;
+    window         = Math.max(0, TeamCityProperties.getLong(BATCH_WINDOW_PROPERTY, BATCH_WINDOW));
+    maxEvents      = Math.max(1, TeamCityProperties.getInteger(BATCH_MAX_EVENTS_PROPERTY, BATCH_MAX_EVENTS));
+  }
+
+
+  /**
+   * Adds uncompressed event payload to the endpoint's batch, opens a new batch if there's none.
+   *
+   * @param key event key, older event of the same key is replaced in the batch, null if events are not coalesced
+   */
+  void add(@NonNull WebhookEndpoint endpoint, @NonNull EncodedPayload payload,
+           @NonNull String description, String key){
+    boolean filled = false;
+
+    synchronized (batches) {
+      Batch batch = batches.get(endpoint.getUrl());
+      if (batch == null) {
+        batch = new Batch();
+        batches.put(endpoint.getUrl(), batch);
+        schedule(batch);
+      }
+
+      // Options changed while the batch was open apply to the whole batch
+      batch.endpoint = endpoint;
+
+      val index = (key == null) ? null : batch.keys.get(key);
+      if (index != null) {
+        batch.payloads.set(index, payload);
+        batch.descriptions.set(index, description);
+        coalesced.incrementAndGet();
+      }
+      else {
+        if (key != null) { batch.keys.put(key, batch.payloads.size()); }
+        batch.payloads.add(payload);
+        batch.descriptions.add(description);
+      }
+
+      if (batch.payloads.size() >= maxEvents) {
+        full.add(remove(batch));
+        filled = true;
+      }
+    }
+
+    if (filled) {
+      try {
+        scheduler.execute(new Runnable() {
+          public void run() { sendFull(); }
+        });
+      }
+      catch (RejectedExecutionException ignored) {
+        // Shutting down
+        sendFull();
+      }
+    }
+  }
+
+
+  /**
+   * Sends all open batches, regardless of their window.
+   */
+  void flushAll(){
+    val open = new ArrayList<Batch>();
+    synchronized (batches) {
+      open.addAll(full);
+      full.clear();
+      for (val batch : new ArrayList<Batch>(batches.values())){
+        open.add(remove(batch));
+      }
+    }
+
+    for (val batch : open){
+      send(batch);
+    }
+  }
+
+
+  long coalescedCount(){
+    return coalesced.get();
+  }
+
+
+  int openBatches(){
+    synchronized (batches) {
+      return batches.size();
+    }
+  }
+
+
+  private void schedule(@NonNull final Batch batch){
+    try {
+      batch.flush = scheduler.schedule(new Runnable() {
+        public void run() { flush(batch); }
+      }, window, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException ignored) {
+      // Shutting down, batch is sent by flushAll()
+    }
+  }
+
+
+  private void flush(@NonNull Batch batch){
+    synchronized (batches) {
+      if (batches.get(batch.endpoint.getUrl()) != batch) { return; }
+      remove(batch);
+    }
+    send(batch);
+  }
+
+
+  private void sendFull(){
+    List<Batch> filled;
+    synchronized (batches) {
+      filled = new ArrayList<Batch>(full);
+      full.clear();
+    }
+
+    for (val batch : filled){
+      send(batch);
+    }
+  }
+
+
+  private Batch remove(@NonNull Batch batch){
+    batches.remove(batch.endpoint.getUrl());
+    if (batch.flush != null) { batch.flush.cancel(false); }
+    return batch;
+  }
+
+
+  private void send(@NonNull Batch batch){
+    try {
+      val count       = batch.descriptions.size();
+      val description = (count == 1) ?
+        "Batch of %s".f(batch.descriptions.get(0)) :
+        "Batch of %s events, %s .. %s".f(count, batch.descriptions.get(0), batch.descriptions.get(count - 1));
+      sink.send(batch.endpoint, EncodedPayload.array(batch.payloads), description);
+    }
+    catch (Throwable t) {
+      error("Failed to send batch of %s events to '%s'".f(batch.payloads.size(), batch.endpoint.getUrl()), t);
+    }
+  }
+
+
+  private static class Batch {
+    final List<EncodedPayload> payloads     = new ArrayList<EncodedPayload>();
+    final List<String>         descriptions = new ArrayList<String>();
+    final Map<String, Integer> keys         = new HashMap<String, Integer>();
+    WebhookEndpoint            endpoint;
+    ScheduledFuture<?>         flush;
+  }
+}
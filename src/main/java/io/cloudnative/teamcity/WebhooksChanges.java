@@ -0,0 +1,127 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Changes of a build reported in "scm.changes": versions of changes since the last successful build of the same
+ * build configuration and branch, newest first, at most "teamcity.webhooks.changes.max" of them.
+ *
+ * Asking TeamCity for changes since the last successful build walks the whole history of a long-failing build
+ * configuration. Instead, each build only asks for its own changes (since the previous build) and they are kept
+ * per build configuration and branch until a build succeeds, so that later builds add their changes to the ones
+ * of failed builds before them. Changes of builds that finished before the server started are not known.
+ *
+ * Changes are kept for "teamcity.webhooks.changes.cacheSize" build configurations and branches,
+ * each one for an hour since its last build.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksChanges {
+
+  int                            maxChanges;
+  LoadingCache<String, Unstable> unstable;
+
+
+  public WebhooksChanges() {
+    this(Ticker.systemTicker());
+  }
+
+
+  /**
+   * @param ticker time source of changes' expiration
+   */
+  WebhooksChanges(@NonNull Ticker ticker) {
+    maxChanges = Math.max(0, TeamCityProperties.getInteger(CHANGES_MAX_PROPERTY, CHANGES_MAX));
+    unstable   = CacheBuilder.newBuilder().
+                              maximumSize(Math.max(0, TeamCityProperties.getInteger(CHANGES_CACHE_SIZE_PROPERTY, CHANGES_CACHE_SIZE))).
+                              expireAfterAccess(CHANGES_CACHE_TTL, TimeUnit.MILLISECONDS).
+                              ticker(ticker).
+                              build(new CacheLoader<String, Unstable>() {
+                                public Unstable load(@NonNull String key) { return new Unstable(); }
+                              });
+  }
+
+
+  /**
+   * Versions of changes since the last successful build, newest first, null if changes are not reported.
+   */
+  List<String> changes(@NonNull SBuild build){
+    if (maxChanges < 1) {
+      return null;
+    }
+
+    val versions = new ArrayList<String>();
+    for (val modification : build.getChanges(SelectPrevBuildPolicy.SINCE_LAST_BUILD, false)){
+      if (versions.size() == maxChanges) { break; }
+      versions.add(modification.getVersion());
+    }
+    return unstable.getUnchecked(key(build)).add(build.getBuildId(), versions, maxChanges);
+  }
+
+
+  /**
+   * Forgets changes of the build specified and of builds before it.
+   */
+  void buildSucceeded(@NonNull SBuild build){
+    val builds = unstable.getIfPresent(key(build));
+    if (builds != null) {
+      builds.succeeded(build.getBuildId());
+    }
+  }
+
+
+  private static String key(@NonNull SBuild build){
+    val branch = build.getBranch();
+    return (branch == null) ? build.getBuildTypeId() : build.getBuildTypeId() + ' ' + branch.getName();
+  }
+
+
+  /**
+   * Changes of builds since the last successful one, by build id.
+   */
+  private static class Unstable {
+    final TreeMap<Long, List<String>> builds = new TreeMap<Long, List<String>>();
+
+    /**
+     * Adds build's own changes, returns them with changes of builds before it.
+     */
+    synchronized List<String> add(long buildId, @NonNull List<String> versions, int maxChanges){
+      builds.put(buildId, versions);
+
+      val changes  = new ArrayList<String>(maxChanges);
+      val previous = builds.headMap(buildId, true).descendingMap().entrySet().iterator();
+      while (previous.hasNext() && (changes.size() < maxChanges)) {
+        for (val version : previous.next().getValue()){
+          if (changes.size() == maxChanges) { break; }
+          changes.add(version);
+        }
+      }
+
+      // Builds beyond the limit are never reported by later builds either
+      while (previous.hasNext()) {
+        previous.next();
+        previous.remove();
+      }
+      return changes;
+    }
+
+    synchronized void succeeded(long buildId){
+      builds.headMap(buildId, true).clear();
+    }
+  }
+}
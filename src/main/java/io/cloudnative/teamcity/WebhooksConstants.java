@@ -9,9 +9,115 @@ interface WebhooksConstants {
   String PLUGIN_TITLE       = "Webhooks";
   String PLUGIN_NAME        = PLUGIN_TITLE.toLowerCase();
   String CONTROLLER_PATH    = PLUGIN_NAME + "/index.html";
+  String METRICS_PATH       = PLUGIN_NAME + "/metrics.html";
   String SETTINGS_FILE      = PLUGIN_NAME + ".json";
   String S3_SETTINGS_FILE   = "s3.json";
   int    POST_TIMEOUT       = 10000;
+
+  // Delivery settings, can be overridden in "<TeamCity Data Directory>/config/internal.properties"
+  String DELIVERY_WORKERS_PROPERTY       = "teamcity.webhooks.delivery.workers";
+  String DELIVERY_QUEUE_SIZE_PROPERTY    = "teamcity.webhooks.delivery.queueSize";
+  String DELIVERY_OVERFLOW_PROPERTY      = "teamcity.webhooks.delivery.overflow";
+  String DELIVERY_OFFER_TIMEOUT_PROPERTY = "teamcity.webhooks.delivery.offerTimeout";
+  int    DELIVERY_WORKERS                = 4;
+  int    DELIVERY_QUEUE_SIZE             = 10000;
+  long   DELIVERY_OFFER_TIMEOUT          = 50;
+  String DELIVERY_MAX_ATTEMPTS_PROPERTY    = "teamcity.webhooks.delivery.maxAttempts";
+  String DELIVERY_RETRY_DELAY_PROPERTY     = "teamcity.webhooks.delivery.retryDelay";
+  String DELIVERY_RETRY_MAX_DELAY_PROPERTY = "teamcity.webhooks.delivery.retryMaxDelay";
+  int    DELIVERY_MAX_ATTEMPTS             = 10;
+  long   DELIVERY_RETRY_DELAY              = 1000;
+  long   DELIVERY_RETRY_MAX_DELAY          = 10 * 60 * 1000;
+
+  String SETTINGS_FLUSH_DELAY_PROPERTY = "teamcity.webhooks.settings.flushDelay";
+  long   SETTINGS_FLUSH_DELAY          = 1000;
+
+  String BATCH_WINDOW_PROPERTY     = "teamcity.webhooks.batch.window";
+  String BATCH_MAX_EVENTS_PROPERTY = "teamcity.webhooks.batch.maxEvents";
+  long   BATCH_WINDOW              = 2000;
+  int    BATCH_MAX_EVENTS          = 100;
+
+  String BREAKER_FAILURE_RATE_PROPERTY  = "teamcity.webhooks.breaker.failureRate";
+  String BREAKER_SLOW_CALL_PROPERTY     = "teamcity.webhooks.breaker.slowCall";
+  String BREAKER_WINDOW_PROPERTY        = "teamcity.webhooks.breaker.window";
+  String BREAKER_MIN_CALLS_PROPERTY     = "teamcity.webhooks.breaker.minCalls";
+  String BREAKER_OPEN_DURATION_PROPERTY = "teamcity.webhooks.breaker.openDuration";
+  int    BREAKER_FAILURE_RATE           = 50;
+  long   BREAKER_SLOW_CALL              = POST_TIMEOUT / 2;
+  int    BREAKER_WINDOW                 = 20;
+  int    BREAKER_MIN_CALLS              = 5;
+  long   BREAKER_OPEN_DURATION          = 30000;
+
+  String HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY = "teamcity.webhooks.http.maxConnectionsPerHost";
+  String HTTP_IDLE_TIMEOUT_PROPERTY             = "teamcity.webhooks.http.idleTimeout";
+  String HTTP_TIMEOUT_PROPERTY                  = "teamcity.webhooks.http.timeout";
+  String HTTP_MAX_IN_FLIGHT_PROPERTY            = "teamcity.webhooks.http.maxInFlight";
+  String HTTP_RESOLVER_THREADS_PROPERTY         = "teamcity.webhooks.http.resolverThreads";
+  String HTTP_MAX_WAIT_PROPERTY                 = "teamcity.webhooks.http.maxWait";
+  int    HTTP_MAX_CONNECTIONS_PER_HOST          = 4;
+  long   HTTP_IDLE_TIMEOUT                      = 30000;
+  long   HTTP_TIMEOUT                           = POST_TIMEOUT;
+  int    HTTP_MAX_IN_FLIGHT                     = 2000;
+  int    HTTP_RESOLVER_THREADS                  = 2;
+  long   HTTP_MAX_WAIT                          = 60000;
+  // How often request deadlines and idle connections are checked
+  long   HTTP_TICK                              = 100;
+
+  // Payloads smaller than this are POST-ed uncompressed, whatever the webhook's compression is
+  String COMPRESSION_THRESHOLD_PROPERTY = "teamcity.webhooks.compression.threshold";
+  int    COMPRESSION_THRESHOLD          = 1024;
+
+  String S3_BUCKET_CACHE_TTL_PROPERTY = "teamcity.webhooks.s3.bucketCacheTtl";
+  long   S3_BUCKET_CACHE_TTL          = 60 * 60 * 1000;
+  String S3_LISTING_TIMEOUT_PROPERTY  = "teamcity.webhooks.s3.listingTimeout";
+  String S3_LISTING_THREADS_PROPERTY  = "teamcity.webhooks.s3.listingThreads";
+  long   S3_LISTING_TIMEOUT           = 20000;
+  int    S3_LISTING_THREADS           = 4;
+  int    S3_PAGE_SIZE                 = 1000;
+
+  String OUTBOX_SEGMENT_SIZE_PROPERTY = "teamcity.webhooks.outbox.segmentSize";
+  String OUTBOX_MAX_SEGMENTS_PROPERTY = "teamcity.webhooks.outbox.maxSegments";
+  String OUTBOX_FSYNC_PROPERTY        = "teamcity.webhooks.outbox.fsync";
+  long   OUTBOX_SEGMENT_SIZE          = 16 * 1024 * 1024;
+  int    OUTBOX_MAX_SEGMENTS          = 8;
+
+  // Artifacts beyond this are not reported, payload is marked as "artifacts_truncated"
+  String ARTIFACTS_MAX_PROPERTY = "teamcity.webhooks.artifacts.max";
+  int    ARTIFACTS_MAX          = 10000;
+
+  String MANIFEST_ENABLED_PROPERTY    = "teamcity.webhooks.manifest.enabled";
+  String MANIFEST_THREADS_PROPERTY    = "teamcity.webhooks.manifest.threads";
+  String MANIFEST_TIMEOUT_PROPERTY    = "teamcity.webhooks.manifest.timeout";
+  String MANIFEST_MAX_BYTES_PROPERTY  = "teamcity.webhooks.manifest.maxBytes";
+  String MANIFEST_CACHE_SIZE_PROPERTY = "teamcity.webhooks.manifest.cacheSize";
+  int    MANIFEST_THREADS             = 4;
+  long   MANIFEST_TIMEOUT             = 30000;
+  long   MANIFEST_MAX_BYTES           = 1024L * 1024 * 1024;
+  int    MANIFEST_CACHE_SIZE          = 1000;
+  int    MANIFEST_BUFFER_SIZE         = 1024 * 1024;
+
+  String PAYLOAD_CACHE_SIZE_PROPERTY = "teamcity.webhooks.payloadCache.size";
+  String PAYLOAD_CACHE_TTL_PROPERTY  = "teamcity.webhooks.payloadCache.ttl";
+  int    PAYLOAD_CACHE_SIZE          = 1000;
+  long   PAYLOAD_CACHE_TTL           = 60 * 60 * 1000;
+
+  String CHANGES_MAX_PROPERTY        = "teamcity.webhooks.changes.max";
+  String CHANGES_CACHE_SIZE_PROPERTY = "teamcity.webhooks.changes.cacheSize";
+  int    CHANGES_MAX                 = 100;
+  int    CHANGES_CACHE_SIZE          = 1000;
+  long   CHANGES_CACHE_TTL           = 60 * 60 * 1000;
+
+  String LOG_MAX_LENGTH_PROPERTY       = "teamcity.webhooks.log.maxLength";
+  String LOG_SAMPLE_THRESHOLD_PROPERTY = "teamcity.webhooks.log.sampleThreshold";
+  String LOG_SAMPLE_RATE_PROPERTY      = "teamcity.webhooks.log.sampleRate";
+  String LOG_QUEUE_SIZE_PROPERTY       = "teamcity.webhooks.log.queueSize";
+  int    LOG_MAX_LENGTH                = 1024;
+  int    LOG_SAMPLE_THRESHOLD          = 4096;
+  int    LOG_SAMPLE_RATE               = 10;
+  int    LOG_QUEUE_SIZE                = 1000;
+
   // https://confluence.jetbrains.com/display/TCD9/Plugin+Development+FAQ#PluginDevelopmentFAQ-HowtoUseLogging
   Logger LOG                = Loggers.SERVER;
+  // Payloads, written to teamcity-server.log unless routed elsewhere in conf/teamcity-server-log4j.xml
+  Logger PAYLOAD_LOG        = Logger.getInstance("jetbrains.buildServer.WEBHOOKS");
 }
@@ -43,9 +43,10 @@ public class WebhooksController extends BaseController {
     val projectId = notEmpty(request.getParameter("projectId"), "Missing 'projectId' parameter in request");
     val delete    = request.getParameter("delete");
     val add       = request.getParameter("add");
+    val update    = request.getParameter("update");
 
-    if (isEmpty(delete) && isEmpty(add)) {
-      throw new RuntimeException("Unknown operation: neither 'delete' nor 'add'");
+    if (isEmpty(delete) && isEmpty(add) && isEmpty(update)) {
+      throw new RuntimeException("Unknown operation: neither 'delete' nor 'add' nor 'update'");
     }
 
     if (notEmpty(delete)) {
@@ -53,13 +54,33 @@ public class WebhooksController extends BaseController {
                                           "Missing '%s' parameter in request (url to delete)".f(delete));
       settings.removeUrl(projectId, urlToDelete);
     }
+    else if (notEmpty(update)) {
+      final String urlToUpdate = notEmpty(request.getParameter(update),
+                                          "Missing '%s' parameter in request (url to update)".f(update));
+      settings.updateEndpoint(projectId, endpoint(request, update, urlToUpdate));
+    }
     else {
       val urlToAdd = request.getParameter(add);
       if (notEmpty(urlToAdd)) {
-        settings.addUrl(projectId, urlToAdd);
+        settings.addEndpoint(projectId, endpoint(request, add, urlToAdd));
       }
     }
 
     return new ModelAndView("redirect:/project.html?projectId=%s&tab=%s".f(projectId, PLUGIN_NAME));
   }
+
+
+  /**
+   * Endpoint with options selected for the URL parameter specified:
+   * "url1" => "url1-compression", "url1-batch", "url1-coalesce", "url1-subscription", "url1-rateLimit", "url1-burst".
+   */
+  private static WebhookEndpoint endpoint(@NonNull HttpServletRequest request, @NonNull String urlParameter, @NonNull String url){
+    return WebhookEndpoint.of(url,
+                              WebhookEndpoint.Compression.parse(request.getParameter(urlParameter + "-compression")),
+                              notEmpty(request.getParameter(urlParameter + "-batch")),
+                              notEmpty(request.getParameter(urlParameter + "-coalesce")),
+                              WebhookSubscription.parse(request.getParameter(urlParameter + "-subscription")),
+                              WebhookEndpoint.parseRateLimit(request.getParameter(urlParameter + "-rateLimit")),
+                              WebhookEndpoint.parseBurst(request.getParameter(urlParameter + "-burst")));
+  }
 }
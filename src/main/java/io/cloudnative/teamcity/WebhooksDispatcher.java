@@ -0,0 +1,600 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Delivers webhook payloads asynchronously, off TeamCity's event dispatching thread.
+ *
+ * Listener callbacks only {@link #dispatch} deliveries into a bounded queue, a fixed pool of
+ * worker threads takes them from the queue and submits their POSTs to {@link WebhooksHttpClient} without waiting
+ * for responses, which are handled by a single completion thread. Deliveries scheduled to come back to the queue
+ * later (retried, parked or throttled ones) keep their place in it, so the queue bound covers them too. When the
+ * queue is full, {@link OverflowPolicy} configured decides what happens to the delivery.
+ *
+ * Every delivery is journaled in {@link WebhooksOutbox} until it is either sent or given up,
+ * failed deliveries are retried with jittered exponential backoff.
+ *
+ * Deliveries of the same build promotion to the same URL are coalesced: when a newer event is dispatched
+ * while an older one is still waiting in the queue or for a retry, the older one is skipped (unless the
+ * webhook has opted out), so lagging webhooks only get the latest state of the build.
+ *
+ * Every URL has its {@link CircuitBreaker}: while it is open, deliveries to the URL are not POST-ed but parked,
+ * i.e. re-enqueued once the breaker lets a probe request through, without counting it as an attempt.
+ *
+ * Every URL has its {@link TokenBucket}: deliveries over the webhook's rate limit are not POST-ed but scheduled
+ * for the slot reserved for them, so bursts of events reach the webhook evenly spaced. Throttling responses
+ * with "Retry-After" pause the URL's deliveries until the time asked for.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksDispatcher {
+
+  /**
+   * What to do with a delivery when the queue is full.
+   */
+  enum OverflowPolicy {
+    /** Wait up to "offerTimeout" ms for a free slot, drop the delivery if there's none */
+    BLOCK,
+    /** Drop the delivery being dispatched */
+    DROP_NEWEST,
+    /** Drop the delivery that waits in the queue for the longest time, to make room for the new one */
+    DROP_OLDEST
+  }
+
+  @NonNull WebhooksOutbox        outbox;
+  @NonNull WebhooksMetrics       metrics;
+  BlockingQueue<WebhookDelivery> queue;
+
+  /**
+   * Places in the queue, taken by deliveries queued or scheduled to be queued again.
+   */
+  Semaphore                      slots;
+  OverflowPolicy                 overflowPolicy;
+  long                           offerTimeout;
+  int                            workersCount;
+  int                            maxAttempts;
+  long                           retryBaseDelay;
+  long                           retryMaxDelay;
+  int                            compressionThreshold;
+  ExecutorService                workers;
+  ExecutorService                completions;
+  ScheduledExecutorService       retries;
+  WebhooksBatcher                batcher;
+  WebhooksHttpClient             httpClient = new WebhooksHttpClient();
+  Random                         random  = new Random();
+  AtomicLong                     dropped   = new AtomicLong();
+  AtomicLong                     coalesced = new AtomicLong();
+
+  /**
+   * Latest delivery not completed yet, per "URL + event key"
+   */
+  ConcurrentMap<String, WebhookDelivery> latest = new ConcurrentHashMap<String, WebhookDelivery>();
+
+  ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+  AtomicLong                            parked   = new AtomicLong();
+
+  ConcurrentMap<String, TokenBucket>    buckets     = new ConcurrentHashMap<String, TokenBucket>();
+  AtomicLong                            throttled   = new AtomicLong();
+  AtomicLong                            retryAfters = new AtomicLong();
+
+
+  public WebhooksDispatcher(@NonNull WebhooksOutbox outbox, @NonNull WebhooksMetrics metrics) {
+    this.outbox    = outbox;
+    this.metrics   = metrics;
+    val queueSize  = Math.max(1, TeamCityProperties.getInteger(DELIVERY_QUEUE_SIZE_PROPERTY, DELIVERY_QUEUE_SIZE));
+    queue          = new ArrayBlockingQueue<WebhookDelivery>(queueSize);
+    slots          = new Semaphore(queueSize);
+    overflowPolicy = overflowPolicy(TeamCityProperties.getProperty(DELIVERY_OVERFLOW_PROPERTY, OverflowPolicy.DROP_OLDEST.name()));
+    offerTimeout   = Math.max(0, TeamCityProperties.getLong(DELIVERY_OFFER_TIMEOUT_PROPERTY, DELIVERY_OFFER_TIMEOUT));
+    workersCount   = Math.max(1, TeamCityProperties.getInteger(DELIVERY_WORKERS_PROPERTY, DELIVERY_WORKERS));
+    workers        = Executors.newFixedThreadPool(workersCount, new ThreadFactoryBuilder().setDaemon(true).
+                                                                                           setNameFormat(PLUGIN_NAME + "-delivery-%d").
+                                                                                           build());
+    maxAttempts    = Math.max(1, TeamCityProperties.getInteger(DELIVERY_MAX_ATTEMPTS_PROPERTY, DELIVERY_MAX_ATTEMPTS));
+    retryBaseDelay = Math.max(1, TeamCityProperties.getLong(DELIVERY_RETRY_DELAY_PROPERTY, DELIVERY_RETRY_DELAY));
+    retryMaxDelay  = Math.max(retryBaseDelay, TeamCityProperties.getLong(DELIVERY_RETRY_MAX_DELAY_PROPERTY, DELIVERY_RETRY_MAX_DELAY));
+    compressionThreshold = Math.max(0, TeamCityProperties.getInteger(COMPRESSION_THRESHOLD_PROPERTY, COMPRESSION_THRESHOLD));
+    completions    = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).
+                                                                                  setNameFormat(PLUGIN_NAME + "-completion-%d").
+                                                                                  build());
+    retries        = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).
+                                                                                           setNameFormat(PLUGIN_NAME + "-retry-%d").
+                                                                                           build());
+    batcher        = new WebhooksBatcher(retries, new WebhooksBatcher.Sink() {
+      public void send(@NonNull WebhookEndpoint endpoint, @NonNull EncodedPayload payload, @NonNull String description) {
+        limit(endpoint);
+        dispatch(WebhookDelivery.of(endpoint.getUrl(), payload.compress(endpoint.getCompression(), compressionThreshold), description));
+      }
+    });
+  }
+
+
+  public void start(){
+    for (int j = 0; j < workersCount; j++) {
+      workers.execute(new Runnable() {
+        public void run() { work(); }
+      });
+    }
+    log("Delivery dispatcher started: %s workers, queue of %s, '%s' overflow policy".f(
+        workersCount, queue.remainingCapacity(), overflowPolicy));
+
+    final List<WebhookDelivery> recovered = outbox.recover();
+    for (val delivery : recovered){
+      // Recovered in journal order, so the newest delivery of each key supersedes the older ones
+      track(delivery);
+    }
+    if (! recovered.isEmpty()) {
+      // Re-sent from the retry thread, so that a big backlog doesn't hold the server startup
+      retries.execute(new Runnable() {
+        public void run() {
+          for (val delivery : recovered){ enqueue(delivery); }
+        }
+      });
+    }
+  }
+
+
+  public void shutdown(){
+    batcher.flushAll();
+    retries.shutdownNow();
+    workers.shutdownNow();
+    try {
+      if (! workers.awaitTermination(POST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        error("Delivery workers didn't stop in %s ms".f(POST_TIMEOUT));
+      }
+
+      // Requests in flight are completed (or failed) and their outcomes are journaled before the outbox is closed
+      httpClient.shutdown();
+      completions.shutdown();
+      if (! completions.awaitTermination(POST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        error("Delivery completions didn't finish in %s ms".f(POST_TIMEOUT));
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    outbox.close();
+    log("Delivery dispatcher stopped: %s, %s deliveries coalesced".f(PayloadCounters.summary(), coalescedCount()));
+    if (outbox.pendingCount() > 0) {
+      log("Delivery dispatcher stopped, %s pending deliveries will be sent after restart".f(outbox.pendingCount()));
+    }
+  }
+
+
+  /**
+   * Dispatches payload specified to all endpoints specified. Payload is compressed once per compression
+   * requested and compressed bytes are shared by all endpoints requesting it.
+   * Endpoints in batch mode get the payload added to their {@link WebhooksBatcher} batch instead.
+   *
+   * @param key  build promotion the event is about, older undelivered events of the same promotion are
+   *             superseded by this one for endpoints that coalesce events
+   * @param last whether no newer event of the promotion follows (build finished or interrupted)
+   */
+  void dispatch(@NonNull Collection<WebhookEndpoint> endpoints, @NonNull EncodedPayload payload,
+                @NonNull String description, @NonNull String key, boolean last){
+    val payloads = new EnumMap<WebhookEndpoint.Compression, EncodedPayload>(WebhookEndpoint.Compression.class);
+    for (val endpoint : endpoints){
+      if (endpoint.isBatch()) {
+        batcher.add(endpoint, payload, description, endpoint.isCoalesce() ? key : null);
+        continue;
+      }
+
+      limit(endpoint);
+      val compression = endpoint.getCompression();
+      if (! payloads.containsKey(compression)) {
+        payloads.put(compression, payload.compress(compression, compressionThreshold));
+      }
+      dispatch(WebhookDelivery.of(endpoint.getUrl(), payloads.get(compression), description,
+                                  endpoint.isCoalesce() ? key : null, last));
+    }
+  }
+
+
+  /**
+   * Journals and enqueues delivery specified, never blocks for longer than "offerTimeout" ms.
+   *
+   * @return true if delivery was enqueued, false if it was dropped
+   */
+  boolean dispatch(@NonNull WebhookDelivery delivery){
+    outbox.add(delivery);
+    track(delivery);
+    return enqueue(delivery);
+  }
+
+
+  private boolean enqueue(@NonNull WebhookDelivery delivery){
+    try {
+      switch (overflowPolicy) {
+        case BLOCK:
+          if (slots.tryAcquire(offerTimeout, TimeUnit.MILLISECONDS)) { return queue.offer(delivery); }
+          break;
+
+        case DROP_NEWEST:
+          if (slots.tryAcquire()) { return queue.offer(delivery); }
+          break;
+
+        case DROP_OLDEST:
+          while (! slots.tryAcquire()) {
+            val oldest = queue.poll();
+            // The rest of the places are taken by scheduled deliveries
+            if (oldest == null) { drop(delivery); return false; }
+            slots.release();
+            drop(oldest);
+          }
+          return queue.offer(delivery);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    drop(delivery);
+    return false;
+  }
+
+
+  /**
+   * Puts delivery specified back to the queue after the delay specified, in the place it had taken.
+   *
+   * @return false if the queue is full and delivery was dropped
+   */
+  private boolean schedule(@NonNull final WebhookDelivery delivery, long delay){
+    if (! slots.tryAcquire()) {
+      drop(delivery);
+      return false;
+    }
+
+    retries.schedule(new Runnable() {
+      public void run() { queue.offer(delivery); }
+    }, delay, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+
+  int queueSize(){
+    return queue.size();
+  }
+
+
+  long droppedCount(){
+    return dropped.get();
+  }
+
+
+  int pendingCount(){
+    return outbox.pendingCount();
+  }
+
+
+  Map<String, CircuitBreaker> breakers(){
+    return Collections.unmodifiableMap(breakers);
+  }
+
+
+  long parkedCount(){
+    return parked.get();
+  }
+
+
+  /**
+   * Circuit breaker of the URL specified, null if nothing was delivered to it yet.
+   */
+  CircuitBreaker breaker(@NonNull String url){
+    return breakers.get(url);
+  }
+
+
+  private CircuitBreaker breakerFor(@NonNull String url){
+    val breaker = breakers.get(url);
+    if (breaker != null) { return breaker; }
+    val newBreaker = new CircuitBreaker();
+    val existing   = breakers.putIfAbsent(url, newBreaker);
+    return (existing != null ? existing : newBreaker);
+  }
+
+
+  /**
+   * Token bucket of the URL specified, null if nothing was dispatched to it yet.
+   */
+  TokenBucket bucket(@NonNull String url){
+    return buckets.get(url);
+  }
+
+
+  private TokenBucket bucketFor(@NonNull String url){
+    val bucket = buckets.get(url);
+    if (bucket != null) { return bucket; }
+    val newBucket = new TokenBucket();
+    val existing  = buckets.putIfAbsent(url, newBucket);
+    return (existing != null ? existing : newBucket);
+  }
+
+
+  /**
+   * Applies rate limit of the endpoint to its URL, the last endpoint dispatched to wins if projects configure
+   * the same URL differently.
+   */
+  private void limit(@NonNull WebhookEndpoint endpoint){
+    bucketFor(endpoint.getUrl()).configure(endpoint.getRateLimit(), endpoint.getBurst());
+  }
+
+
+  long throttledCount(){
+    return throttled.get();
+  }
+
+
+  long retryAfterCount(){
+    return retryAfters.get();
+  }
+
+
+  long coalescedCount(){
+    return coalesced.get() + batcher.coalescedCount();
+  }
+
+
+  /**
+   * Makes delivery specified the latest one of its key and URL, superseding the previous one.
+   */
+  private void track(@NonNull WebhookDelivery delivery){
+    if (delivery.getKey() == null) { return; }
+    val previous = latest.put(coalescingKey(delivery), delivery);
+    if ((previous != null) && (previous != delivery)) {
+      previous.supersede();
+      // Kept in the outbox after being dropped, it is not worth sending after restart anymore
+      if (previous.isDropped()) { outbox.ack(previous); }
+    }
+  }
+
+
+  /**
+   * Delivery is sent, given up or superseded: it is removed from the journal and stops being the latest one.
+   */
+  private void complete(@NonNull WebhookDelivery delivery){
+    outbox.ack(delivery);
+    if (delivery.getKey() != null) {
+      latest.remove(coalescingKey(delivery), delivery);
+    }
+  }
+
+
+  private static String coalescingKey(@NonNull WebhookDelivery delivery){
+    return delivery.getUrl() + " " + delivery.getKey();
+  }
+
+
+  /**
+   * Delivery that doesn't fit into the queue is not acknowledged: it stays in the outbox and is sent after restart,
+   * unless a newer event of its key supersedes it meanwhile. The last event of its key has nothing to wait for,
+   * it stops being tracked right away.
+   */
+  private void drop(@NonNull WebhookDelivery delivery){
+    error("Delivery queue is full (%s dropped so far), dropping %s, it stays in the outbox".f(
+          dropped.incrementAndGet(), delivery));
+    delivery.drop();
+    if ((delivery.getKey() != null) && delivery.isLast()) {
+      latest.remove(coalescingKey(delivery), delivery);
+    }
+  }
+
+
+  private void work(){
+    while (! Thread.currentThread().isInterrupted()) {
+      try {
+        val delivery = queue.take();
+        slots.release();
+        deliver(delivery);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (Throwable t) {
+        error("Delivery worker failed", t);
+      }
+    }
+  }
+
+
+  private void deliver(@NonNull final WebhookDelivery delivery){
+    val reserved = delivery.takeReservation();
+    if (delivery.isSuperseded()) {
+      debug("Skipping %s, superseded by a newer event (%s coalesced so far)".f(delivery, coalesced.incrementAndGet()));
+      complete(delivery);
+      return;
+    }
+
+    val breaker = breakerFor(delivery.getUrl());
+    if (! breaker.allow()) {
+      park(delivery, breaker);
+      return;
+    }
+
+    // Slots reserved before the webhook asked to retry later are given up
+    val bucket = bucketFor(delivery.getUrl());
+    if ((! reserved) || bucket.isPaused()) {
+      val wait = bucket.reserve();
+      if (wait > 0) {
+        // Not POST-ed now, so it is not the probe of a half-open breaker either
+        breaker.release();
+        throttle(delivery, bucket, wait);
+        return;
+      }
+    }
+
+    val attempts = delivery.attempted();
+    outbox.attempted(delivery);
+    post(delivery, breaker, bucket, attempts);
+  }
+
+
+  /**
+   * Handles the outcome of a POST, on the completion thread.
+   *
+   * @param response    response received, null if request has failed
+   * @param latency     time from getting a connection to the outcome, ms
+   * @param waitTimeout whether request has failed waiting for a connection, without reaching the webhook
+   */
+  private void posted(@NonNull final WebhookDelivery delivery, @NonNull CircuitBreaker breaker, @NonNull TokenBucket bucket,
+                      int attempts, WebhooksHttpClient.Response response, long latency, boolean waitTimeout){
+    val statusCode = (response == null) ? -1 : response.getStatusCode();
+
+    // Throttling with "Retry-After" is the webhook asking to slow down rather than failing
+    val retryAfter = ((statusCode == 429) || (statusCode == 503)) ? Math.min(response.retryAfter(), retryMaxDelay) : -1;
+    // Waiting for our own connections says nothing about the webhook's health
+    if (waitTimeout) { breaker.release(); }
+    else             { breaker.record(isRetryable(statusCode) && (retryAfter < 0), latency); }
+    if (retryAfter >= 0) {
+      bucket.pause(retryAfter);
+      log("'%s' asked to retry after %s ms, pausing its deliveries (%s times so far)".f(
+          delivery.getUrl(), retryAfter, retryAfters.incrementAndGet()));
+    }
+
+    if ((statusCode >= 200) && (statusCode < 300)) {
+      complete(delivery);
+      PayloadCounters.delivered();
+      debug(PayloadCounters.summary());
+    }
+    else if (isRetryable(statusCode) && (attempts < maxAttempts) && (! retries.isShutdown())) {
+      val delay = (retryAfter >= 0) ? retryAfter : backoff(attempts);
+      log("Retrying %s in %s ms (attempt %s of %s)".f(delivery, delay, attempts + 1, maxAttempts));
+      schedule(delivery, delay);
+    }
+    else if (! retries.isShutdown()) {
+      error("Giving up on %s after %s attempt(s)".f(delivery, attempts));
+      complete(delivery);
+    }
+  }
+
+
+  /**
+   * Re-enqueues delivery specified when its URL's breaker is expected to let a request through.
+   */
+  private void park(@NonNull WebhookDelivery delivery, @NonNull CircuitBreaker breaker){
+    if (retries.isShutdown()) { return; }
+
+    // Spread parked deliveries, so that they don't all come back at once
+    val delay = Math.max(breaker.retryDelay(), retryBaseDelay) + (long) (random.nextDouble() * retryBaseDelay);
+    if (schedule(delivery, delay)) {
+      debug("Circuit breaker of '%s' is %s, parking %s for %s ms (%s parked so far)".f(
+            delivery.getUrl(), breaker, delivery, delay, parked.incrementAndGet()));
+    }
+  }
+
+
+  /**
+   * Schedules delivery specified for the slot reserved in its URL's bucket, without counting it as an attempt.
+   */
+  private void throttle(@NonNull WebhookDelivery delivery, @NonNull TokenBucket bucket, long wait){
+    if (retries.isShutdown()) { return; }
+
+    delivery.reserve();
+    if (schedule(delivery, wait)) {
+      debug("Rate limit of '%s' (%s) reached, delaying %s for %s ms (%s throttled so far)".f(
+            delivery.getUrl(), bucket, delivery, wait, throttled.incrementAndGet()));
+    }
+  }
+
+
+  /**
+   * Network failures, timeouts, throttling and server errors are worth retrying, other client errors are not.
+   */
+  private static boolean isRetryable(int statusCode){
+    return (statusCode < 0) || (statusCode == 408) || (statusCode == 429) || (statusCode >= 500);
+  }
+
+
+  /**
+   * Exponential backoff with "equal jitter": a random delay between half and full exponential one.
+   */
+  private long backoff(int attempts){
+    val delay = Math.min(retryMaxDelay, retryBaseDelay << Math.min(attempts - 1, 30));
+    return (delay / 2) + (long) (random.nextDouble() * (delay / 2));
+  }
+
+
+  /**
+   * POSTs payload to the URL specified without waiting for the response, its outcome is passed to
+   * {@link #posted} on the completion thread.
+   */
+  private void post(@NonNull final WebhookDelivery delivery, @NonNull final CircuitBreaker breaker,
+                    @NonNull final TokenBucket bucket, final int attempts){
+    final String url = delivery.getUrl();
+    metrics.requestStarted();
+    try {
+      httpClient.post(url, delivery.getPayload(), "application/json", new WebhooksHttpClient.Callback() {
+        public void completed(@NonNull WebhooksHttpClient.Response response, @NonNull WebhooksHttpClient.Timing timing) {
+          // allow all successful status codes
+          int status_code = response.getStatusCode();
+          if ( status_code >= 200 && status_code < 300) {
+            log("Payload POST-ed to '%s'".f(url));
+          }
+          else {
+            error("POST-ing payload to '%s' - got %s response: %s".f(url, status_code, response));
+          }
+          finished(delivery, breaker, bucket, attempts, response, timing, false);
+        }
+
+        public void failed(@NonNull IOException error, @NonNull WebhooksHttpClient.Timing timing) {
+          error("Failed to POST payload to '%s'".f(url), error);
+          finished(delivery, breaker, bucket, attempts, null, timing,
+                   error instanceof WebhooksHttpClient.WaitTimeoutException);
+        }
+      });
+    }
+    catch (Throwable t) {
+      error("Failed to POST payload to '%s'".f(url), t);
+      finished(delivery, breaker, bucket, attempts, null, new WebhooksHttpClient.Timing(0, 0), false);
+    }
+  }
+
+
+  /**
+   * Records request's metrics and passes its outcome to the completion thread, called on the HTTP client's I/O thread.
+   */
+  private void finished(@NonNull final WebhookDelivery delivery, @NonNull final CircuitBreaker breaker,
+                        @NonNull final TokenBucket bucket, final int attempts,
+                        final WebhooksHttpClient.Response response, final WebhooksHttpClient.Timing timing,
+                        final boolean waitTimeout){
+    metrics.requestFinished(delivery.getUrl(), (response == null) ? -1 : response.getStatusCode(),
+                            timing.getDuration(), timing.getWaited(), delivery.getPayload().size());
+    try {
+      completions.execute(new Runnable() {
+        public void run() { posted(delivery, breaker, bucket, attempts, response, timing.getDuration(), waitTimeout); }
+      });
+    }
+    catch (RejectedExecutionException ignored) {
+      // Shutting down: delivery stays in the outbox and is sent again after restart
+    }
+  }
+
+
+  private static OverflowPolicy overflowPolicy(String policy){
+    try {
+      return OverflowPolicy.valueOf(policy.trim().toUpperCase());
+    }
+    catch (IllegalArgumentException ignored) {
+      error("Unknown '%s' value '%s', using '%s'".f(DELIVERY_OVERFLOW_PROPERTY, policy, OverflowPolicy.DROP_OLDEST));
+      return OverflowPolicy.DROP_OLDEST;
+    }
+  }
+}
@@ -0,0 +1,1167 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Non-blocking HTTP/1.1 client POST-ing payloads over pooled keep-alive connections.
+ *
+ * A single I/O thread runs a selector over all connections: it connects, performs TLS handshakes, writes requests
+ * and parses responses as their bytes arrive, so thousands of requests can be in flight without a thread held by
+ * each one. Outcome of a request is passed to its {@link Callback} on the I/O thread, with its {@link Timing}. At most
+ * "teamcity.webhooks.http.maxInFlight" requests are in flight, submitting more blocks the caller until one completes.
+ *
+ * A request waits for a connection of its host (a free one, or a new one once the host is resolved) for at most
+ * "teamcity.webhooks.http.maxWait" ms, and fails with {@link WaitTimeoutException} beyond that. Once it gets
+ * the connection it has "teamcity.webhooks.http.timeout" ms to complete: connecting, TLS handshake, sending
+ * the payload and receiving the response all count against it, the time it has waited doesn't. Hosts are resolved
+ * by "teamcity.webhooks.http.resolverThreads" threads when a new connection is opened, so that a slow DNS lookup
+ * holds neither the I/O thread nor the threads submitting requests.
+ *
+ * Connections are pooled per host (scheme, host and port), so that consecutive payloads sent to the same
+ * webhook reuse a warm TCP connection instead of opening a new one for every event. TLS sessions are cached
+ * by the default SSL context and resumed for new connections to the same host. Every host has at most
+ * "teamcity.webhooks.http.maxConnectionsPerHost" connections open, requests beyond that wait for a connection
+ * to become free. Connections not used for "teamcity.webhooks.http.idleTimeout" ms are closed.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhooksHttpClient {
+
+  static final Charset      ASCII         = Charset.forName("US-ASCII");
+  static final Charset      UTF8          = Charset.forName("UTF-8");
+  static final String       USER_AGENT    = "TeamCity-" + PLUGIN_TITLE;
+  static final int          MAX_BODY_KEPT = 1024;
+  static final int          MAX_LINE      = 64 * 1024;
+  static final ByteBuffer[] NOTHING       = { ByteBuffer.allocate(0) };
+
+  /**
+   * Outcome of a request, called on the I/O thread so it should return quickly and never block.
+   */
+  interface Callback {
+    void completed(@NonNull Response response, @NonNull Timing timing);
+    void failed(@NonNull IOException error, @NonNull Timing timing);
+  }
+
+
+  /**
+   * Request has waited for a connection of its host for longer than "teamcity.webhooks.http.maxWait" ms,
+   * nothing of it was sent.
+   */
+  static class WaitTimeoutException extends SocketTimeoutException {
+    WaitTimeoutException(String message) {
+      super(message);
+    }
+  }
+
+  int                        maxConnectionsPerHost;
+  long                       idleTimeout;
+  long                       timeout;
+  long                       maxWait;
+  int                        maxInFlight;
+  Semaphore                  inFlight;
+  SSLContext                 sslContext;
+  Selector                   selector;
+  Thread                     ioThread;
+  ExecutorService            resolver;
+  Queue<Exchange>            submitted = new ConcurrentLinkedQueue<Exchange>();
+  Queue<Resolution>          resolved  = new ConcurrentLinkedQueue<Resolution>();
+  AtomicInteger              idle      = new AtomicInteger();
+  @NonFinal volatile boolean accepting = true;
+  @NonFinal volatile boolean running   = true;
+
+  /**
+   * Pools and the buffer below are used by the I/O thread only.
+   */
+  Map<Host, Pool>            pools      = new HashMap<Host, Pool>();
+  ByteBuffer                 readBuffer = ByteBuffer.allocate(16 * 1024);
+  @NonFinal long             lastTick;
+
+
+  WebhooksHttpClient() {
+    this(defaultSslContext());
+  }
+
+
+  WebhooksHttpClient(@NonNull SSLContext sslContext) {
+    this.sslContext       = sslContext;
+    maxConnectionsPerHost = Math.max(1, TeamCityProperties.getInteger(HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY,
+                                                                      HTTP_MAX_CONNECTIONS_PER_HOST));
+    idleTimeout           = Math.max(0, TeamCityProperties.getLong(HTTP_IDLE_TIMEOUT_PROPERTY, HTTP_IDLE_TIMEOUT));
+    timeout               = Math.max(1, TeamCityProperties.getLong(HTTP_TIMEOUT_PROPERTY, HTTP_TIMEOUT));
+    maxWait               = Math.max(1, TeamCityProperties.getLong(HTTP_MAX_WAIT_PROPERTY, HTTP_MAX_WAIT));
+    maxInFlight           = Math.max(1, TeamCityProperties.getInteger(HTTP_MAX_IN_FLIGHT_PROPERTY, HTTP_MAX_IN_FLIGHT));
+    inFlight              = new Semaphore(maxInFlight);
+    resolver              = Executors.newFixedThreadPool(Math.max(1, TeamCityProperties.getInteger(HTTP_RESOLVER_THREADS_PROPERTY,
+                                                                                                   HTTP_RESOLVER_THREADS)),
+                                                         new ThreadFactoryBuilder().setDaemon(true).
+                                                                                    setNameFormat(PLUGIN_NAME + "-http-dns-%d").
+                                                                                    build());
+    try {
+      selector = Selector.open();
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Failed to start HTTP client", e);
+    }
+    ioThread = new ThreadFactoryBuilder().setDaemon(true).
+                                          setNameFormat(PLUGIN_NAME + "-http-io-%d").
+                                          build().
+                                          newThread(new Runnable() {
+                                            public void run() { loop(); }
+                                          });
+    ioThread.start();
+  }
+
+
+  /**
+   * Submits POST of the body specified to the URL specified, blocks only while "maxInFlight" requests are in flight.
+   * A failure on a reused connection before any of the request is written (server has closed it meanwhile)
+   * is retried on another idle connection or on a new one. Once request bytes are written the server may have
+   * processed them, so the failure is reported and it's up to the caller to send the request again.
+   *
+   * @throws IOException if the URL is invalid or the client is shut down, callback is not called then
+   */
+  void post(@NonNull String url, @NonNull EncodedPayload body, @NonNull String contentType,
+            @NonNull Callback callback) throws IOException {
+    val target  = new URL(url);
+    val host    = Host.of(target);
+    val request = request(target, host, body, contentType);
+
+    if (! accepting) {
+      throw new IOException("HTTP client is shut down");
+    }
+    try {
+      inFlight.acquire();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a request slot");
+    }
+    if (! accepting) {
+      inFlight.release();
+      throw new IOException("HTTP client is shut down");
+    }
+
+    submitted.add(new Exchange(host, request, body, callback, System.currentTimeMillis()));
+    selector.wakeup();
+  }
+
+
+  /**
+   * POSTs body specified to the URL specified and waits for the response.
+   */
+  Response post(@NonNull String url, @NonNull EncodedPayload body, @NonNull String contentType) throws IOException {
+    final SettableFuture<Response> result = SettableFuture.create();
+    post(url, body, contentType, new Callback() {
+      public void completed(@NonNull Response response, @NonNull Timing timing) { result.set(response); }
+      public void failed(@NonNull IOException error, @NonNull Timing timing)    { result.setException(error); }
+    });
+
+    try {
+      return result.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for response of '%s'".f(url));
+    }
+    catch (ExecutionException e) {
+      throw (IOException) e.getCause();
+    }
+  }
+
+
+  /**
+   * Stops taking requests, waits up to "timeout" ms for requests in flight, fails the rest and closes all connections.
+   * Requests still waiting for a connection are failed right away.
+   */
+  void shutdown(){
+    accepting = false;
+    try {
+      if (inFlight.tryAcquire(maxInFlight, timeout, TimeUnit.MILLISECONDS)) {
+        // Callers still waiting for a slot give up
+        inFlight.release(maxInFlight);
+      }
+      else {
+        error("HTTP requests in flight didn't complete in %s ms".f(timeout));
+      }
+      running = false;
+      selector.wakeup();
+      ioThread.join(timeout);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    resolver.shutdownNow();
+
+    // Submitted or resolved while the I/O thread was stopping
+    Exchange exchange;
+    while ((exchange = submitted.poll()) != null) {
+      complete(exchange, null, new IOException("HTTP client is shut down"));
+    }
+    Resolution resolution;
+    while ((resolution = resolved.poll()) != null) {
+      complete(resolution.exchange, null, new IOException("HTTP client is shut down"));
+    }
+  }
+
+
+  int idleConnections(){
+    return idle.get();
+  }
+
+
+  private void loop(){
+    while (running) {
+      try {
+        selector.select(HTTP_TICK);
+
+        Exchange exchange;
+        while ((exchange = submitted.poll()) != null) {
+          val pool = pool(exchange.host);
+          pool.waiting.addLast(exchange);
+          assign(pool);
+        }
+
+        Resolution resolution;
+        while ((resolution = resolved.poll()) != null) {
+          connect(resolution);
+        }
+
+        val keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          val key = keys.next();
+          keys.remove();
+          handle(key);
+        }
+
+        val now = System.currentTimeMillis();
+        if (now - lastTick >= HTTP_TICK) {
+          lastTick = now;
+          expire(now);
+        }
+      }
+      catch (Throwable t) {
+        error("HTTP client I/O loop failed", t);
+      }
+    }
+    closeAll();
+  }
+
+
+  private Pool pool(@NonNull Host host){
+    val pool = pools.get(host);
+    if (pool != null) { return pool; }
+    val newPool = new Pool();
+    pools.put(host, newPool);
+    return newPool;
+  }
+
+
+  /**
+   * Starts requests waiting in the pool on idle connections or on new ones, as long as the pool has room.
+   */
+  private void assign(@NonNull Pool pool){
+    Exchange exchange;
+    while ((exchange = pool.waiting.peek()) != null) {
+      val connection = pool.idle.poll();
+      if (connection != null) {
+        idle.decrementAndGet();
+        pool.waiting.poll();
+        begin(connection, exchange);
+      }
+      else if (pool.open < maxConnectionsPerHost) {
+        pool.waiting.poll();
+        open(pool, exchange);
+      }
+      else {
+        return;
+      }
+    }
+  }
+
+
+  /**
+   * Opens a new connection of the pool for the exchange specified, once its host is resolved by the resolver
+   * threads. The connection counts as open from now on.
+   */
+  private void open(@NonNull final Pool pool, @NonNull final Exchange exchange){
+    pool.open++;
+    pool.resolving.add(exchange);
+    try {
+      resolver.execute(new Runnable() {
+        public void run() {
+          // Resolved for every new connection, InetAddress caches lookups
+          resolved.add(new Resolution(pool, exchange, new InetSocketAddress(exchange.host.name, exchange.host.port)));
+          selector.wakeup();
+        }
+      });
+    }
+    catch (RejectedExecutionException ignored) {
+      pool.open--;
+      pool.resolving.remove(exchange);
+      complete(exchange, null, new IOException("HTTP client is shut down"));
+    }
+  }
+
+
+  /**
+   * Host of the exchange is resolved: connects to it, unless the exchange has timed out waiting meanwhile.
+   */
+  private void connect(@NonNull Resolution resolution){
+    val pool     = resolution.pool;
+    val exchange = resolution.exchange;
+    if ((! pool.resolving.remove(exchange)) || resolution.address.isUnresolved()) {
+      pool.open--;
+      if (! exchange.completed) { complete(exchange, null, new UnknownHostException(exchange.host.name)); }
+      assign(pool);
+      return;
+    }
+
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      channel.socket().setKeepAlive(true);
+    }
+    catch (IOException e) {
+      if (channel != null) {
+        try { channel.close(); } catch (IOException ignored) {}
+      }
+      pool.open--;
+      complete(exchange, null, e);
+      assign(pool);
+      return;
+    }
+
+    val connection = new Connection(exchange.host, pool, channel);
+    try {
+      connection.key = channel.register(selector, 0, connection);
+      begin(connection, exchange);
+      if (channel.connect(resolution.address)) {
+        connected(connection);
+      }
+      else {
+        connection.interest(SelectionKey.OP_CONNECT);
+      }
+    }
+    catch (IOException e) {
+      failed(connection, e);
+    }
+  }
+
+
+  /**
+   * Starts exchange on the connection specified, right away if it's connected already.
+   */
+  private void begin(@NonNull Connection connection, @NonNull Exchange exchange){
+    if (exchange.started == 0) {
+      exchange.started  = System.currentTimeMillis();
+      exchange.deadline = exchange.started + timeout;
+    }
+    connection.exchange = exchange;
+    connection.sent     = false;
+    connection.parser   = new ResponseParser();
+    connection.outgoing = new ByteBuffer[]{ ByteBuffer.wrap(exchange.request), exchange.body.buffer() };
+    if (connection.connected) {
+      try {
+        progress(connection);
+      }
+      catch (IOException e) {
+        failed(connection, e);
+      }
+    }
+  }
+
+
+  private void handle(@NonNull SelectionKey key){
+    val connection = (Connection) key.attachment();
+    try {
+      if (! key.isValid()) { return; }
+      if (key.isConnectable()) {
+        if (connection.channel.finishConnect()) { connected(connection); }
+      }
+      else {
+        progress(connection);
+      }
+    }
+    catch (IOException e) {
+      failed(connection, e);
+    }
+    catch (RuntimeException e) {
+      // SSLEngine reports some of its failures unchecked
+      failed(connection, (IOException) new IOException(e.toString()).initCause(e));
+    }
+  }
+
+
+  private void connected(@NonNull Connection connection) throws IOException {
+    connection.connected = true;
+    if (connection.host.secure) {
+      val engine = sslContext.createSSLEngine(connection.host.name, connection.host.port);
+      engine.setUseClientMode(true);
+      verifyHostname(engine);
+      val session = engine.getSession();
+      connection.engine = engine;
+      connection.netIn  = ByteBuffer.allocate(session.getPacketBufferSize());
+      connection.netOut = (ByteBuffer) ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+      connection.appIn  = ByteBuffer.allocate(session.getApplicationBufferSize());
+      engine.beginHandshake();
+    }
+    progress(connection);
+  }
+
+
+  /**
+   * Moves connection forward as far as it can go without blocking: writes what's pending, reads what's available.
+   */
+  private void progress(@NonNull Connection connection) throws IOException {
+    if (connection.exchange == null) {
+      // Idle connection is readable: server has closed it (or sent something unexpected)
+      close(connection);
+      return;
+    }
+
+    if (connection.engine == null) {
+      progressPlain(connection);
+    }
+    else {
+      progressTls(connection);
+    }
+  }
+
+
+  private void progressPlain(@NonNull Connection connection) throws IOException {
+    val outgoing = connection.outgoing;
+    if (outgoing != null) {
+      if (connection.channel.write(outgoing) > 0) { connection.sent = true; }
+      if (outgoing[outgoing.length - 1].hasRemaining()) {
+        connection.interest(SelectionKey.OP_WRITE);
+        return;
+      }
+      connection.outgoing = null;
+      // Channel copies heap buffers to a temporary direct buffer
+      PayloadCounters.copied(connection.exchange.body.size());
+    }
+
+    connection.interest(SelectionKey.OP_READ);
+    while (true) {
+      readBuffer.clear();
+      val n = connection.channel.read(readBuffer);
+      if (n < 0) {
+        endOfStream(connection);
+        return;
+      }
+      if (n == 0) {
+        return;
+      }
+      readBuffer.flip();
+      if (connection.parser.feed(readBuffer)) {
+        completed(connection);
+        return;
+      }
+    }
+  }
+
+
+  private void progressTls(@NonNull Connection connection) throws IOException {
+    val engine = connection.engine;
+    while (true) {
+      if (connection.netOut.hasRemaining()) {
+        connection.channel.write(connection.netOut);
+        if (connection.netOut.hasRemaining()) {
+          connection.interest(SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+
+      val status = engine.getHandshakeStatus();
+      if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) { task.run(); }
+        continue;
+      }
+      if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+        wrap(connection, NOTHING);
+        continue;
+      }
+      // NEED_UNWRAP, or NEED_UNWRAP_AGAIN of Java 9+
+      if (status.name().startsWith("NEED_UNWRAP")) {
+        val unwrapped = unwrap(connection);
+        if (unwrapped < 0) { throw new EOFException("Connection closed during TLS handshake"); }
+        if (unwrapped == 0) {
+          connection.interest(SelectionKey.OP_READ);
+          return;
+        }
+        continue;
+      }
+
+      // Handshake is done: request is sent, then response is received
+      val outgoing = connection.outgoing;
+      if (outgoing != null) {
+        // Counts as sent once encrypted, a few bytes early
+        connection.sent = true;
+        wrap(connection, outgoing);
+        if (! outgoing[outgoing.length - 1].hasRemaining()) { connection.outgoing = null; }
+        continue;
+      }
+
+      val unwrapped = unwrap(connection);
+      if (unwrapped < 0) {
+        endOfStream(connection);
+        return;
+      }
+      if (unwrapped == 0) {
+        connection.interest(SelectionKey.OP_READ);
+        return;
+      }
+      connection.appIn.flip();
+      val done = connection.parser.feed(connection.appIn);
+      connection.appIn.clear();
+      if (done) {
+        completed(connection);
+        return;
+      }
+    }
+  }
+
+
+  /**
+   * Encrypts bytes specified into connection's outgoing network buffer, which should be flushed already.
+   */
+  private static void wrap(@NonNull Connection connection, @NonNull ByteBuffer[] source) throws IOException {
+    while (true) {
+      connection.netOut.compact();
+      val result = connection.engine.wrap(source, connection.netOut);
+      connection.netOut.flip();
+
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          val larger = ByteBuffer.allocate(connection.netOut.capacity() * 2);
+          larger.put(connection.netOut).flip();
+          connection.netOut = larger;
+          continue;
+        case CLOSED:
+          throw new EOFException("TLS session is closed");
+        default:
+          return;
+      }
+    }
+  }
+
+
+  /**
+   * Decrypts bytes received into connection's incoming application buffer, reading from the channel as needed.
+   *
+   * @return 1 if something was decrypted (or consumed by the handshake), 0 if more bytes have to arrive first,
+   *         -1 if connection is closed
+   */
+  private static int unwrap(@NonNull Connection connection) throws IOException {
+    while (true) {
+      connection.netIn.flip();
+      val result = connection.engine.unwrap(connection.netIn, connection.appIn);
+      connection.netIn.compact();
+
+      switch (result.getStatus()) {
+        case OK:
+          if ((result.bytesConsumed() > 0) || (result.bytesProduced() > 0)) { return 1; }
+          break;
+        case BUFFER_OVERFLOW:
+          // Application buffer is drained after every unwrap, so it only overflows when it's too small
+          connection.appIn = enlarge(connection.appIn, connection.engine.getSession().getApplicationBufferSize());
+          continue;
+        case BUFFER_UNDERFLOW:
+          if (! connection.netIn.hasRemaining()) {
+            connection.netIn = enlarge(connection.netIn, connection.engine.getSession().getPacketBufferSize());
+          }
+          break;
+        case CLOSED:
+          return -1;
+      }
+
+      val n = connection.channel.read(connection.netIn);
+      if (n < 0)  { return -1; }
+      if (n == 0) { return 0; }
+    }
+  }
+
+
+  /**
+   * Larger copy of a buffer being filled.
+   */
+  private static ByteBuffer enlarge(@NonNull ByteBuffer buffer, int size){
+    val larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+
+
+  /**
+   * Response is received: connection goes back to the pool if it can be kept alive.
+   */
+  private void completed(@NonNull Connection connection){
+    val exchange = connection.exchange;
+    val response = connection.parser.response();
+    connection.exchange = null;
+    connection.parser   = null;
+
+    if (response.keepAlive && (idleTimeout > 0) && running) {
+      connection.reused   = true;
+      connection.lastUsed = System.currentTimeMillis();
+      // Read interest stays, to notice the server closing the connection while it's idle
+      connection.interest(SelectionKey.OP_READ);
+      connection.pool.idle.addFirst(connection);
+      idle.incrementAndGet();
+    }
+    else {
+      close(connection);
+    }
+
+    complete(exchange, response, null);
+    assign(connection.pool);
+  }
+
+
+  private void endOfStream(@NonNull Connection connection){
+    if (connection.parser.endOfStream()) {
+      completed(connection);
+    }
+    else {
+      failed(connection, new EOFException(connection.parser.started ? "Connection closed while reading response" :
+                                                                      "Connection closed before response was received"));
+    }
+  }
+
+
+  /**
+   * Connection has failed: it is closed and its request is either retried on another connection or failed.
+   */
+  private void failed(@NonNull Connection connection, @NonNull IOException e){
+    val exchange = connection.exchange;
+    val retry    = connection.reused && (! connection.sent);
+    close(connection);
+
+    if (exchange != null) {
+      if (retry && (System.currentTimeMillis() < exchange.deadline)) {
+        // Server has closed the kept-alive connection meanwhile, nothing of the request has reached it
+        connection.pool.waiting.addFirst(exchange);
+      }
+      else {
+        complete(exchange, null, e);
+      }
+    }
+    assign(connection.pool);
+  }
+
+
+  private void close(@NonNull Connection connection){
+    if (connection.closed) { return; }
+    connection.closed   = true;
+    connection.exchange = null;
+    connection.pool.open--;
+    if (connection.pool.idle.remove(connection)) { idle.decrementAndGet(); }
+    if (connection.key != null) { connection.key.cancel(); }
+    try { connection.channel.close(); } catch (IOException ignored) {}
+  }
+
+
+  private void complete(@NonNull Exchange exchange, Response response, IOException error){
+    if (exchange.completed) { return; }
+    exchange.completed = true;
+    inFlight.release();
+
+    val now    = System.currentTimeMillis();
+    val timing = (exchange.started == 0) ? new Timing(now - exchange.submitted, 0) :
+                                           new Timing(exchange.started - exchange.submitted, now - exchange.started);
+    try {
+      if (response != null) { exchange.callback.completed(response, timing); }
+      else                  { exchange.callback.failed(error, timing); }
+    }
+    catch (Throwable t) {
+      error("HTTP request callback failed", t);
+    }
+  }
+
+
+  /**
+   * Fails requests past their deadline, closes connections idle for too long and forgets unused pools.
+   */
+  private void expire(long now){
+    for (val key : new ArrayList<SelectionKey>(selector.keys())){
+      val connection = (Connection) key.attachment();
+      if (connection.closed) { continue; }
+      if ((connection.exchange != null) && (connection.exchange.deadline <= now)) {
+        failed(connection, new SocketTimeoutException("Request to '%s' timed out after %s ms".f(connection.host, timeout)));
+      }
+      else if ((connection.exchange == null) && (connection.lastUsed < now - idleTimeout)) {
+        close(connection);
+      }
+    }
+
+    val entries = pools.entrySet().iterator();
+    while (entries.hasNext()) {
+      val entry = entries.next();
+      val pool  = entry.getValue();
+      expireWaiting(entry.getKey(), pool.waiting, now);
+      // Connection stays open (and counted) until the resolver is done with its host
+      expireWaiting(entry.getKey(), pool.resolving, now);
+      if ((pool.open == 0) && pool.waiting.isEmpty()) {
+        entries.remove();
+      }
+    }
+  }
+
+
+  /**
+   * Fails requests that have waited for a connection for longer than "maxWait" ms.
+   */
+  private void expireWaiting(@NonNull Host host, @NonNull List<Exchange> exchanges, long now){
+    val waiting = exchanges.iterator();
+    while (waiting.hasNext()) {
+      val exchange = waiting.next();
+      if (exchange.submitted + maxWait <= now) {
+        waiting.remove();
+        complete(exchange, null, new WaitTimeoutException("Request to '%s' timed out after %s ms waiting for a connection".f(
+                                 host, maxWait)));
+      }
+    }
+  }
+
+
+  private void closeAll(){
+    val error = new IOException("HTTP client is shut down");
+    for (val key : new ArrayList<SelectionKey>(selector.keys())){
+      val connection = (Connection) key.attachment();
+      val exchange   = connection.exchange;
+      close(connection);
+      if (exchange != null) { complete(exchange, null, error); }
+    }
+    for (val pool : pools.values()){
+      Exchange exchange;
+      while ((exchange = pool.waiting.poll()) != null)   { complete(exchange, null, error); }
+      while ((exchange = pool.resolving.poll()) != null) { complete(exchange, null, error); }
+    }
+    Exchange exchange;
+    while ((exchange = submitted.poll()) != null) { complete(exchange, null, error); }
+    Resolution resolution;
+    while ((resolution = resolved.poll()) != null) { complete(resolution.exchange, null, error); }
+    try { selector.close(); } catch (IOException ignored) {}
+  }
+
+
+  private static SSLContext defaultSslContext(){
+    try {
+      return SSLContext.getDefault();
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Failed to start HTTP client", e);
+    }
+  }
+
+
+  /**
+   * Enables hostname verification on Java 7+ (SSLParameters.setEndpointIdentificationAlgorithm),
+   * the plugin still compiles for Java 6 hence reflection.
+   */
+  private static void verifyHostname(@NonNull SSLEngine engine){
+    try {
+      SSLParameters parameters = engine.getSSLParameters();
+      parameters.getClass().getMethod("setEndpointIdentificationAlgorithm", String.class).invoke(parameters, "HTTPS");
+      engine.setSSLParameters(parameters);
+    }
+    catch (NoSuchMethodException ignored) {
+      // Java 6
+    }
+    catch (Exception e) {
+      error("Failed to enable TLS hostname verification", e);
+    }
+  }
+
+
+  private static byte[] request(@NonNull URL target, @NonNull Host host, @NonNull EncodedPayload body, @NonNull String contentType){
+    val path    = isEmpty(target.getFile()) ? "/" : target.getFile();
+    val request = new StringBuilder(256);
+    request.append("POST ").append(path).append(" HTTP/1.1\r\n").
+            append("Host: ").append(host.header()).append("\r\n").
+            append("User-Agent: ").append(USER_AGENT).append("\r\n").
+            append("Content-Type: ").append(contentType).append("\r\n").
+            append("Content-Length: ").append(body.size()).append("\r\n").
+            append("Connection: keep-alive\r\n");
+
+    if (body.contentEncoding() != null) {
+      request.append("Content-Encoding: ").append(body.contentEncoding()).append("\r\n");
+    }
+
+    if (notEmpty(target.getUserInfo())) {
+      request.append("Authorization: Basic ").
+              append(BaseEncoding.base64().encode(target.getUserInfo().getBytes(UTF8))).
+              append("\r\n");
+    }
+
+    val bytes = request.append("\r\n").toString().getBytes(ASCII);
+    PayloadCounters.allocated(bytes.length);
+    return bytes;
+  }
+
+
+  /**
+   * Response received: status, headers and the beginning of the body.
+   */
+  @Getter
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  static class Response {
+    int                 statusCode;
+    String              reason;
+    Map<String, String> headers;
+    String              body;
+    boolean             keepAlive;
+
+    /**
+     * Delay (ms) asked for by "Retry-After" header, given either in seconds or as an HTTP date, -1 if there's none.
+     */
+    long retryAfter(){
+      val retryAfter = headers.get("retry-after");
+      if (retryAfter == null) { return -1; }
+      try {
+        return Math.max(0, Math.min(Long.parseLong(retryAfter.trim()), Integer.MAX_VALUE)) * 1000;
+      }
+      catch (NumberFormatException ignored) {}
+      try {
+        val format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        return Math.max(0, format.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+      }
+      catch (ParseException ignored) {
+        return -1;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "%s %s%s".f(statusCode, reason, (isEmpty(body) ? "" : "\n" + body));
+    }
+  }
+
+
+  /**
+   * How long (ms) a request waited for a connection of its host, including resolving the host, and how long
+   * it took from getting the connection, 0 if it got none.
+   */
+  @Getter
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  static class Timing {
+    long waited;
+    long duration;
+  }
+
+
+  /**
+   * Connections are pooled by scheme, host and port.
+   */
+  @EqualsAndHashCode
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Host {
+    boolean secure;
+    String  name;
+    int     port;
+
+    static Host of(@NonNull URL url) throws IOException {
+      val protocol = url.getProtocol().toLowerCase(Locale.ENGLISH);
+      if (! ("http".equals(protocol) || "https".equals(protocol))) {
+        throw new IOException("Unsupported protocol '%s'".f(url));
+      }
+      val secure = "https".equals(protocol);
+      return new Host(secure, url.getHost().toLowerCase(Locale.ENGLISH),
+                      (url.getPort() < 0 ? url.getDefaultPort() : url.getPort()));
+    }
+
+    String header(){
+      return (port == (secure ? 443 : 80)) ? name : name + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+      return (secure ? "https://" : "http://") + header();
+    }
+  }
+
+
+  /**
+   * Single request: where it goes, what it sends and who's waiting for its outcome.
+   */
+  private static class Exchange {
+    final Host           host;
+    final byte[]         request;
+    final EncodedPayload body;
+    final Callback       callback;
+    final long           submitted;
+
+    /**
+     * Time the request got a connection and the time it has to complete by, 0 while it waits for a connection.
+     */
+    long                 started;
+    long                 deadline;
+    boolean              completed;
+
+    Exchange(@NonNull Host host, @NonNull byte[] request, @NonNull EncodedPayload body,
+             @NonNull Callback callback, long submitted) {
+      this.host      = host;
+      this.request   = request;
+      this.body      = body;
+      this.callback  = callback;
+      this.submitted = submitted;
+    }
+  }
+
+
+  /**
+   * Host of the exchange resolved, for a new connection of the pool.
+   */
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Resolution {
+    Pool              pool;
+    Exchange          exchange;
+    InetSocketAddress address;
+  }
+
+
+  /**
+   * Connections of a single host: idle ones, the number of open ones, requests waiting for a connection
+   * and requests waiting for the host to be resolved for their new connection.
+   */
+  private static class Pool {
+    final LinkedList<Connection> idle      = new LinkedList<Connection>();
+    final LinkedList<Exchange>   waiting   = new LinkedList<Exchange>();
+    final LinkedList<Exchange>   resolving = new LinkedList<Exchange>();
+    int                          open;
+  }
+
+
+  private static class Connection {
+    final Host          host;
+    final Pool          pool;
+    final SocketChannel channel;
+    SelectionKey        key;
+    boolean             connected;
+    boolean             reused;
+    boolean             closed;
+
+    /**
+     * Set once bytes of the current request are written, the request can't be safely sent again then.
+     */
+    boolean             sent;
+    long                lastUsed;
+
+    /**
+     * Request being sent (headers and body), null once it's sent.
+     */
+    ByteBuffer[]        outgoing;
+    Exchange            exchange;
+    ResponseParser      parser;
+
+    /**
+     * TLS engine and its buffers, null for plain connections: encrypted bytes to send (ready to be written),
+     * encrypted bytes received and decrypted ones (both being filled).
+     */
+    SSLEngine           engine;
+    ByteBuffer          netOut;
+    ByteBuffer          netIn;
+    ByteBuffer          appIn;
+
+    Connection(@NonNull Host host, @NonNull Pool pool, @NonNull SocketChannel channel) {
+      this.host    = host;
+      this.pool    = pool;
+      this.channel = channel;
+    }
+
+    void interest(int ops){
+      key.interestOps(ops);
+    }
+  }
+
+
+  /**
+   * Parses response incrementally, as its bytes arrive. Interim (1xx) responses are skipped, only the first
+   * MAX_BODY_KEPT bytes of the body are kept for logging.
+   */
+  private static class ResponseParser {
+    enum State { STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE }
+
+    final StringBuilder         line    = new StringBuilder(64);
+    final ByteArrayOutputStream body    = new ByteArrayOutputStream();
+    State                       state   = State.STATUS;
+    Map<String, String>         headers = new LinkedHashMap<String, String>();
+    String                      version;
+    String                      reason;
+    int                         statusCode;
+    long                        remaining;
+    boolean                     keepAlive;
+    boolean                     started;
+
+    /**
+     * Consumes bytes specified.
+     *
+     * @return true once the response is complete
+     */
+    boolean feed(@NonNull ByteBuffer bytes) throws IOException {
+      started |= bytes.hasRemaining();
+      while (bytes.hasRemaining() && (state != State.DONE)) {
+        if ((state == State.BODY) || (state == State.CHUNK_DATA) || (state == State.UNTIL_CLOSE)) {
+          val length = (int) Math.min(bytes.remaining(), remaining);
+          val kept   = Math.min(length, MAX_BODY_KEPT - body.size());
+          for (int j = 0; j < kept; j++) { body.write(bytes.get()); }
+          bytes.position(bytes.position() + length - kept);
+          remaining -= length;
+          if (remaining == 0) { state = (state == State.CHUNK_DATA) ? State.CHUNK_END : State.DONE; }
+          continue;
+        }
+
+        val b = bytes.get();
+        if (b != '\n') {
+          if (line.length() == MAX_LINE) { throw new IOException("Response line is longer than %s bytes".f(MAX_LINE)); }
+          line.append((char) (b & 0xFF));
+          continue;
+        }
+        val length = line.length();
+        val text   = ((length > 0) && (line.charAt(length - 1) == '\r')) ? line.substring(0, length - 1) : line.toString();
+        line.setLength(0);
+        line(text);
+      }
+
+      if ((state == State.DONE) && bytes.hasRemaining()) {
+        // Bytes beyond the response, connection is not reused
+        keepAlive = false;
+        bytes.position(bytes.limit());
+      }
+      return (state == State.DONE);
+    }
+
+    /**
+     * Connection is closed, returns true if this completes the response.
+     */
+    boolean endOfStream(){
+      if (state == State.UNTIL_CLOSE) { state = State.DONE; }
+      return (state == State.DONE);
+    }
+
+    Response response(){
+      return new Response(statusCode, reason, headers, new String(body.toByteArray(), UTF8), keepAlive);
+    }
+
+    private void line(@NonNull String text) throws IOException {
+      switch (state) {
+        case STATUS:
+          if (isEmpty(text)) { return; }
+          val parts = text.split(" ", 3);
+          if ((parts.length < 2) || (! parts[0].startsWith("HTTP/"))) {
+            throw new IOException("Invalid response status line '%s'".f(text));
+          }
+          try { statusCode = Integer.parseInt(parts[1]); }
+          catch (NumberFormatException e) { throw new IOException("Invalid response status line '%s'".f(text)); }
+          version = parts[0];
+          reason  = (parts.length > 2 ? parts[2] : "");
+          headers = new LinkedHashMap<String, String>();
+          state   = State.HEADERS;
+          return;
+
+        case HEADERS:
+          if (isEmpty(text)) {
+            headersReceived();
+            return;
+          }
+          val colon = text.indexOf(':');
+          if (colon > 0) {
+            headers.put(text.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), text.substring(colon + 1).trim());
+          }
+          return;
+
+        case CHUNK_SIZE:
+          val extension = text.indexOf(';');
+          final long size;
+          try { size = Long.parseLong((extension < 0 ? text : text.substring(0, extension)).trim(), 16); }
+          catch (NumberFormatException e) { throw new IOException("Invalid chunk size '%s'".f(text)); }
+          if (size < 0) { throw new IOException("Invalid chunk size '%s'".f(text)); }
+          remaining = size;
+          state     = (size == 0) ? State.TRAILERS : State.CHUNK_DATA;
+          return;
+
+        case CHUNK_END:
+          state = State.CHUNK_SIZE;
+          return;
+
+        case TRAILERS:
+          if (isEmpty(text)) { state = State.DONE; }
+          return;
+
+        default:
+      }
+    }
+
+    private void headersReceived() throws IOException {
+      if ((statusCode >= 100) && (statusCode < 200)) {
+        // Interim response, the final one follows
+        state = State.STATUS;
+        return;
+      }
+
+      val connection = headers.get("connection");
+      keepAlive = "HTTP/1.0".equals(version) ? "keep-alive".equalsIgnoreCase(connection) : (! "close".equalsIgnoreCase(connection));
+
+      if ((statusCode == 204) || (statusCode == 304)) {
+        state = State.DONE;
+      }
+      else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+        state = State.CHUNK_SIZE;
+      }
+      else if (headers.containsKey("content-length")) {
+        try { remaining = Long.parseLong(headers.get("content-length")); }
+        catch (NumberFormatException e) { remaining = -1; }
+        if (remaining < 0) { throw new IOException("Invalid Content-Length '%s'".f(headers.get("content-length"))); }
+        state = (remaining == 0) ? State.DONE : State.BODY;
+      }
+      else {
+        // Body is delimited by connection close
+        remaining = Long.MAX_VALUE;
+        state     = State.UNTIL_CLOSE;
+        keepAlive = false;
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.collect.ImmutableList;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.SUser;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Webhooks builds of a project are POST-ed to: its own webhooks and webhooks of all its ancestor projects.
+ * A webhook of a project overrides the ancestor's webhook with the same URL.
+ *
+ * Webhooks of a project are resolved once and kept until settings or the project tree change (a project is
+ * created, removed, moved or gets a new external id), so a build event never walks the project hierarchy.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksIndex extends BuildServerAdapter {
+
+  WebhooksSettings   settings;
+  SBuildServer       buildServer;
+  ProjectManager     projectManager;
+
+  @NonFinal volatile Resolved resolved;
+
+
+  public WebhooksIndex(@NonNull WebhooksSettings settings,
+                       @NonNull SBuildServer buildServer,
+                       @NonNull ProjectManager projectManager) {
+    this.settings       = settings;
+    this.buildServer    = buildServer;
+    this.projectManager = projectManager;
+    resolved            = new Resolved(settings.version());
+  }
+
+
+  public void register(){
+    buildServer.addListener(this);
+  }
+
+
+  /**
+   * Webhooks of the project (by external id) and of its ancestors.
+   */
+  @NonNull
+  Collection<WebhookEndpoint> getEndpoints(@NonNull String projectId){
+    Resolved current = resolved;
+    if (current.version != settings.version()) {
+      current  = new Resolved(settings.version());
+      resolved = current;
+    }
+
+    val endpoints = current.endpoints.get(projectId);
+    if (endpoints != null) { return endpoints; }
+
+    // Resolved with the project tree and settings of now, dropped with "current" if they change meanwhile
+    val newEndpoints = resolve(projectId);
+    val existing     = current.endpoints.putIfAbsent(projectId, newEndpoints);
+    return (existing != null) ? existing : newEndpoints;
+  }
+
+
+  /**
+   * Webhooks the project (by external id) inherits from its ancestors, mapped to the ancestor's full name.
+   * Webhooks overridden by the project itself are not included.
+   */
+  @NonNull
+  Map<String, String> getInherited(@NonNull String projectId){
+    val inherited = new LinkedHashMap<String, String>();
+    val project   = projectManager.findProjectByExternalId(projectId);
+    if (project == null) { return inherited; }
+
+    val own = settings.getUrls(projectId);
+    for (SProject ancestor = project.getParentProject(); ancestor != null; ancestor = ancestor.getParentProject()){
+      for (val url : settings.getUrls(ancestor.getExternalId())){
+        if ((! own.contains(url)) && (! inherited.containsKey(url))) {
+          inherited.put(url, ancestor.getFullName());
+        }
+      }
+    }
+    return inherited;
+  }
+
+
+  @Override
+  public void projectCreated(@NonNull String projectId, SUser user) {
+    invalidate();
+  }
+
+
+  @Override
+  public void projectRemoved(@NonNull String projectId) {
+    invalidate();
+  }
+
+
+  @Override
+  public void projectMoved(@NonNull SProject project, @NonNull SProject originalParentProject) {
+    invalidate();
+  }
+
+
+  @Override
+  public void projectExternalIdChanged(@NonNull SProject project, @NonNull String oldExternalId, @NonNull String newExternalId) {
+    invalidate();
+  }
+
+
+  @Override
+  public void serverConfigurationReloaded() {
+    invalidate();
+  }
+
+
+  private void invalidate(){
+    resolved = new Resolved(settings.version());
+  }
+
+
+  private Collection<WebhookEndpoint> resolve(@NonNull String projectId){
+    val project = projectManager.findProjectByExternalId(projectId);
+    if (project == null) {
+      return ImmutableList.copyOf(settings.getEndpoints(projectId));
+    }
+
+    val endpoints = new LinkedHashMap<String, WebhookEndpoint>();
+    for (SProject p = project; p != null; p = p.getParentProject()){
+      for (val endpoint : settings.getEndpoints(p.getExternalId())){
+        if (! endpoints.containsKey(endpoint.getUrl())) {
+          endpoints.put(endpoint.getUrl(), endpoint);
+        }
+      }
+    }
+    return ImmutableList.copyOf(endpoints.values());
+  }
+
+
+  /**
+   * Webhooks resolved for the settings version specified.
+   */
+  private static class Resolved {
+    final long                                             version;
+    final ConcurrentMap<String, Collection<WebhookEndpoint>> endpoints =
+      new ConcurrentHashMap<String, Collection<WebhookEndpoint>>();
+
+    Resolved(long version) {
+      this.version = version;
+    }
+  }
+}
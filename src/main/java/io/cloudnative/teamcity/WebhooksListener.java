@@ -3,21 +3,18 @@ package io.cloudnative.teamcity;
 import static io.cloudnative.teamcity.WebhookPayload.*;
 import static io.cloudnative.teamcity.WebhooksConstants.*;
 import static io.cloudnative.teamcity.WebhooksUtils.*;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.google.gson.*;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
 import jetbrains.buildServer.vcs.*;
 import jetbrains.buildServer.BuildProblemData;
-import jodd.http.HttpRequest;
-import jodd.http.net.SocketHttpConnection;
 import lombok.*;
 import lombok.experimental.ExtensionMethod;
 import lombok.experimental.FieldDefaults;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.text.DateFormat;
 
 
@@ -26,13 +23,17 @@ import java.text.DateFormat;
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebhooksListener extends BuildServerAdapter {
 
-  @NonNull WebhooksSettings settings;
-  @NonNull SBuildServer     buildServer;
-  @NonNull ServerPaths      serverPaths;
-  @NonNull ArtifactsGuard   artifactsGuard;
-
-  String DateFormat = "yyyy-MM-dd'T'HH:mm:ssZ";
-  Gson gson = new GsonBuilder().setPrettyPrinting().setDateFormat(DateFormat).serializeNulls().create();
+  @NonNull WebhooksIndex        index;
+  @NonNull SBuildServer         buildServer;
+  @NonNull ArtifactsGuard       artifactsGuard;
+  @NonNull WebhooksDispatcher   dispatcher;
+  @NonNull WebhooksS3Resolver   s3Resolver;
+  @NonNull WebhooksS3Lister     s3Lister;
+  @NonNull WebhooksManifest     manifest;
+  @NonNull WebhooksPayloadCache payloadCache;
+  @NonNull WebhooksChanges      changes;
+  @NonNull WebhooksMetrics      metrics;
+  @NonNull WebhooksPayloadLog   payloadLog;
 
   public void register(){
     buildServer.addListener(this);
@@ -70,9 +71,8 @@ public class WebhooksListener extends BuildServerAdapter {
         status = "error";
       }
 
-      val payload = gson.toJson(buildPayload(build, status, started_at, finished_at));
-      gson.fromJson(payload, Map.class); // Sanity check of JSON generated
-      log("Build '%s/#%s' finished, payload is '%s'".f(build.getFullName(), build.getBuildNumber(), payload));
+      val endpoints = subscribed(build.getProjectExternalId(), "finished", status,
+                                 build.getBuildType().getExternalId(), build.getBuildPromotion());
 
       /////////////////////////////////////////////////
       // log("state: " + build.getBuildStatus().toString().toLowerCase());
@@ -95,13 +95,19 @@ public class WebhooksListener extends BuildServerAdapter {
 
       if (build.isPersonal()) {
         log("Skipping post for personal build.");
+      } else if (endpoints.isEmpty()) {
+        debug("No webhooks subscribed to build '%s/#%s' %s".f(build.getFullName(), build.getBuildNumber(), status));
       } else {
-        for (val url : settings.getUrls(build.getProjectExternalId())){
-          postPayload(url, payload);
-        }
+        dispatchFinished(endpoints, build, status, started_at, finished_at);
+      }
+
+      // Personal builds don't report changes, nor do they make the changes of others stable
+      if ("success".equals(status) && (! build.isPersonal())) {
+        changes.buildSucceeded(build);
       }
 
-      log("Operation finished in %s ms".f(System.currentTimeMillis() - time));
+      debug("Operation finished in %s ms".f(System.currentTimeMillis() - time));
+      metrics.eventProcessed("finished", System.currentTimeMillis() - time);
     }
     catch (Throwable t) {
       error("Failed to listen on buildFinished() of '%s' #%s".f(build.getFullName(), build.getBuildNumber()), t);
@@ -116,9 +122,8 @@ public class WebhooksListener extends BuildServerAdapter {
       Date started_at = build.getStartDate();
       String status = "pending";
 
-      val payload = gson.toJson(buildPayload(build, status, started_at, null));
-      gson.fromJson(payload, Map.class); // Sanity check of JSON generated
-      log("Build '%s/#%s' started, payload is '%s'".f(build.getFullName(), build.getBuildNumber(), payload));
+      val endpoints = subscribed(build.getProjectExternalId(), "started", status,
+                                 build.getBuildType().getExternalId(), build.getBuildPromotion());
 
       /////////////////////////////////////////////////
       // log("state: started");
@@ -145,13 +150,16 @@ public class WebhooksListener extends BuildServerAdapter {
 
       if (build.isPersonal()) {
         log("Skipping post for personal build.");
+      } else if (endpoints.isEmpty()) {
+        debug("No webhooks subscribed to build '%s/#%s' %s".f(build.getFullName(), build.getBuildNumber(), status));
       } else {
-        for (val url : settings.getUrls(build.getProjectExternalId())){
-          postPayload(url, payload);
-        }
+        dispatch(endpoints, buildPayload(build, status, started_at, null),
+                 "Build '%s/#%s' %s".f(build.getFullName(), build.getBuildNumber(), status),
+                 String.valueOf(build.getBuildPromotion().getId()), false);
       }
 
-      log("Operation finished in %s ms".f(System.currentTimeMillis() - time));
+      debug("Operation finished in %s ms".f(System.currentTimeMillis() - time));
+      metrics.eventProcessed("started", System.currentTimeMillis() - time);
     }
     catch (Throwable t) {
       error("Failed to listen on buildStarted() of '%s' #%s".f(build.getFullName(), build.getBuildNumber()), t);
@@ -173,9 +181,8 @@ public class WebhooksListener extends BuildServerAdapter {
         status = "cancelled";
       }
 
-      val payload = gson.toJson(buildPayload(build, status, started_at, finished_at));
-      gson.fromJson(payload, Map.class); // Sanity check of JSON generated
-      log("Build '%s/#%s' interrupted, payload is '%s'".f(build.getFullName(), build.getBuildNumber(), payload));
+      val endpoints = subscribed(build.getProjectExternalId(), "interrupted", status,
+                                 build.getBuildType().getExternalId(), build.getBuildPromotion());
 
       /////////////////////////////////////////////////
       // log("state: started");
@@ -202,13 +209,14 @@ public class WebhooksListener extends BuildServerAdapter {
 
       if (build.isPersonal()) {
         log("Skipping post for personal build.");
+      } else if (endpoints.isEmpty()) {
+        debug("No webhooks subscribed to build '%s/#%s' %s".f(build.getFullName(), build.getBuildNumber(), status));
       } else {
-        for (val url : settings.getUrls(build.getProjectExternalId())){
-          postPayload(url, payload);
-        }
+        dispatchFinished(endpoints, build, status, started_at, finished_at);
       }
 
-      log("Operation finished in %s ms".f(System.currentTimeMillis() - time));
+      debug("Operation finished in %s ms".f(System.currentTimeMillis() - time));
+      metrics.eventProcessed("interrupted", System.currentTimeMillis() - time);
     }
     catch (Throwable t) {
       error("Failed to listen on buildInterrupted() of '%s' #%s".f(build.getFullName(), build.getBuildNumber()), t);
@@ -220,51 +228,21 @@ public class WebhooksListener extends BuildServerAdapter {
     val time = System.currentTimeMillis();
     try {
       BuildPromotion prom = build.getBuildPromotion();
-      Scm scm = null;
-      if (prom.getVcsRootEntries().isEmpty() == false) {
-        VcsRootInstance root = prom.getVcsRootEntries().get(0).getVcsRoot(); // TODO
-        String branch = prom.getBranch() != null ? prom.getBranch().getName() : null;
-        // if the build promotion doesn't have the actual branch name, try to
-        // get the vcs root's default branch
-        if (branch == "<default>" || branch == null) {
-          branch = root.getProperty("branch"); // returns null for svn
-        }
-        scm = Scm.builder().url(root.getProperty("url")).
-                                branch(branch).
-                                commit(null).
-                                changes(null).build();
-      }
-
-      final PayloadBuild payloadBuild = PayloadBuild.builder().
-        full_url("%s/viewQueued.html?itemId=%d".f(buildServer.getRootUrl(), prom.getId())).
-        build_id(null).
-        status("queued").
-        started_at(null).
-        finished_at(null).
-        scm(scm).
-        artifacts(null).
-        parameters(null).
-        build();
-
-      WebhookPayload payloadFull = WebhookPayload.of(build.getBuildType().getFullName(),
-                               // http://127.0.0.1:8080/viewType.html?buildTypeId=Echo_Build
-                               "%s/viewType.html?buildTypeId=%s".f(buildServer.getRootUrl(),
-                                                                   build.getBuildType().getExternalId()), // same as Build.getExternalId()
-                               payloadBuild);
-
-      val payload = gson.toJson(payloadFull);
-      gson.fromJson(payload, Map.class); // Sanity check of JSON generated
-      log("Build '%s' queued, payload is '%s'".f(build.getBuildType().getFullName(), payload));
+      // same as Build.getProjectExternalId()
+      val endpoints = subscribed(build.getBuildType().getProjectExternalId(), "queued", "queued",
+                                 build.getBuildType().getExternalId(), prom);
 
       if (build.isPersonal()) {
         log("Skipping post for personal build.");
+      } else if (endpoints.isEmpty()) {
+        debug("No webhooks subscribed to build '%s' queued".f(build.getBuildType().getFullName()));
       } else {
-        for (val url : settings.getUrls(build.getBuildType().getProjectExternalId())){ // same as Build.getProjectExternalId()
-          postPayload(url, payload);
-        }
+        dispatch(endpoints, queuedPayload(build, prom), "Build '%s' queued".f(build.getBuildType().getFullName()),
+                 String.valueOf(prom.getId()), false);
       }
 
-      log("QUEUED operation finished in %s ms".f(System.currentTimeMillis() - time));
+      debug("QUEUED operation finished in %s ms".f(System.currentTimeMillis() - time));
+      metrics.eventProcessed("queued", System.currentTimeMillis() - time);
     }
     catch (Throwable t) {
       error("Failed to listen on buildTypeAddedToQueue() of '%s'".f(build.getBuildType().getFullName()), t);
@@ -272,9 +250,102 @@ public class WebhooksListener extends BuildServerAdapter {
   }
 
 
+  /**
+   * Webhooks of the project (and of its ancestors) subscribed to the event specified, see {@link WebhookSubscription}.
+   */
+  private Collection<WebhookEndpoint> subscribed(@NonNull String projectId, @NonNull String event, @NonNull String status,
+                                                 @NonNull String buildTypeId, @NonNull BuildPromotion promotion){
+    val endpoints = index.getEndpoints(projectId);
+
+    boolean filtered = false;
+    for (val endpoint : endpoints){
+      if (! endpoint.getSubscription().isAll()) { filtered = true; break; }
+    }
+    if (! filtered) {
+      return endpoints;
+    }
+
+    val branch     = promotion.getBranch();
+    val subscribed = new ArrayList<WebhookEndpoint>();
+    for (val endpoint : endpoints){
+      if (endpoint.getSubscription().matches(event, status, buildTypeId,
+                                             (branch == null) ? null : branch.getName(),
+                                             (branch == null) ? null : branch.getDisplayName())) {
+        subscribed.add(endpoint);
+      }
+    }
+    return subscribed;
+  }
+
+
+  private WebhookPayload queuedPayload(@NonNull SQueuedBuild build, @NonNull BuildPromotion prom){
+    Scm scm = null;
+    if (prom.getVcsRootEntries().isEmpty() == false) {
+      VcsRootInstance root = prom.getVcsRootEntries().get(0).getVcsRoot(); // TODO
+      String branch = prom.getBranch() != null ? prom.getBranch().getName() : null;
+      // if the build promotion doesn't have the actual branch name, try to
+      // get the vcs root's default branch
+      if (branch == "<default>" || branch == null) {
+        branch = root.getProperty("branch"); // returns null for svn
+      }
+      scm = Scm.builder().url(root.getProperty("url")).
+                              branch(branch).
+                              commit(null).
+                              changes(null).build();
+    }
+
+    final PayloadBuild payloadBuild = PayloadBuild.builder().
+      full_url("%s/viewQueued.html?itemId=%d".f(buildServer.getRootUrl(), prom.getId())).
+      build_id(null).
+      status("queued").
+      started_at(null).
+      finished_at(null).
+      scm(scm).
+      artifacts(null).
+      artifacts_truncated(null).
+      manifest(null).
+      parameters(null).
+      build();
+
+    return WebhookPayload.of(build.getBuildType().getFullName(),
+                             // http://127.0.0.1:8080/viewType.html?buildTypeId=Echo_Build
+                             "%s/viewType.html?buildTypeId=%s".f(buildServer.getRootUrl(),
+                                                                 build.getBuildType().getExternalId()), // same as Build.getExternalId()
+                             payloadBuild);
+  }
+
+
+  WebhookPayload buildPayload(@NonNull final SBuild build, String status, Date started_at, Date finished_at){
+    val fragments = payloadCache.fragments(build.getBuildId(), new Callable<WebhooksPayloadCache.Fragments>() {
+      public WebhooksPayloadCache.Fragments call() { return fragments(build); }
+    });
+
+    // Artifacts are complete once the build has finished, running builds have hardly any
+    val artifacts = (finished_at == null) ? PayloadArtifacts.NONE : artifacts(build);
+
+    final PayloadBuild payloadBuild = PayloadBuild.builder().
+      full_url(fragments.getFullUrl()).
+      build_id(build.getBuildNumber()).
+      status(status).
+      started_at(started_at).
+      finished_at(finished_at).
+      scm(fragments.getScm()).
+      artifacts(artifacts).
+      artifacts_truncated(artifacts.isTruncated() ? Boolean.TRUE : null).
+      manifest(null).
+      parameters(parameters(build)).
+      build();
+
+    return WebhookPayload.of(fragments.getName(), fragments.getUrl(), payloadBuild);
+  }
+
+
+  /**
+   * Resolves parts of build's payloads that don't change during the build, see {@link WebhooksPayloadCache}.
+   */
   @SuppressWarnings({"FeatureEnvy" , "ConstantConditions"})
   //@SneakyThrows(VcsException.class)
-  private WebhookPayload buildPayload(@NonNull SBuild build, String status, Date started_at, Date finished_at){
+  private WebhooksPayloadCache.Fragments fragments(@NonNull SBuild build){
     Scm scm      = null;
 
     val revisions = build.getRevisions();
@@ -323,17 +394,13 @@ public class WebhooksListener extends BuildServerAdapter {
         // }
       }
 
-      // val changes = new ArrayList<String>();
-      // if (branch != null && branch.startsWith("refs/pull/") == false) {
-      //   for (VcsModification mod : build.getChanges(SelectPrevBuildPolicy.SINCE_LAST_SUCCESSFULLY_FINISHED_BUILD, false)) {
-      //     changes.add(mod.getVersion());
-      //   }
-      // }
+      // Changes of pull requests are not reported
+      val changes = ((branch != null) && (! branch.startsWith("refs/pull/"))) ? this.changes.changes(build) : null;
 
       scm = Scm.builder().url(url).
                           branch(branch).
                           commit(head).
-                          changes(null).build();
+                          changes(changes).build();
     }
 
     //////////////////////////
@@ -349,6 +416,23 @@ public class WebhooksListener extends BuildServerAdapter {
     // }
     //////////////////////////
 
+    return WebhooksPayloadCache.Fragments.of(build.getFullName(),
+                                             // http://127.0.0.1:8080/viewType.html?buildTypeId=Echo_Build
+                                             "%s/viewType.html?buildTypeId=%s".f(buildServer.getRootUrl(),
+                                                                                 build.getBuildType().getExternalId()),
+                                             // http://127.0.0.1:8080/viewLog.html?buildTypeId=Echo_Build&buildId=90
+                                             "%s/viewLog.html?buildTypeId=%s&buildId=%s".f(buildServer.getRootUrl(),
+                                                                                           build.getBuildType().getExternalId(),
+                                                                                           build.getBuildId()),
+                                             scm);
+  }
+
+
+  /**
+   * Resolves build's parameters reported, for each event since they can change during the build
+   * (like "env.BuildDate"), so they're not kept in {@link WebhooksPayloadCache}.
+   */
+  private Map<String, String> parameters(@NonNull SBuild build){
     val parameters = new HashMap<String, String>();
     val date = build.getParametersProvider().get("env.BuildDate");
     if (date != null) {
@@ -361,87 +445,101 @@ public class WebhooksListener extends BuildServerAdapter {
     // }
     //////////////////////////
 
-    final PayloadBuild payloadBuild = PayloadBuild.builder().
-      // http://127.0.0.1:8080/viewLog.html?buildTypeId=Echo_Build&buildId=90
-      full_url("%s/viewLog.html?buildTypeId=%s&buildId=%s".f(buildServer.getRootUrl(),
-                                                             build.getBuildType().getExternalId(),
-                                                             build.getBuildId())).
-      build_id(build.getBuildNumber()).
-      status(status).
-      started_at(started_at).
-      finished_at(finished_at).
-      scm(scm).
-      artifacts(artifacts(build)).
-      parameters(parameters).
-      build();
-
-    return WebhookPayload.of(build.getFullName(),
-                             // http://127.0.0.1:8080/viewType.html?buildTypeId=Echo_Build
-                             "%s/viewType.html?buildTypeId=%s".f(buildServer.getRootUrl(),
-                                                                 build.getBuildType().getExternalId()),
-                             payloadBuild);
+    return Collections.unmodifiableMap(parameters);
   }
 
 
   /**
-   * POSTs payload to the URL specified
-   */
-  private void postPayload(@NonNull String url, @NonNull String payload){
-    try {
-      val request  = HttpRequest.post(url).body(payload).contentType("application/json").open();
-      // http://jodd.org/doc/http.html#sockethttpconnection
-      ((SocketHttpConnection) request.httpConnection()).getSocket().setSoTimeout(POST_TIMEOUT);
-      val response = request.send();
-
-      // allow all successful status codes
-      int status_code = response.statusCode();
-      if ( status_code >= 200 && status_code < 300) {
-        log("Payload POST-ed to '%s'".f(url));
-      }
-      else {
-        error("POST-ing payload to '%s' - got %s response: %s".f(url, response.statusCode(), response));
-      }
-    }
-    catch (Throwable t) {
-      error("Failed to POST payload to '%s'".f(url), t);
-    }
-  }
-
-
-  /**
-   * Retrieves map of build's artifacts (archived in TeamCity and uploaded to S3):
+   * Retrieves build's artifacts (archived in TeamCity and uploaded to S3), see {@link PayloadArtifacts}:
    * {'artifact.jar' => {'archive' => 'http://teamcity/artifact/url', 's3' => 'https://s3-artifact/url'}}
    *
    * https://devnet.jetbrains.com/message/5257486
    * https://confluence.jetbrains.com/display/TCD8/Patterns+For+Accessing+Build+Artifacts
    */
-  @SuppressWarnings({"ConstantConditions", "CollectionDeclaredAsConcreteClass", "FeatureEnvy"})
-  private Map<String,Map<String, String>> artifacts(@NonNull SBuild build){
+  @SuppressWarnings({"ConstantConditions", "FeatureEnvy"})
+  PayloadArtifacts artifacts(@NonNull SBuild build){
 
     val buildArtifacts = buildArtifacts(build);
     if (buildArtifacts.isEmpty()) {
-      return Collections.emptyMap();
+      return PayloadArtifacts.NONE;
     }
 
-    val rootUrl   = buildServer.getRootUrl();
-    @SuppressWarnings("TypeMayBeWeakened")
-    val artifacts = new HashMap<String, Map<String, String>>();
-
-    if (notEmpty(rootUrl)) {
+    val rootUrl = buildServer.getRootUrl();
+    val bucket  = s3Resolver.resolve();
+
+    // http://127.0.0.1:8080/repository/download/Echo_Build/37/echo-service-0.0.1-SNAPSHOT.jar
+    val archivePrefix = notEmpty(rootUrl) ? "%s/repository/download/%s/%s/".f(rootUrl,
+                                                                              build.getBuildType().getExternalId(),
+                                                                              build.getBuildNumber()) :
+                                            null;
+    // https://s3-eu-west-1.amazonaws.com/evgenyg-bakery/Echo%3A%3ABuild/45/echo-service-0.0.1-SNAPSHOT.jar
+    val s3Prefix      = (bucket != null) ? "https://s3-%s.amazonaws.com/%s/".f(bucket.getRegion(), bucket.getName()) :
+                                           null;
+    val artifacts     = new PayloadArtifacts(archivePrefix, s3Prefix,
+                                             Math.max(0, TeamCityProperties.getInteger(ARTIFACTS_MAX_PROPERTY, ARTIFACTS_MAX)));
+
+    if (archivePrefix != null) {
       for (val artifact : buildArtifacts){
         val artifactName = artifact.getName();
         if (".teamcity".equals(artifactName) || isEmpty(artifactName)) { continue; }
-
-        // http://127.0.0.1:8080/repository/download/Echo_Build/37/echo-service-0.0.1-SNAPSHOT.jar
-        final String url = "%s/repository/download/%s/%s/%s".f(rootUrl,
-                                                               build.getBuildType().getExternalId(),
-                                                               build.getBuildNumber(),
-                                                               artifactName);
-        artifacts.put(artifactName, map("archive", url));
+        artifacts.addArchived(artifactName);
       }
     }
 
-    return Collections.unmodifiableMap(addS3Artifacts(artifacts, build));
+    if (bucket != null) {
+      addS3Artifacts(artifacts, build, bucket);
+    }
+
+    if (artifacts.isTruncated()) {
+      log("Build '%s/#%s' has more than %s artifacts, the rest are not reported".f(
+          build.getFullName(), build.getBuildNumber(), artifacts.size()));
+    }
+    return artifacts;
+  }
+
+
+  /**
+   * Dispatches payload of a finished (or interrupted) build. With manifest enabled, see {@link WebhooksManifest},
+   * payload is dispatched once size and SHA-256 of build's artifacts are computed, off the event thread.
+   */
+  private void dispatchFinished(@NonNull final Collection<WebhookEndpoint> endpoints, @NonNull SBuild build,
+                                @NonNull String status, Date started_at, @NonNull Date finished_at){
+    final WebhookPayload payload            = buildPayload(build, status, started_at, finished_at);
+    final String         description        = "Build '%s/#%s' %s".f(build.getFullName(), build.getBuildNumber(), status);
+    final String         key                = String.valueOf(build.getBuildPromotion().getId());
+    final File           artifactsDirectory = build.getArtifactsDirectory();
+    if ((! manifest.isEnabled()) || (artifactsDirectory == null)) {
+      dispatch(endpoints, payload, description, key, true);
+      return;
+    }
+
+    final ListenableFuture<Map<String, Map<String, String>>> future = manifest.manifest(build.getBuildId(), artifactsDirectory);
+    future.addListener(new Runnable() {
+      public void run() {
+        try {
+          payload.getBuild().manifest = future.get();
+        }
+        catch (Throwable t) {
+          // Payload is dispatched without the manifest
+          error("Failed to compute manifest of artifacts in '%s'".f(path(artifactsDirectory)), t);
+        }
+
+        try {
+          dispatch(endpoints, payload, description, key, true);
+        }
+        catch (Throwable t) {
+          error("Failed to dispatch payload of %s".f(description), t);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+
+  private void dispatch(@NonNull Collection<WebhookEndpoint> endpoints, @NonNull WebhookPayload payload,
+                        @NonNull String description, @NonNull String key, boolean last){
+    val encoded = WebhookPayloadWriter.write(payload);
+    payloadLog.payload(description, encoded);
+    dispatcher.dispatch(endpoints, encoded, description, key, last);
   }
 
 
@@ -467,69 +565,32 @@ public class WebhooksListener extends BuildServerAdapter {
 
 
   /**
-   * Updates map of build's artifacts with S3 URLs:
-   * {'artifact.jar' => {'s3' => 'https://s3-artifact/url'}}
+   * Adds build's artifacts uploaded to S3.
    */
   @SuppressWarnings("FeatureEnvy")
-  private Map<String,Map<String, String>> addS3Artifacts(@NonNull Map<String, Map<String, String>> artifacts,
-                                                         @NonNull @SuppressWarnings("TypeMayBeWeakened") SBuild build){
-
-    val s3SettingsFile = new File(serverPaths.getConfigDir(), S3_SETTINGS_FILE);
-
-    if (! s3SettingsFile.isFile()) {
-      return artifacts;
-    }
-
-    val s3Settings   = readJsonFile(s3SettingsFile);
-    val bucketName   = ((String) s3Settings.get("artifactBucket"));
-    val awsAccessKey = ((String) s3Settings.get("awsAccessKey"));
-    val awsSecretKey = ((String) s3Settings.get("awsSecretKey"));
+  private void addS3Artifacts(@NonNull final PayloadArtifacts artifacts,
+                              @NonNull @SuppressWarnings("TypeMayBeWeakened") SBuild build,
+                              @NonNull WebhooksS3Resolver.Bucket bucket){
 
-    if (isEmpty(bucketName)) {
-      return artifacts;
-    }
+    val bucketName = bucket.getName();
 
     try {
-      AmazonS3 s3Client = isEmpty(awsAccessKey, awsSecretKey) ?
-        new AmazonS3Client() :
-        new AmazonS3Client(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
-
-      if (! s3Client.doesBucketExist(bucketName)) {
-        return artifacts;
-      }
-
       // "Echo::Build/15/"
       final String prefix = "%s/%s/".f(build.getFullName().replace(" :: ", "::"), build.getBuildNumber());
-      val objects = s3Client.listObjects(bucketName, prefix).getObjectSummaries();
-
-      if (objects.isEmpty()) {
-        return artifacts;
-      }
-
-      val region = s3Client.getBucketLocation(bucketName);
 
-      for (val summary : objects){
-        val artifactKey = summary.getKey();
-        if (isEmpty(artifactKey) || artifactKey.endsWith("/build.json")) { continue; }
+      s3Lister.list(bucket.getS3Client(), bucketName, prefix, new WebhooksS3Lister.KeyVisitor() {
+        public void visit(@NonNull String artifactKey) {
+          if (isEmpty(artifactKey) || artifactKey.endsWith("/build.json")) { return; }
 
-        final String artifactName = artifactKey.split("/").last();
-        if (isEmpty(artifactName)) { continue; }
+          final String artifactName = artifactKey.split("/").last();
+          if (isEmpty(artifactName)) { return; }
 
-        // https://s3-eu-west-1.amazonaws.com/evgenyg-bakery/Echo%3A%3ABuild/45/echo-service-0.0.1-SNAPSHOT.jar
-        final String url = "https://s3-%s.amazonaws.com/%s/%s".f(region, bucketName, artifactKey);
-
-        if (artifacts.containsKey(artifactName)) {
-          artifacts.get(artifactName).put("s3", url);
-        }
-        else {
-          artifacts.put(artifactName, map("s3", url));
+          artifacts.addS3(artifactName, artifactKey);
         }
-      }
+      });
     }
     catch (Throwable t) {
       error("Failed to list objects in S3 bucket '%s'".f(bucketName), t);
     }
-
-    return artifacts;
   }
 }
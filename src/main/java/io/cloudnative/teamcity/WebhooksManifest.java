@@ -0,0 +1,250 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Size and SHA-256 of build's artifacts, with directories listed recursively:
+ * {'artifact.jar' => {'size' => '1024', 'sha256' => '9f86d08..'}, 'docs/index.html' => {'size' => '512', 'sha256' => '..'}}
+ *
+ * Manifests are computed off TeamCity's event thread: {@link #manifest} returns a future, completed once the
+ * build's artifacts are hashed. Builds are handled one by one, holding a read lock of the artifacts directory,
+ * and their files are hashed in parallel by "teamcity.webhooks.manifest.threads" threads, read through
+ * reusable per-thread buffers. Hashing a build is limited to "teamcity.webhooks.manifest.maxBytes" bytes and
+ * "teamcity.webhooks.manifest.timeout" ms, files beyond the budget are listed with their size only.
+ *
+ * Complete manifests of the last "teamcity.webhooks.manifest.cacheSize" builds are kept, so that artifacts of
+ * a build are hashed once, whatever the number of its events and webhooks. Incomplete ones are not kept.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksManifest {
+
+  private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() { return ByteBuffer.allocateDirect(MANIFEST_BUFFER_SIZE); }
+  };
+
+  boolean                                                          enabled;
+  long                                                             timeout;
+  long                                                             maxBytes;
+  ArtifactsGuard                                                   artifactsGuard;
+  ExecutorService                                                  builds;
+  ExecutorService                                                  executor;
+  Cache<Long, ListenableFuture<Map<String, Map<String, String>>>> manifests;
+
+
+  public WebhooksManifest(@NonNull ArtifactsGuard artifactsGuard) {
+    this.artifactsGuard = artifactsGuard;
+    enabled   = TeamCityProperties.getBoolean(MANIFEST_ENABLED_PROPERTY);
+    timeout   = Math.max(1, TeamCityProperties.getLong(MANIFEST_TIMEOUT_PROPERTY, MANIFEST_TIMEOUT));
+    maxBytes  = Math.max(0, TeamCityProperties.getLong(MANIFEST_MAX_BYTES_PROPERTY, MANIFEST_MAX_BYTES));
+    builds    = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).
+                                                                            setNameFormat(PLUGIN_NAME + "-manifest-build-%d").
+                                                                            build());
+    executor  = Executors.newFixedThreadPool(Math.max(1, TeamCityProperties.getInteger(MANIFEST_THREADS_PROPERTY, MANIFEST_THREADS)),
+                                             new ThreadFactoryBuilder().setDaemon(true).
+                                                                        setNameFormat(PLUGIN_NAME + "-manifest-%d").
+                                                                        build());
+    manifests = CacheBuilder.newBuilder().
+                             maximumSize(Math.max(1, TeamCityProperties.getInteger(MANIFEST_CACHE_SIZE_PROPERTY, MANIFEST_CACHE_SIZE))).
+                             build();
+  }
+
+
+  public void shutdown(){
+    builds.shutdownNow();
+    executor.shutdownNow();
+  }
+
+
+  boolean isEnabled(){
+    return enabled;
+  }
+
+
+  /**
+   * Retrieves manifest of build's artifacts, computing it in the background if the build wasn't seen before.
+   * Concurrent events of the same build get the same future.
+   *
+   * @return manifest of artifacts, failed if it can not be computed
+   */
+  ListenableFuture<Map<String, Map<String, String>>> manifest(final long buildId, @NonNull final File artifactsDirectory){
+    val cached = manifests.getIfPresent(buildId);
+    if (cached != null) { return cached; }
+
+    final SettableFuture<Map<String, Map<String, String>>> future = SettableFuture.create();
+    val existing = manifests.asMap().putIfAbsent(buildId, future);
+    if (existing != null) { return existing; }
+
+    try {
+      builds.execute(new Runnable() {
+        public void run() {
+          try {
+            val manifest = new TreeMap<String, Map<String, String>>();
+            if (! compute(artifactsDirectory, manifest)) {
+              // Computed again for the next event of the build
+              manifests.asMap().remove(buildId, future);
+            }
+            future.set(Collections.<String, Map<String, String>>unmodifiableMap(manifest));
+          }
+          catch (Throwable t) {
+            manifests.asMap().remove(buildId, future);
+            future.setException(t);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      manifests.asMap().remove(buildId, future);
+      future.setException(e);
+    }
+    return future;
+  }
+
+
+  /**
+   * Fills the manifest of artifacts in the directory specified, holding its read lock.
+   *
+   * @return true if manifest is complete, false if some of the files were not hashed
+   */
+  private boolean compute(@NonNull File artifactsDirectory, @NonNull Map<String, Map<String, String>> manifest){
+    val deadline = System.currentTimeMillis() + timeout;
+    val files    = new ArrayList<File>();
+    val hashes   = new LinkedHashMap<String, Future<String>>();
+    long budget  = maxBytes;
+    boolean complete = true;
+
+    artifactsGuard.lockReading(artifactsDirectory);
+    try {
+      val artifacts = artifactsDirectory.listFiles();
+      if (artifacts == null) { return true; }
+      Arrays.sort(artifacts);
+      for (val artifact : artifacts){
+        if (! ".teamcity".equals(artifact.getName())) { list(artifact, files); }
+      }
+
+      for (final File file : files){
+        val path  = relativePath(artifactsDirectory, file);
+        val size  = file.length();
+        val entry = new LinkedHashMap<String, String>();
+        entry.put("size", String.valueOf(size));
+        manifest.put(path, entry);
+
+        if (size <= budget) {
+          budget -= size;
+          hashes.put(path, executor.submit(new Callable<String>() {
+            public String call() throws Exception { return sha256(file); }
+          }));
+        }
+      }
+
+      // Files over the budget are left out the same way every time, that doesn't make manifest incomplete
+      if (hashes.size() < files.size()) {
+        log("%s of %s artifacts in '%s' exceed %s bytes to hash, listed with their size only".f(
+            files.size() - hashes.size(), files.size(), path(artifactsDirectory), maxBytes));
+      }
+
+      // Once out of time, only hashes computed already are taken
+      boolean timedOut = false;
+      try {
+        for (val hash : hashes.entrySet()){
+          try {
+            manifest.get(hash.getKey()).put("sha256", hash.getValue().get(Math.max(0, deadline - System.currentTimeMillis()),
+                                                                           TimeUnit.MILLISECONDS));
+          }
+          catch (ExecutionException e) {
+            complete = false;
+            error("Failed to hash artifact '%s' in '%s'".f(hash.getKey(), path(artifactsDirectory)), e.getCause());
+          }
+          catch (TimeoutException ignored) {
+            complete = false;
+            timedOut = true;
+          }
+        }
+      }
+      catch (InterruptedException ignored) {
+        complete = false;
+        Thread.currentThread().interrupt();
+      }
+
+      if (timedOut) {
+        error("Hashing of artifacts in '%s' has timed out after %s ms, manifest is incomplete".f(
+              path(artifactsDirectory), timeout));
+      }
+      return complete;
+    }
+    finally {
+      for (val hash : hashes.values()){ hash.cancel(true); }
+      artifactsGuard.unlockReading(artifactsDirectory);
+    }
+  }
+
+
+  /**
+   * Adds the file specified or all files of the directory specified, recursively.
+   */
+  private static void list(@NonNull File file, @NonNull List<File> files){
+    if (file.isFile()) {
+      files.add(file);
+      return;
+    }
+
+    val children = file.listFiles();
+    if (children == null) { return; }
+    Arrays.sort(children);
+    for (val child : children){ list(child, files); }
+  }
+
+
+  /**
+   * "/artifacts/directory/docs/index.html" => "docs/index.html"
+   */
+  private static String relativePath(@NonNull File artifactsDirectory, @NonNull File file){
+    val prefix = artifactsDirectory.getPath().length() + 1;
+    return file.getPath().substring(prefix).replace(File.separatorChar, '/');
+  }
+
+
+  /**
+   * Hex SHA-256 of the file, read through the thread's buffer.
+   */
+  private static String sha256(@NonNull File file) throws Exception {
+    val digest = MessageDigest.getInstance("SHA-256");
+    val buffer = BUFFER.get();
+    val in     = new FileInputStream(file);
+    try {
+      val channel = in.getChannel();
+      buffer.clear();
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    finally {
+      in.close();
+    }
+    return BaseEncoding.base16().lowerCase().encode(digest.digest());
+  }
+}
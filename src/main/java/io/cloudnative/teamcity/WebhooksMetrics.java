@@ -0,0 +1,253 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.net.URL;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Delivery metrics, exported in Prometheus text format by {@link WebhooksMetricsController}.
+ *
+ * Recording is lock-free: metrics of a URL or event are created once and then only
+ * {@link StripedCounter}s are updated, so delivery threads don't contend with each other or with scrapes.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksMetrics {
+
+  static final String   CONTENT_TYPE    = "text/plain; version=0.0.4; charset=utf-8";
+  static final String[] STATUS_CLASSES  = { "1xx", "2xx", "3xx", "4xx", "5xx", "error" };
+  static final long[]   LATENCY_BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 }; // ms
+  static final long[]   SIZE_BUCKETS    = { 256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304 }; // bytes
+
+  ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+  ConcurrentMap<String, Histogram>       events    = new ConcurrentHashMap<String, Histogram>();
+  StripedCounter                         inFlight  = new StripedCounter();
+
+
+  /**
+   * Called right before payload is POST-ed.
+   */
+  void requestStarted(){
+    inFlight.increment();
+  }
+
+
+  /**
+   * Called when POST is finished.
+   *
+   * @param statusCode response status code or -1 if request has failed
+   * @param latency    time from getting a connection to the outcome, ms
+   * @param waited     time spent waiting for a connection, ms
+   */
+  void requestFinished(@NonNull String url, int statusCode, long latency, long waited, int payloadSize){
+    inFlight.add(-1);
+    val endpoint = endpoint(url);
+    endpoint.statuses[statusClass(statusCode)].increment();
+    endpoint.latency.observe(latency);
+    endpoint.waits.observe(waited);
+    endpoint.sizes.observe(payloadSize);
+  }
+
+
+  /**
+   * Called when listener has finished processing build event specified ("finished", "queued", etc.).
+   */
+  void eventProcessed(@NonNull String event, long duration){
+    Histogram histogram = events.get(event);
+    if (histogram == null) {
+      val newHistogram = new Histogram(LATENCY_BUCKETS);
+      histogram = events.putIfAbsent(event, newHistogram);
+      if (histogram == null) { histogram = newHistogram; }
+    }
+    histogram.observe(duration);
+  }
+
+
+  /**
+   * Writes all metrics in Prometheus text format.
+   */
+  void write(@NonNull StringBuilder out, @NonNull WebhooksDispatcher dispatcher, @NonNull WebhooksPayloadCache payloadCache){
+    val urls = new TreeMap<String, EndpointMetrics>(endpoints);
+
+    header(out, "webhooks_deliveries_total", "counter", "POST requests made, by webhook URL and response status class");
+    for (val endpoint : urls.entrySet()){
+      for (int j = 0; j < STATUS_CLASSES.length; j++) {
+        sample(out, "webhooks_deliveries_total", labels(endpoint.getKey(), "status", STATUS_CLASSES[j]),
+               endpoint.getValue().statuses[j].get());
+      }
+    }
+
+    header(out, "webhooks_delivery_duration_seconds", "histogram", "POST request duration, by webhook URL");
+    for (val endpoint : urls.entrySet()){
+      endpoint.getValue().latency.write(out, "webhooks_delivery_duration_seconds",
+                                        labels(endpoint.getKey(), null, null), 1000.0);
+    }
+
+    header(out, "webhooks_connection_wait_seconds", "histogram",
+           "Time POST requests waited for a connection (including resolving the host), by webhook URL");
+    for (val endpoint : urls.entrySet()){
+      endpoint.getValue().waits.write(out, "webhooks_connection_wait_seconds",
+                                      labels(endpoint.getKey(), null, null), 1000.0);
+    }
+
+    header(out, "webhooks_payload_size_bytes", "histogram", "Size of payloads POST-ed (after compression), by webhook URL");
+    for (val endpoint : urls.entrySet()){
+      endpoint.getValue().sizes.write(out, "webhooks_payload_size_bytes", labels(endpoint.getKey(), null, null), 1.0);
+    }
+
+    header(out, "webhooks_circuit_breaker_state", "gauge",
+           "Circuit breaker state by webhook URL: 0 - closed, 1 - open, 2 - half-open");
+    for (val breaker : new TreeMap<String, CircuitBreaker>(dispatcher.breakers()).entrySet()){
+      sample(out, "webhooks_circuit_breaker_state", labels(breaker.getKey(), null, null),
+             breaker.getValue().state().ordinal());
+    }
+
+    header(out, "webhooks_event_processing_duration_seconds", "histogram", "Build event processing duration, by event");
+    for (val event : new TreeMap<String, Histogram>(events).entrySet()){
+      event.getValue().write(out, "webhooks_event_processing_duration_seconds",
+                             "event=\"%s\"".f(escape(event.getKey())), 1000.0);
+    }
+
+    gauge(out,   "webhooks_requests_in_flight",    "POST requests being made now", inFlight.get());
+    gauge(out,   "webhooks_queue_size",            "Deliveries waiting in the queue", dispatcher.queueSize());
+    gauge(out,   "webhooks_outbox_pending",        "Deliveries journaled and not completed yet", dispatcher.pendingCount());
+    counter(out, "webhooks_dropped_total",         "Deliveries dropped because the queue was full", dispatcher.droppedCount());
+    counter(out, "webhooks_coalesced_total",       "Deliveries superseded by a newer event", dispatcher.coalescedCount());
+    counter(out, "webhooks_parked_total",          "Deliveries parked by an open circuit breaker", dispatcher.parkedCount());
+    counter(out, "webhooks_throttled_total",       "Deliveries delayed by a webhook's rate limit", dispatcher.throttledCount());
+    counter(out, "webhooks_retry_after_total",     "Throttling responses with Retry-After honored", dispatcher.retryAfterCount());
+    counter(out, "webhooks_payloads_total",        "Payloads encoded", PayloadCounters.payloads());
+    counter(out, "webhooks_bytes_allocated_total", "Bytes allocated on the payload path", PayloadCounters.allocatedBytes());
+    counter(out, "webhooks_bytes_copied_total",    "Bytes copied on the payload path", PayloadCounters.copiedBytes());
+
+    gauge(out,   "webhooks_payload_cache_size",            "Builds with payload fragments cached", payloadCache.size());
+    counter(out, "webhooks_payload_cache_hits_total",      "Build events with payload fragments cached", payloadCache.hitCount());
+    counter(out, "webhooks_payload_cache_misses_total",    "Build events resolving payload fragments", payloadCache.missCount());
+    counter(out, "webhooks_payload_cache_evictions_total", "Builds evicted from payload fragments cache", payloadCache.evictionCount());
+  }
+
+
+  private EndpointMetrics endpoint(@NonNull String url){
+    val endpoint = endpoints.get(url);
+    if (endpoint != null) { return endpoint; }
+    val newEndpoint = new EndpointMetrics();
+    val existing    = endpoints.putIfAbsent(url, newEndpoint);
+    return (existing != null ? existing : newEndpoint);
+  }
+
+
+  private static int statusClass(int statusCode){
+    return ((statusCode >= 100) && (statusCode < 600)) ? (statusCode / 100) - 1 : STATUS_CLASSES.length - 1;
+  }
+
+
+  private static void header(@NonNull StringBuilder out, @NonNull String name, @NonNull String type, @NonNull String help){
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n').
+        append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+
+  private static void sample(@NonNull StringBuilder out, @NonNull String name, String labels, double value){
+    out.append(name);
+    if (labels != null) { out.append('{').append(labels).append('}'); }
+    out.append(' ').append(number(value)).append('\n');
+  }
+
+
+  private static String number(double value){
+    return (value == Math.rint(value)) ? String.valueOf((long) value) : String.valueOf(value);
+  }
+
+
+  private static void gauge(@NonNull StringBuilder out, @NonNull String name, @NonNull String help, long value){
+    header(out, name, "gauge", help);
+    sample(out, name, null, value);
+  }
+
+
+  private static void counter(@NonNull StringBuilder out, @NonNull String name, @NonNull String help, long value){
+    header(out, name, "counter", help);
+    sample(out, name, null, value);
+  }
+
+
+  /**
+   * "url" label (without credentials) and an optional extra label.
+   */
+  private static String labels(@NonNull String url, String name, String value){
+    val labels = "url=\"%s\"".f(escape(withoutUserInfo(url)));
+    return (name == null) ? labels : "%s,%s=\"%s\"".f(labels, name, escape(value));
+  }
+
+
+  private static String withoutUserInfo(@NonNull String url){
+    try {
+      val userInfo = new URL(url).getUserInfo();
+      return (userInfo == null) ? url : url.replace(userInfo + "@", "");
+    }
+    catch (Exception ignored) {
+      return url;
+    }
+  }
+
+
+  private static String escape(@NonNull String value){
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+
+  private static class EndpointMetrics {
+    final StripedCounter[] statuses = new StripedCounter[STATUS_CLASSES.length];
+    final Histogram        latency  = new Histogram(LATENCY_BUCKETS);
+    final Histogram        waits    = new Histogram(LATENCY_BUCKETS);
+    final Histogram        sizes    = new Histogram(SIZE_BUCKETS);
+
+    EndpointMetrics() {
+      for (int j = 0; j < statuses.length; j++) { statuses[j] = new StripedCounter(); }
+    }
+  }
+
+
+  /**
+   * Histogram with fixed bucket bounds, last bucket is "+Inf".
+   */
+  private static class Histogram {
+    final long[]           bounds;
+    final StripedCounter[] buckets;
+    final StripedCounter   sum = new StripedCounter();
+
+    Histogram(@NonNull long[] bounds) {
+      this.bounds  = bounds;
+      this.buckets = new StripedCounter[bounds.length + 1];
+      for (int j = 0; j < buckets.length; j++) { buckets[j] = new StripedCounter(); }
+    }
+
+    void observe(long value){
+      int j = 0;
+      while ((j < bounds.length) && (value > bounds[j])) { j++; }
+      buckets[j].increment();
+      sum.add(value);
+    }
+
+    /**
+     * Writes cumulative buckets, sum and count, bounds and sum are divided by "unit" (1000 for ms => seconds).
+     */
+    void write(@NonNull StringBuilder out, @NonNull String name, @NonNull String labels, double unit){
+      long count = 0;
+      for (int j = 0; j < buckets.length; j++) {
+        count += buckets[j].get();
+        val le = (j < bounds.length) ? number(bounds[j] / unit) : "+Inf";
+        sample(out, name + "_bucket", "%s,le=\"%s\"".f(labels, le), count);
+      }
+      sample(out, name + "_sum", labels, sum.get() / unit);
+      sample(out, name + "_count", labels, count);
+    }
+  }
+}
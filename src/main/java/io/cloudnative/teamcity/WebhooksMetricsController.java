@@ -0,0 +1,56 @@
+package io.cloudnative.teamcity;
+
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Serves delivery metrics in Prometheus text format: "/app/webhooks/metrics.html".
+ * Metrics name webhook URLs, which may carry credentials, so they are only served to server administrators.
+ */
+@AllArgsConstructor
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksMetricsController extends BaseController {
+
+  @NonNull WebControllerManager webManager;
+  @NonNull WebhooksMetrics      metrics;
+  @NonNull WebhooksDispatcher   dispatcher;
+  @NonNull WebhooksPayloadCache payloadCache;
+
+  public void register(){
+    webManager.registerController("/" + METRICS_PATH, this);
+  }
+
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest  request,
+                                  @NotNull HttpServletResponse response) throws Exception {
+    val user = SessionUser.getUser(request);
+    if ((user == null) || (! user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS))) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Webhooks metrics are only available to server administrators");
+      return null;
+    }
+
+    val out = new StringBuilder(16 * 1024);
+    metrics.write(out, dispatcher, payloadCache);
+
+    response.setContentType(WebhooksMetrics.CONTENT_TYPE);
+    response.getWriter().write(out.toString());
+    return null;
+  }
+}
@@ -0,0 +1,541 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only journal of pending deliveries, so that failed and not yet sent payloads survive server restarts.
+ *
+ * Journal is a sequence of segment files in "<TeamCity Data Directory>/system/pluginData/webhooks/outbox".
+ * Every delivery dispatched is appended as "ADD" record, every POST attempt as "ATTEMPT" record and every
+ * delivery completed (sent or given up) as "ACK" record. New records always go to the last (active) segment,
+ * which is rolled over when it grows over "teamcity.webhooks.outbox.segmentSize" bytes.
+ *
+ * Records are only queued by {@link #add}, {@link #attempted} and {@link #ack}, a single writer thread appends
+ * them in the order they were queued, compacts the journal and, with "teamcity.webhooks.outbox.fsync" enabled,
+ * syncs the segment once for all records queued meanwhile. So build events and delivery completions never wait
+ * for the disk.
+ *
+ * Segments are compacted from the head: leading segments with no pending deliveries are deleted. If a
+ * long-pending delivery keeps the oldest segment alive for too long, it is re-appended to the active segment so
+ * the oldest one can go. This way only segments holding pending deliveries are read on startup, not the whole history.
+ *
+ * Record format: [int header length][long header CRC32][byte type][long id][type-specific header][payload],
+ * see {@link #write} and {@link #read}. Payload length, CRC32, content encoding, event key and whether the event
+ * is the last one of its key are part of the "ADD" record header, number of attempts made is part of the "ADD" and "ATTEMPT" record headers.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksOutbox {
+
+  static final byte    ADD             = 1;
+  static final byte    ACK             = 2;
+  static final byte    ATTEMPT         = 3;
+  static final String  SEGMENT_PREFIX  = "outbox-";
+  static final String  SEGMENT_SUFFIX  = ".log";
+  static final Pattern SEGMENT_PATTERN = Pattern.compile(Pattern.quote(SEGMENT_PREFIX) + "(\\d+)" + Pattern.quote(SEGMENT_SUFFIX));
+
+  /**
+   * Queued by {@link #close}, writer thread stops once records queued before it are written.
+   */
+  static final Record  CLOSE           = new Record((byte) 0, 0, null, 0);
+
+  File                                 directory;
+  long                                 segmentSize;
+  int                                  maxSegments;
+  boolean                              fsync;
+  BlockingQueue<Record>                records  = new LinkedBlockingQueue<Record>();
+  ExecutorService                      writer;
+  AtomicLong                           nextId   = new AtomicLong(1);
+
+  /**
+   * Deliveries journaled and not acknowledged yet
+   */
+  ConcurrentMap<Long, WebhookDelivery> pending  = new ConcurrentHashMap<Long, WebhookDelivery>();
+
+  // Only used by the writer thread, once deliveries are recovered
+  LinkedList<Segment>                  segments = new LinkedList<Segment>();
+  Map<Long, Segment>                   owners   = new HashMap<Long, Segment>();
+  @NonFinal FileOutputStream           out;
+
+
+  public WebhooksOutbox(@NonNull ServerPaths serverPaths) {
+    directory   = new File(serverPaths.getPluginDataDirectory(), PLUGIN_NAME + File.separator + "outbox");
+    segmentSize = Math.max(1024, TeamCityProperties.getLong(OUTBOX_SEGMENT_SIZE_PROPERTY, OUTBOX_SEGMENT_SIZE));
+    maxSegments = Math.max(2, TeamCityProperties.getInteger(OUTBOX_MAX_SEGMENTS_PROPERTY, OUTBOX_MAX_SEGMENTS));
+    fsync       = TeamCityProperties.getBoolean(OUTBOX_FSYNC_PROPERTY);
+    writer      = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).
+                                                                             setNameFormat(PLUGIN_NAME + "-outbox-%d").
+                                                                             build());
+  }
+
+
+  /**
+   * Reads journal segments and returns deliveries that were not acknowledged before the last shutdown,
+   * in the order they were dispatched. Should be called once, before any delivery is added.
+   */
+  List<WebhookDelivery> recover(){
+    if (directory.isDirectory() || directory.mkdirs()) {
+      long lastSequence = 0;
+      for (val file : segmentFiles()){
+        val segment = new Segment(file, sequence(file));
+        lastSequence = segment.sequence;
+        segments.add(segment);
+        read(segment);
+      }
+
+      roll(lastSequence + 1);
+      compact();
+    }
+    else {
+      error("Failed to create outbox directory '%s', deliveries will not survive restarts".f(path(directory)));
+    }
+
+    // Records are dropped by the writer if there's no active segment
+    writer.execute(new Runnable() {
+      public void run() { work(); }
+    });
+
+    if (! pending.isEmpty()) {
+      log("Recovered %s pending deliveries from '%s'".f(pending.size(), path(directory)));
+    }
+
+    return byId(pending.values());
+  }
+
+
+  /**
+   * Journals delivery specified and assigns it an id.
+   */
+  void add(@NonNull WebhookDelivery delivery){
+    delivery.setId(nextId.getAndIncrement());
+    pending.put(delivery.getId(), delivery);
+    records.offer(new Record(ADD, delivery.getId(), delivery, delivery.getAttempts()));
+  }
+
+
+  /**
+   * Journals a POST attempt of delivery specified, so that it counts after restart.
+   */
+  void attempted(@NonNull WebhookDelivery delivery){
+    if (pending.containsKey(delivery.getId())) {
+      records.offer(new Record(ATTEMPT, delivery.getId(), null, delivery.getAttempts()));
+    }
+  }
+
+
+  /**
+   * Journals completion of delivery specified, it won't be recovered on restart anymore.
+   */
+  void ack(@NonNull WebhookDelivery delivery){
+    if (pending.remove(delivery.getId()) != null) {
+      records.offer(new Record(ACK, delivery.getId(), null, 0));
+    }
+  }
+
+
+  /**
+   * Writes records queued so far and closes the active segment.
+   */
+  void close(){
+    records.offer(CLOSE);
+    writer.shutdown();
+    try {
+      if (! writer.awaitTermination(POST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        error("Outbox writer didn't finish in %s ms, %s records are not journaled".f(POST_TIMEOUT, records.size()));
+        writer.shutdownNow();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  int pendingCount(){
+    return pending.size();
+  }
+
+
+  /**
+   * Appends records queued, on the writer thread. Records queued while the segment was written and synced
+   * are appended and synced together.
+   */
+  private void work(){
+    val batch = new ArrayList<Record>();
+    try {
+      while (true) {
+        batch.add(records.take());
+        records.drainTo(batch);
+
+        for (val record : batch){
+          if (record == CLOSE) {
+            sync();
+            closeQuietly();
+            return;
+          }
+          try {
+            journal(record);
+          }
+          catch (Throwable t) {
+            error("Failed to journal outbox record of delivery #%s".f(record.id), t);
+          }
+        }
+        sync();
+        batch.clear();
+      }
+    }
+    catch (InterruptedException e) {
+      closeQuietly();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  private void journal(@NonNull Record record){
+    if (out == null) { return; }
+
+    if (record.type == ADD) {
+      if (write(record)) {
+        val active = segments.getLast();
+        owners.put(record.id, active);
+        active.pending++;
+      }
+    }
+    else if (record.type == ATTEMPT) {
+      // Acknowledged meanwhile or failed to be journaled: there's nothing to attempt after restart
+      if (owners.containsKey(record.id)) { write(record); }
+    }
+    else if (record.type == ACK) {
+      val owner = owners.remove(record.id);
+      if (owner == null) { return; }
+      owner.pending--;
+      write(record);
+      if (owner == segments.getFirst()) { compact(); }
+    }
+    rollIfNeeded();
+  }
+
+
+  private void sync(){
+    if (fsync && (out != null)) {
+      try {
+        out.getChannel().force(false);
+      }
+      catch (IOException e) {
+        error("Failed to sync outbox segment '%s'".f(path(segments.getLast().file)), e);
+      }
+    }
+  }
+
+
+  /**
+   * Appends a record to the active segment.
+   */
+  private boolean write(@NonNull Record record){
+    val delivery = record.delivery;
+    try {
+      val bytes = new ByteArrayOutputStream(delivery == null ? 16 : 256);
+      val data  = new DataOutputStream(bytes);
+      data.writeByte(record.type);
+      data.writeLong(record.id);
+      if (delivery != null) {
+        data.writeUTF(delivery.getUrl());
+        data.writeUTF(delivery.getDescription());
+        data.writeInt(record.attempts);
+        data.writeInt(delivery.getPayload().size());
+        data.writeLong(delivery.getPayload().crc());
+        data.writeUTF(delivery.getPayload().contentEncoding().or(""));
+        data.writeUTF(delivery.getKey().or(""));
+        data.writeBoolean(delivery.isLast());
+      }
+      else if (record.type == ATTEMPT) {
+        data.writeInt(record.attempts);
+      }
+      data.flush();
+
+      val header = bytes.toByteArray();
+      val crc    = new CRC32();
+      crc.update(header);
+
+      val buffers = new ByteBuffer[]{ ByteBuffer.allocate(header.length + 12).putInt(header.length).putLong(crc.getValue()).put(header),
+                                      (delivery == null ? ByteBuffer.allocate(0) : delivery.getPayload().buffer()) };
+      buffers[0].flip();
+      val length = buffers[0].remaining() + buffers[1].remaining();
+
+      // Payload buffer goes to the file as is, in the same gathering write as its header
+      val channel = out.getChannel();
+      while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+        channel.write(buffers);
+      }
+      if (delivery != null) {
+        // Channel copies heap buffers to a temporary direct buffer
+        PayloadCounters.copied(delivery.getPayload().size());
+      }
+
+      segments.getLast().size += length;
+      return true;
+    }
+    catch (IOException e) {
+      error("Failed to write to outbox segment '%s', delivery #%s will not survive restart".f(
+        path(segments.getLast().file), record.id), e);
+      return false;
+    }
+  }
+
+
+  /**
+   * Reads all valid records of the segment specified, stops at the first truncated or corrupted one.
+   */
+  private void read(@NonNull Segment segment){
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+      while (true) {
+        final int length;
+        try { length = in.readInt(); }
+        catch (EOFException ignored) { break; }
+
+        val crc  = in.readLong();
+        if ((length < 9) || (length > segment.file.length())) {
+          throw new IOException("Invalid record length %s".f(length));
+        }
+        val header = new byte[length];
+        in.readFully(header);
+        if (crc(header) != crc) {
+          throw new IOException("Record header CRC mismatch");
+        }
+
+        val record = new DataInputStream(new ByteArrayInputStream(header));
+        val type   = record.readByte();
+        val id     = record.readLong();
+        if (nextId.get() <= id) { nextId.set(id + 1); }
+
+        if (type == ADD) {
+          val url         = record.readUTF();
+          val description = record.readUTF();
+          val attempts    = record.readInt();
+          val payloadSize = record.readInt();
+          val payloadCrc  = record.readLong();
+          // Records journaled by older versions have no content encoding and no key
+          final String encoding = (record.available() > 0) ? record.readUTF() : "";
+          final String key      = (record.available() > 0) ? record.readUTF() : "";
+          final boolean last    = (record.available() > 0) && record.readBoolean();
+          if ((payloadSize < 0) || (payloadSize > segment.file.length())) {
+            throw new IOException("Invalid payload length %s".f(payloadSize));
+          }
+          val payload = new byte[payloadSize];
+          in.readFully(payload);
+          if (crc(payload) != payloadCrc) {
+            throw new IOException("Payload CRC mismatch");
+          }
+
+          // Record can be there twice if it was re-appended during compaction
+          if (! pending.containsKey(id)) {
+            val delivery = WebhookDelivery.of(url, EncodedPayload.of(payload, isEmpty(encoding) ? null : encoding), description,
+                                              isEmpty(key) ? null : key, last);
+            delivery.setId(id);
+            pending.put(id, delivery);
+          }
+          pending.get(id).attempted(attempts);
+          val owner = owners.put(id, segment);
+          if (owner != null) { owner.pending--; }
+          segment.pending++;
+        }
+        else if (type == ATTEMPT) {
+          val delivery = pending.get(id);
+          if (delivery != null) { delivery.attempted(record.readInt()); }
+        }
+        else if (type == ACK) {
+          if (pending.remove(id) != null) {
+            owners.remove(id).pending--;
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      error("Failed to read outbox segment '%s' entirely, the rest of it is ignored".f(path(segment.file)), e);
+    }
+    finally {
+      if (in != null) {
+        try { in.close(); } catch (IOException ignored) {}
+      }
+    }
+  }
+
+
+  /**
+   * Starts a new active segment if the current one is too big.
+   */
+  private void rollIfNeeded(){
+    val active = segments.getLast();
+    if ((out != null) && (active.size >= segmentSize)) {
+      roll(active.sequence + 1);
+      compact();
+    }
+  }
+
+
+  /**
+   * Deletes leading segments without pending deliveries. If there are still too many segments,
+   * moves pending deliveries of the oldest one to the active segment.
+   */
+  private void compact(){
+    while (segments.size() > 1) {
+      val oldest = segments.getFirst();
+      if (oldest.pending > 0) {
+        if (segments.size() <= maxSegments) { return; }
+        relocate(oldest);
+        if (oldest.pending > 0) { return; }
+      }
+
+      segments.removeFirst();
+      if (! oldest.file.delete()) {
+        error("Failed to delete outbox segment '%s'".f(path(oldest.file)));
+      }
+    }
+  }
+
+
+  /**
+   * Re-appends deliveries of the oldest segment in the order they were dispatched. Deliveries acknowledged
+   * but not journaled as such yet stay, their "ACK" records are coming.
+   */
+  private void relocate(@NonNull Segment oldest){
+    val relocated = new ArrayList<WebhookDelivery>();
+    for (val owner : owners.entrySet()){
+      val delivery = (owner.getValue() == oldest) ? pending.get(owner.getKey()) : null;
+      if (delivery != null) { relocated.add(delivery); }
+    }
+
+    val active = segments.getLast();
+    for (val delivery : byId(relocated)){
+      if (! write(new Record(ADD, delivery.getId(), delivery, delivery.getAttempts()))) { return; }
+      owners.put(delivery.getId(), active);
+      active.pending++;
+      oldest.pending--;
+    }
+  }
+
+
+  /**
+   * Starts a new active segment.
+   */
+  private void roll(long sequence){
+    sync();
+    closeQuietly();
+    val segment = new Segment(new File(directory, "%s%020d%s".f(SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX)), sequence);
+    try {
+      out = new FileOutputStream(segment.file, true);
+      segment.size = segment.file.length();
+      segments.add(segment);
+    }
+    catch (IOException e) {
+      error("Failed to open outbox segment '%s', deliveries will not survive restarts".f(path(segment.file)), e);
+      out = null;
+    }
+  }
+
+
+  private void closeQuietly(){
+    if (out != null) {
+      try { out.close(); }
+      catch (IOException e) { error("Failed to close outbox segment", e); }
+      out = null;
+    }
+  }
+
+
+  private List<File> segmentFiles(){
+    val files  = directory.listFiles();
+    val result = new ArrayList<File>();
+    if (files != null) {
+      for (val file : files){
+        if (SEGMENT_PATTERN.matcher(file.getName()).matches()) { result.add(file); }
+      }
+    }
+
+    Collections.sort(result, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        return Long.valueOf(sequence(f1)).compareTo(sequence(f2));
+      }
+    });
+
+    return result;
+  }
+
+
+  /**
+   * Deliveries specified in the order they were dispatched.
+   */
+  private static List<WebhookDelivery> byId(@NonNull Collection<WebhookDelivery> deliveries){
+    val result = new ArrayList<WebhookDelivery>(deliveries);
+    Collections.sort(result, new Comparator<WebhookDelivery>() {
+      public int compare(WebhookDelivery d1, WebhookDelivery d2) {
+        return Long.valueOf(d1.getId()).compareTo(d2.getId());
+      }
+    });
+    return result;
+  }
+
+
+  private static long crc(@NonNull byte[] bytes){
+    val crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+
+  private static long sequence(@NonNull File segmentFile){
+    val matcher = SEGMENT_PATTERN.matcher(segmentFile.getName());
+    return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+  }
+
+
+  /**
+   * Record queued for the writer thread, "delivery" is only set for "ADD" records.
+   */
+  private static class Record {
+    final byte            type;
+    final long            id;
+    final WebhookDelivery delivery;
+    final int             attempts;
+
+    Record(byte type, long id, WebhookDelivery delivery, int attempts) {
+      this.type     = type;
+      this.id       = id;
+      this.delivery = delivery;
+      this.attempts = attempts;
+    }
+  }
+
+
+  private static class Segment {
+    final File file;
+    final long sequence;
+    long       size;
+    int        pending;
+
+    Segment(@NonNull File file, long sequence) {
+      this.file     = file;
+      this.sequence = sequence;
+    }
+  }
+}
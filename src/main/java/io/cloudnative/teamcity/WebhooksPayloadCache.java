@@ -0,0 +1,99 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhookPayload.*;
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Parts of build's payloads that don't change during the build (SCM details, URLs), kept by build id,
+ * so that "started", "finished" and "interrupted" events of a build resolve them once. Build parameters
+ * are not kept, they're resolved for each event.
+ *
+ * Fragments of at most "teamcity.webhooks.payloadCache.size" builds are kept, each one for
+ * "teamcity.webhooks.payloadCache.ttl" ms since it was last used.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksPayloadCache {
+
+  Cache<Long, Fragments> fragments;
+
+
+  public WebhooksPayloadCache() {
+    this(Ticker.systemTicker());
+  }
+
+
+  /**
+   * @param ticker time source of fragments' expiration
+   */
+  WebhooksPayloadCache(@NonNull Ticker ticker) {
+    fragments = CacheBuilder.newBuilder().
+                             maximumSize(Math.max(0, TeamCityProperties.getInteger(PAYLOAD_CACHE_SIZE_PROPERTY, PAYLOAD_CACHE_SIZE))).
+                             expireAfterAccess(Math.max(0, TeamCityProperties.getLong(PAYLOAD_CACHE_TTL_PROPERTY, PAYLOAD_CACHE_TTL)),
+                                               TimeUnit.MILLISECONDS).
+                             ticker(ticker).
+                             recordStats().
+                             build();
+  }
+
+
+  /**
+   * Retrieves fragments of build's payload, resolving them with the loader specified if they're not cached.
+   */
+  @NonNull
+  Fragments fragments(long buildId, @NonNull Callable<Fragments> loader){
+    try {
+      return fragments.get(buildId, loader);
+    }
+    catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+
+  long hitCount(){
+    return fragments.stats().hitCount();
+  }
+
+
+  long missCount(){
+    return fragments.stats().missCount();
+  }
+
+
+  long evictionCount(){
+    return fragments.stats().evictionCount();
+  }
+
+
+  long size(){
+    return fragments.size();
+  }
+
+
+  /**
+   * Payload parts resolved once per build.
+   */
+  @Getter
+  @AllArgsConstructor(staticName = "of")
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  static class Fragments {
+    String name;
+    String url;
+    String fullUrl;
+    Scm    scm;
+  }
+}
@@ -0,0 +1,145 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Logs payloads of build events to their own "jetbrains.buildServer.WEBHOOKS" category, see PAYLOAD_LOG.
+ *
+ * Build events only hand payloads over to a single logging thread, which decodes and writes them, so logging
+ * adds no I/O to the event path. When "teamcity.webhooks.log.queueSize" payloads are already waiting, new ones
+ * are not logged and only counted.
+ *
+ * At INFO level only the first "teamcity.webhooks.log.maxLength" bytes of a payload are logged, and payloads
+ * larger than "teamcity.webhooks.log.sampleThreshold" bytes are logged one in "teamcity.webhooks.log.sampleRate".
+ * With DEBUG enabled for the category every payload is logged in full.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksPayloadLog {
+
+  /**
+   * Log category payloads are written to.
+   */
+  interface Category {
+    boolean isDebugEnabled();
+    void debug(@NonNull String message);
+    void info(@NonNull String message);
+    void warn(@NonNull String message);
+  }
+
+  Category           category;
+  int                maxLength;
+  int                sampleThreshold;
+  int                sampleRate;
+  ThreadPoolExecutor executor;
+  AtomicLong         large   = new AtomicLong();
+  AtomicLong         dropped = new AtomicLong();
+
+
+  public WebhooksPayloadLog() {
+    this(new Category() {
+      public boolean isDebugEnabled() { return PAYLOAD_LOG.isDebugEnabled(); }
+      public void debug(@NonNull String message) { PAYLOAD_LOG.debug(message); }
+      public void info(@NonNull String message) { PAYLOAD_LOG.info(message); }
+      public void warn(@NonNull String message) { PAYLOAD_LOG.warn(message); }
+    });
+  }
+
+
+  /**
+   * @param category log category payloads are written to
+   */
+  WebhooksPayloadLog(@NonNull Category category) {
+    this.category   = category;
+    maxLength       = Math.max(0, TeamCityProperties.getInteger(LOG_MAX_LENGTH_PROPERTY, LOG_MAX_LENGTH));
+    sampleThreshold = Math.max(0, TeamCityProperties.getInteger(LOG_SAMPLE_THRESHOLD_PROPERTY, LOG_SAMPLE_THRESHOLD));
+    sampleRate      = Math.max(1, TeamCityProperties.getInteger(LOG_SAMPLE_RATE_PROPERTY, LOG_SAMPLE_RATE));
+    executor        = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                             new ArrayBlockingQueue<Runnable>(Math.max(1, TeamCityProperties.getInteger(LOG_QUEUE_SIZE_PROPERTY,
+                                                                                                                        LOG_QUEUE_SIZE))),
+                                             new ThreadFactoryBuilder().setDaemon(true).
+                                                                        setNameFormat(PLUGIN_NAME + "-log-%d").
+                                                                        build());
+  }
+
+
+  /**
+   * Writes payloads waiting to be logged.
+   */
+  public void shutdown(){
+    executor.shutdown();
+    try {
+      executor.awaitTermination(POST_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reportDropped();
+  }
+
+
+  /**
+   * Logs payload of the event specified, unless it's sampled out.
+   *
+   * @param description event the payload is sent for, like "Build 'Project :: Build/#12' finished"
+   */
+  void payload(@NonNull final String description, @NonNull final EncodedPayload payload){
+    final boolean full = category.isDebugEnabled();
+    if (! (full || sampled(payload))) { return; }
+
+    try {
+      executor.execute(new Runnable() {
+        public void run() { write(description, payload, full); }
+      });
+    }
+    catch (RejectedExecutionException ignored) {
+      dropped.incrementAndGet();
+    }
+  }
+
+
+  private boolean sampled(@NonNull EncodedPayload payload){
+    return (payload.size() <= sampleThreshold) || ((large.getAndIncrement() % sampleRate) == 0);
+  }
+
+
+  private void write(@NonNull String description, @NonNull EncodedPayload payload, boolean full){
+    reportDropped();
+
+    val size = payload.size();
+    if (full) {
+      category.debug("WebHooks plugin - %s, payload is '%s'".f(description, payload));
+    }
+    else if (size <= maxLength) {
+      category.info("WebHooks plugin - %s, payload is '%s'".f(description, payload));
+    }
+    else if (maxLength == 0) {
+      category.info("WebHooks plugin - %s, payload of %s bytes".f(description, size));
+    }
+    else {
+      // Only the bytes logged are decoded, a multi-byte character cut at the end is decoded as U+FFFD
+      val head = payload.buffer();
+      head.limit(maxLength);
+      category.info("WebHooks plugin - %s, payload of %s bytes is '%s..' (truncated)".f(
+        description, size, EncodedPayload.UTF8.decode(head)));
+    }
+  }
+
+
+  private void reportDropped(){
+    val count = dropped.getAndSet(0);
+    if (count > 0) {
+      category.warn("WebHooks plugin - %s payloads were not logged, logging queue was full".f(count));
+    }
+  }
+}
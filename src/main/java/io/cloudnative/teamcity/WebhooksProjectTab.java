@@ -17,6 +17,9 @@ import lombok.val;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -24,16 +27,22 @@ import java.util.Map;
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebhooksProjectTab extends ProjectTab {
 
-  PluginDescriptor pluginDescriptor;
-  WebhooksSettings settings;
+  PluginDescriptor   pluginDescriptor;
+  WebhooksSettings   settings;
+  WebhooksIndex      index;
+  WebhooksDispatcher dispatcher;
 
   public WebhooksProjectTab(@NotNull PagePlaces pagePlaces,
                             @NotNull ProjectManager projectManager,
                             @NotNull PluginDescriptor pluginDescriptor,
-                            @NotNull WebhooksSettings settings) {
+                            @NotNull WebhooksSettings settings,
+                            @NotNull WebhooksIndex index,
+                            @NotNull WebhooksDispatcher dispatcher) {
     super(PLUGIN_NAME, PLUGIN_TITLE, pagePlaces, projectManager);
     this.pluginDescriptor = pluginDescriptor;
     this.settings         = settings;
+    this.index            = index;
+    this.dispatcher       = dispatcher;
   }
 
 
@@ -42,12 +51,50 @@ public class WebhooksProjectTab extends ProjectTab {
                             @NotNull  HttpServletRequest request,
                             @NotNull  SProject project,
                             @Nullable SUser user){
-    val projectId = project.getExternalId();
-    model.putAll(ImmutableMap.of(
-      "projectId", projectId,
-      "canEdit",   (user != null) && user.getPermissionsGrantedForProject(projectId).contains(Permission.EDIT_PROJECT),
-      "urls",      Ordering.natural().immutableSortedCopy(settings.getUrls(projectId)),
-      "action",    CONTROLLER_PATH));
+    val projectId     = project.getExternalId();
+    val compressions  = new HashMap<String, String>();
+    val batches       = new HashMap<String, Boolean>();
+    val coalesces     = new HashMap<String, Boolean>();
+    val subscriptions = new HashMap<String, String>();
+    val breakers      = new HashMap<String, String>();
+    val rateLimits    = new HashMap<String, String>();
+    val bursts        = new HashMap<String, String>();
+    val inherited     = index.getInherited(projectId);
+    for (val endpoint : index.getEndpoints(projectId)){
+      compressions.put(endpoint.getUrl(), endpoint.getCompression().getName());
+      batches.put(endpoint.getUrl(), endpoint.isBatch());
+      coalesces.put(endpoint.getUrl(), endpoint.isCoalesce());
+      subscriptions.put(endpoint.getUrl(), endpoint.getSubscription().toString());
+      rateLimits.put(endpoint.getUrl(), (endpoint.getRateLimit() > 0) ? TokenBucket.rate(endpoint.getRateLimit()) : "");
+      bursts.put(endpoint.getUrl(), (endpoint.getBurst() > 1) ? String.valueOf(endpoint.getBurst()) : "");
+      val breaker = dispatcher.breaker(endpoint.getUrl());
+      val bucket  = dispatcher.bucket(endpoint.getUrl());
+      breakers.put(endpoint.getUrl(), ((breaker == null) ? "no deliveries yet" : breaker.toString()) +
+                                      (((bucket != null) && bucket.isPaused()) ? "; " + bucket : ""));
+    }
+
+    model.putAll(ImmutableMap.<String, Object>builder().
+      put("projectId",         projectId).
+      put("canEdit",           (user != null) && user.getPermissionsGrantedForProject(projectId).contains(Permission.EDIT_PROJECT)).
+      put("urls",              Ordering.natural().immutableSortedCopy(settings.getUrls(projectId))).
+      put("inherited",         inherited).
+      put("compressions",      compressions).
+      put("compressionValues", compressionValues()).
+      put("batches",           batches).
+      put("coalesces",         coalesces).
+      put("breakers",          breakers).
+      put("subscriptions",     subscriptions).
+      put("rateLimits",        rateLimits).
+      put("bursts",            bursts).
+      put("action",            CONTROLLER_PATH).
+      build());
+  }
+
+
+  private static List<String> compressionValues(){
+    val values = new ArrayList<String>();
+    for (val compression : WebhookEndpoint.Compression.values()){ values.add(compression.getName()); }
+    return values;
   }
 
 
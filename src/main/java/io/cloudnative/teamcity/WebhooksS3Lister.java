@@ -0,0 +1,185 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+
+/**
+ * Lists S3 objects under a prefix completely, following listing continuation markers,
+ * listing sub-prefixes ("directories") found on every page of the top level in parallel,
+ * and within "teamcity.webhooks.s3.listingTimeout" ms.
+ *
+ * Keys are streamed to the {@link KeyVisitor} on the calling thread, page by page, as they arrive.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksS3Lister {
+
+  /**
+   * Receives keys listed, always called on the thread calling {@link #list}.
+   */
+  interface KeyVisitor {
+    void visit(@NonNull String key);
+  }
+
+  static final List<String> DONE = new ArrayList<String>(0);
+
+  ExecutorService executor;
+  long            timeout;
+
+
+  public WebhooksS3Lister() {
+    timeout  = Math.max(1, TeamCityProperties.getLong(S3_LISTING_TIMEOUT_PROPERTY, S3_LISTING_TIMEOUT));
+    executor = Executors.newFixedThreadPool(Math.max(1, TeamCityProperties.getInteger(S3_LISTING_THREADS_PROPERTY, S3_LISTING_THREADS)),
+                                            new ThreadFactoryBuilder().setDaemon(true).
+                                                                       setNameFormat(PLUGIN_NAME + "-s3-lister-%d").
+                                                                       build());
+  }
+
+
+  public void shutdown(){
+    executor.shutdownNow();
+  }
+
+
+  /**
+   * Lists all keys under the prefix specified.
+   *
+   * @return true if listing is complete, false if it has failed or ran out of time and only some of keys were visited
+   */
+  boolean list(@NonNull final AmazonS3 s3Client, @NonNull final String bucketName,
+               @NonNull String prefix, @NonNull KeyVisitor visitor){
+
+    val deadline = System.currentTimeMillis() + timeout;
+    val pages    = new LinkedBlockingQueue<List<String>>();
+    val tasks    = new ArrayList<Future<?>>();
+    boolean failed = false;
+
+    try {
+      // Top level is listed with a delimiter, page by page: "directories" of every page are listed in parallel,
+      // each one in full
+      ObjectListing listing = s3Client.listObjects(new ListObjectsRequest(bucketName, prefix, null, "/", S3_PAGE_SIZE));
+      while (true) {
+        visit(keys(listing), visitor);
+        for (final String subPrefix : listing.getCommonPrefixes()){
+          tasks.add(executor.submit(new Lister(s3Client, pages) {
+            ObjectListing firstPage() {
+              return s3Client.listObjects(new ListObjectsRequest(bucketName, subPrefix, null, null, S3_PAGE_SIZE));
+            }
+          }));
+        }
+        if (! listing.isTruncated()) { break; }
+        if (System.currentTimeMillis() >= deadline) {
+          timedOut(bucketName, prefix);
+          failed = true;
+          break;
+        }
+        listing = s3Client.listNextBatchOfObjects(listing);
+      }
+
+      int completed = 0;
+      while ((! failed) && (completed < tasks.size())) {
+        val page = pages.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        if (page == null) {
+          timedOut(bucketName, prefix);
+          failed = true;
+        }
+        else if (page == DONE) {
+          completed++;
+        }
+        else {
+          visit(page, visitor);
+        }
+      }
+
+      // Listers put DONE just before they complete, so they are waited for rather than cancelled while completing
+      for (val task : tasks){
+        if (failed) { break; }
+        try {
+          task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e) {
+          error("Failed to list S3 objects in '%s/%s', artifacts listed are incomplete".f(bucketName, prefix), e.getCause());
+          failed = true;
+        }
+        catch (TimeoutException ignored) {
+          timedOut(bucketName, prefix);
+          failed = true;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed = true;
+    }
+    finally {
+      for (val task : tasks){ task.cancel(true); }
+    }
+
+    return (! failed);
+  }
+
+
+  private void timedOut(@NonNull String bucketName, @NonNull String prefix){
+    error("Listing of S3 objects in '%s/%s' has timed out after %s ms, artifacts listed are incomplete".f(
+          bucketName, prefix, timeout));
+  }
+
+
+  private static void visit(@NonNull List<String> keys, @NonNull KeyVisitor visitor){
+    for (val key : keys){ visitor.visit(key); }
+  }
+
+
+  private static List<String> keys(@NonNull ObjectListing listing){
+    val summaries = listing.getObjectSummaries();
+    val keys      = new ArrayList<String>(summaries.size());
+    for (val summary : summaries){ keys.add(summary.getKey()); }
+    return keys;
+  }
+
+
+  /**
+   * Lists pages starting from the {@link #firstPage}, puts keys of each page to the queue and {@link #DONE} when finished.
+   * Exception thrown is reported by the Future, {@link #DONE} is put regardless.
+   */
+  private abstract static class Lister implements Callable<Void> {
+    final AmazonS3                   s3Client;
+    final BlockingQueue<List<String>> pages;
+
+    Lister(@NonNull AmazonS3 s3Client, @NonNull BlockingQueue<List<String>> pages) {
+      this.s3Client = s3Client;
+      this.pages    = pages;
+    }
+
+    abstract ObjectListing firstPage();
+
+    public Void call() {
+      try {
+        ObjectListing listing = firstPage();
+        pages.add(keys(listing));
+        while (listing.isTruncated() && (! Thread.currentThread().isInterrupted())) {
+          listing = s3Client.listNextBatchOfObjects(listing);
+          pages.add(keys(listing));
+        }
+        return null;
+      }
+      finally {
+        pages.add(DONE);
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Long-lived, thread-safe source of S3 client and artifacts bucket details.
+ *
+ * S3 settings file is re-read and S3 client is re-created only when the file is modified,
+ * bucket existence and region are cached for "teamcity.webhooks.s3.bucketCacheTtl" ms,
+ * so that listing build's objects is the only S3 request made per build.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksS3Resolver {
+
+  /**
+   * Creates S3 clients, with default credentials when keys are not configured.
+   */
+  interface ClientFactory {
+    AmazonS3 create(String awsAccessKey, String awsSecretKey);
+  }
+
+  static final ClientFactory CLIENTS = new ClientFactory() {
+    public AmazonS3 create(String awsAccessKey, String awsSecretKey) {
+      return isEmpty(awsAccessKey, awsSecretKey) ?
+        new AmazonS3Client() :
+        new AmazonS3Client(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+    }
+  };
+
+  File                        settingsFile;
+  long                        bucketCacheTtl;
+  ClientFactory               clients;
+  Ticker                      ticker;
+  @NonFinal volatile Settings settings;
+
+
+  public WebhooksS3Resolver(@NonNull ServerPaths serverPaths) {
+    this(serverPaths, CLIENTS, Ticker.systemTicker());
+  }
+
+
+  /**
+   * @param clients creates S3 client when settings are (re-)read
+   * @param ticker  time source of bucket details' expiration
+   */
+  WebhooksS3Resolver(@NonNull ServerPaths serverPaths, @NonNull ClientFactory clients, @NonNull Ticker ticker) {
+    settingsFile   = new File(serverPaths.getConfigDir(), S3_SETTINGS_FILE);
+    bucketCacheTtl = Math.max(0, TeamCityProperties.getLong(S3_BUCKET_CACHE_TTL_PROPERTY, S3_BUCKET_CACHE_TTL));
+    this.clients   = clients;
+    this.ticker    = ticker;
+  }
+
+
+  /**
+   * Retrieves S3 client and details of the artifacts bucket,
+   * null if S3 is not configured or the bucket doesn't exist.
+   */
+  Bucket resolve(){
+    val settings = settings();
+    if ((settings == null) || isEmpty(settings.bucketName)) {
+      return null;
+    }
+
+    try {
+      val bucket = settings.buckets.getUnchecked(settings.bucketName);
+      return (bucket.exists ? bucket : null);
+    }
+    catch (Throwable t) {
+      error("Failed to resolve S3 bucket '%s'".f(settings.bucketName), t);
+      return null;
+    }
+  }
+
+
+  /**
+   * Retrieves current S3 settings, re-reads them if settings file was modified since last time.
+   */
+  private Settings settings(){
+    val current      = settings;
+    val lastModified = settingsFile.lastModified(); // 0 if file doesn't exist
+    val length       = settingsFile.length();
+
+    if ((current != null) && (current.lastModified == lastModified) && (current.length == length)) {
+      return current;
+    }
+
+    return reload(lastModified, length);
+  }
+
+
+  private synchronized Settings reload(long lastModified, long length){
+    if ((settings != null) && (settings.lastModified == lastModified) && (settings.length == length)) {
+      return settings;
+    }
+
+    Settings newSettings = null;
+
+    if (settingsFile.isFile()) {
+      try {
+        val s3Settings   = readJsonFile(settingsFile);
+        val bucketName   = ((String) s3Settings.get("artifactBucket"));
+        val awsAccessKey = ((String) s3Settings.get("awsAccessKey"));
+        val awsSecretKey = ((String) s3Settings.get("awsSecretKey"));
+
+        final AmazonS3 s3Client = clients.create(awsAccessKey, awsSecretKey);
+
+        newSettings = new Settings(lastModified, length, bucketName, s3Client, bucketsCache(s3Client));
+        log("S3 settings loaded from '%s', artifacts bucket is '%s'".f(path(settingsFile), bucketName));
+      }
+      catch (Throwable t) {
+        error("Failed to read S3 settings from '%s'".f(path(settingsFile)), t);
+      }
+    }
+
+    if (newSettings == null) {
+      newSettings = new Settings(lastModified, length, null, null, null);
+    }
+
+    val previous = settings;
+    settings     = newSettings;
+
+    // Listing that is still using previous client fails and is reported by the listener
+    if ((previous != null) && (previous.s3Client instanceof AmazonS3Client)) {
+      ((AmazonS3Client) previous.s3Client).shutdown();
+    }
+
+    return newSettings;
+  }
+
+
+  private LoadingCache<String, Bucket> bucketsCache(@NonNull final AmazonS3 s3Client){
+    return CacheBuilder.newBuilder().
+                        expireAfterWrite(bucketCacheTtl, TimeUnit.MILLISECONDS).
+                        ticker(ticker).
+                        build(new CacheLoader<String, Bucket>() {
+                          @Override
+                          public Bucket load(@NonNull String bucketName) {
+                            if (! s3Client.doesBucketExist(bucketName)) {
+                              error("S3 bucket '%s' doesn't exist".f(bucketName));
+                              return new Bucket(s3Client, bucketName, null, false);
+                            }
+                            return new Bucket(s3Client, bucketName, s3Client.getBucketLocation(bucketName), true);
+                          }
+                        });
+  }
+
+
+  /**
+   * S3 client and artifacts bucket.
+   */
+  @Getter
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  static class Bucket {
+    AmazonS3 s3Client;
+    String   name;
+    String   region;
+    boolean  exists;
+  }
+
+
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Settings {
+    long                         lastModified;
+    long                         length;
+    String                       bucketName;
+    AmazonS3                     s3Client;
+    LoadingCache<String, Bucket> buckets;
+  }
+}
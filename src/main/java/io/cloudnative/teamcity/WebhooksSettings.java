@@ -2,82 +2,339 @@ package io.cloudnative.teamcity;
 
 import static io.cloudnative.teamcity.WebhooksConstants.*;
 import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import lombok.AccessLevel;
 import lombok.NonNull;
-import lombok.SneakyThrows;
 import lombok.experimental.ExtensionMethod;
 import lombok.experimental.FieldDefaults;
 import lombok.val;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 
+/**
+ * Webhooks of each project, kept in a file per project, "<TeamCity Data Directory>/config/webhooks/ProjectId.json":
+ * ["http://plain/url", {"url": "http://compressed/url", "compression": "gzip", "batch": true}]
+ *
+ * Webhooks with default options are kept as plain URLs, as they were before delivery options were added.
+ *
+ * Project's webhooks are read when they are needed for the first time, and an edit only rewrites the file of
+ * the project edited, so neither startup nor edits get slower with the number of projects. Settings of all
+ * projects used to be kept in a single "<TeamCity Data Directory>/config/webhooks.json" file, it is split into
+ * per-project files once and renamed to "webhooks.json.migrated".
+ *
+ * Webhooks of a project are an immutable map: readers (build events) take no locks and allocate nothing, writers
+ * (UI) copy the map, change the copy and publish it. Changes are saved "teamcity.webhooks.settings.flushDelay" ms
+ * after the first unsaved one, so a burst of changes is written once. Files are written next to the old ones and
+ * renamed over them, so a crash never leaves them half-written.
+ */
 @ExtensionMethod(LombokExtensions.class)
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebhooksSettings {
 
-  File                    settingsFile;
-  Map<String,Set<String>> urls;
+  static final Charset                               UTF8       = Charset.forName("UTF-8");
+  static final ImmutableMap<String, WebhookEndpoint> NONE       = ImmutableMap.of();
+
+  /**
+   * TeamCity external ids: latin letters, digits and underscores.
+   */
+  static final Pattern                               PROJECT_ID = Pattern.compile("[A-Za-z0-9_]+");
+
+  File                                               directory;
+  File                                               legacyFile;
+  long                                               flushDelay;
+  ScheduledExecutorService                           flusher;
+  AtomicBoolean                                      flushScheduled = new AtomicBoolean();
+
+  /**
+   * Webhooks of projects read so far, {@link #NONE} for projects without webhooks.
+   */
+  ConcurrentMap<String, ImmutableMap<String, WebhookEndpoint>> projects =
+    new ConcurrentHashMap<String, ImmutableMap<String, WebhookEndpoint>>();
+
+  /**
+   * Projects changed and not saved yet.
+   */
+  Set<String>                                        unsaved = Sets.newConcurrentHashSet();
+
+  /**
+   * Incremented with every change published.
+   */
+  AtomicLong                                         version = new AtomicLong();
+
 
   public WebhooksSettings(@NonNull ServerPaths serverPaths) {
-    settingsFile = new File(serverPaths.getConfigDir(), SETTINGS_FILE);
-    urls         = restoreSettings();
+    directory  = new File(serverPaths.getConfigDir(), PLUGIN_NAME);
+    legacyFile = new File(serverPaths.getConfigDir(), SETTINGS_FILE);
+    flushDelay = Math.max(0, TeamCityProperties.getLong(SETTINGS_FLUSH_DELAY_PROPERTY, SETTINGS_FLUSH_DELAY));
+    flusher    = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).
+                                                                                       setNameFormat(PLUGIN_NAME + "-settings-%d").
+                                                                                       build());
+    migrate();
+  }
+
+
+  /**
+   * Saves pending changes right away.
+   */
+  public void shutdown(){
+    flusher.shutdownNow();
+    saveSettings();
   }
 
 
-  @SuppressWarnings("ConstantConditions")
   @NonNull
   Set<String> getUrls(@NonNull String projectId){
-    if (! urls.containsKey(notEmpty(projectId, "Empty projectId"))) {
-      urls.put(projectId, new HashSet<String>());
-    }
-    return urls.get(projectId);
+    return project(projectId).keySet();
+  }
+
+
+  @NonNull
+  Collection<WebhookEndpoint> getEndpoints(@NonNull String projectId){
+    return project(projectId).values();
+  }
+
+
+  /**
+   * Settings version, changes whenever webhooks of any project change.
+   */
+  long version(){
+    return version.get();
   }
 
 
   void addUrl(@NonNull String projectId, @NonNull String url){
-    getUrls(projectId).add(notEmpty(url, "Empty URL can not be added"));
-    saveSettings();
+    addEndpoint(projectId, WebhookEndpoint.of(notEmpty(url, "Empty URL can not be added")));
   }
 
 
-  void removeUrl(@NonNull String projectId, @NonNull String url){
-    getUrls(projectId).remove(notEmpty(url, "Empty URL should not be removed"));
-    saveSettings();
+  synchronized void addEndpoint(@NonNull String projectId, @NonNull WebhookEndpoint endpoint){
+    val projectEndpoints = endpoints(projectId);
+    projectEndpoints.put(notEmpty(endpoint.getUrl(), "Empty URL can not be added"), endpoint);
+    publish(projectId, projectEndpoints);
+  }
+
+
+  /**
+   * Replaces options of the endpoint with the same URL.
+   */
+  synchronized void updateEndpoint(@NonNull String projectId, @NonNull WebhookEndpoint endpoint){
+    val projectEndpoints = endpoints(projectId);
+    if (! projectEndpoints.containsKey(endpoint.getUrl())) {
+      throw new RuntimeException("Unknown URL '%s' can not be updated".f(endpoint.getUrl()));
+    }
+    projectEndpoints.put(endpoint.getUrl(), endpoint);
+    publish(projectId, projectEndpoints);
+  }
+
+
+  synchronized void removeUrl(@NonNull String projectId, @NonNull String url){
+    val projectEndpoints = endpoints(projectId);
+    projectEndpoints.remove(notEmpty(url, "Empty URL should not be removed"));
+    publish(projectId, projectEndpoints);
+  }
+
+
+  /**
+   * Project's webhooks, read from its file the first time they are needed.
+   */
+  private ImmutableMap<String, WebhookEndpoint> project(@NonNull String projectId){
+    val projectEndpoints = projects.get(projectId);
+    if (projectEndpoints != null) { return projectEndpoints; }
+    if (! PROJECT_ID.matcher(projectId).matches()) { return NONE; }
+
+    // A change published meanwhile wins over what was read
+    val existing = projects.putIfAbsent(projectId, restoreSettings(projectId));
+    return (existing != null) ? existing : projects.get(projectId);
+  }
+
+
+  /**
+   * Mutable copy of project's webhooks.
+   */
+  private Map<String, WebhookEndpoint> endpoints(@NonNull String projectId){
+    if (! PROJECT_ID.matcher(notEmpty(projectId, "Empty projectId")).matches()) {
+      throw new RuntimeException("Invalid projectId '%s'".f(projectId));
+    }
+    return new LinkedHashMap<String, WebhookEndpoint>(project(projectId));
+  }
+
+
+  /**
+   * Publishes project's webhooks and schedules saving them.
+   */
+  private void publish(@NonNull String projectId, @NonNull Map<String, WebhookEndpoint> projectEndpoints){
+    projects.put(projectId, ImmutableMap.copyOf(projectEndpoints));
+    version.incrementAndGet();
+    unsaved.add(projectId);
+    scheduleSave();
+  }
+
+
+  private void scheduleSave(){
+    if (! flushScheduled.compareAndSet(false, true)) { return; }
+    try {
+      flusher.schedule(new Runnable() {
+        public void run() {
+          // Cleared before projects are saved, so that a change published meanwhile schedules another save
+          flushScheduled.set(false);
+          saveSettings();
+        }
+      }, flushDelay, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException ignored) {
+      // Shutting down, saved by shutdown()
+      flushScheduled.set(false);
+    }
+  }
+
+
+  private File projectFile(@NonNull String projectId){
+    return new File(directory, projectId + ".json");
   }
 
 
   @SuppressWarnings("unchecked")
-  private Map<String,Set<String>> restoreSettings(){
+  private ImmutableMap<String, WebhookEndpoint> restoreSettings(@NonNull String projectId){
+    val projectFile = projectFile(projectId);
+    if (! projectFile.isFile()) {
+      return NONE;
+    }
+
+    try {
+      val entries = (List<Object>) new Gson().fromJson(Files.toString(projectFile, UTF8), List.class);
+      return toEndpoints(entries);
+    }
+    catch (Throwable t) {
+      error("Failed to restore settings from '%s'".f(path(projectFile)), t);
+      return NONE;
+    }
+  }
+
+
+  private static ImmutableMap<String, WebhookEndpoint> toEndpoints(List<Object> entries){
+    if (entries == null) { return NONE; }
+    val projectEndpoints = new LinkedHashMap<String, WebhookEndpoint>();
+    for (Object entry : entries){
+      val endpoint = WebhookEndpoint.fromSettings(entry);
+      projectEndpoints.put(endpoint.getUrl(), endpoint);
+    }
+    return ImmutableMap.copyOf(projectEndpoints);
+  }
 
-    @SuppressWarnings({"TypeMayBeWeakened", "CollectionDeclaredAsConcreteClass"})
-    val result = new HashMap<String, Set<String>>();
 
-    if (settingsFile.isFile()) {
-      try {
-        Map<String, List<String>> map = (Map<String, List<String>>) readJsonFile(settingsFile);
-        for (String url : map.keySet()){
-          result.put(url, Sets.newHashSet(map.get(url)));
+  /**
+   * Splits the legacy settings file of all projects into per-project files, if it's still there.
+   * The legacy file is renamed only when all projects are written, so an interrupted migration is re-run.
+   * Projects that already have a file are skipped, so files changed since an interrupted migration are kept.
+   */
+  @SuppressWarnings("unchecked")
+  private void migrate(){
+    if (! legacyFile.isFile()) { return; }
+
+    try {
+      Map<String, List<Object>> map = (Map<String, List<Object>>) readJsonFile(legacyFile);
+      for (String projectId : map.keySet()){
+        if (! PROJECT_ID.matcher(projectId).matches()) {
+          error("Skipping webhooks of invalid projectId '%s' in '%s'".f(projectId, path(legacyFile)));
+          continue;
+        }
+        val projectFile = projectFile(projectId);
+        if (projectFile.isFile()) {
+          log("Skipping webhooks of project '%s', '%s' already exists".f(projectId, path(projectFile)));
+          continue;
         }
+        write(projectFile, toJson(toEndpoints(map.get(projectId))));
       }
-      catch (Throwable t) {
-        error("Failed to restore settings from '%s'".f(path(settingsFile)), t);
+
+      val migratedFile = new File(legacyFile.getPath() + ".migrated");
+      if (! legacyFile.renameTo(migratedFile)) {
+        throw new IOException("Failed to rename '%s' to '%s'".f(path(legacyFile), path(migratedFile)));
       }
+      log("Webhooks of %s projects moved from '%s' to '%s'".f(map.size(), path(legacyFile), path(directory)));
+    }
+    catch (Throwable t) {
+      error("Failed to move settings from '%s' to '%s'".f(path(legacyFile), path(directory)), t);
     }
-
-    return result;
   }
 
 
-  @SneakyThrows(IOException.class)
+  /**
+   * Saves projects changed since the last save. A failure is logged and the project is saved again with
+   * the next change or on shutdown.
+   */
   private void saveSettings(){
-    String content = new Gson().toJson(urls);
-    Files.write(content, settingsFile, Charset.forName("UTF-8"));
+    synchronized (directory) {
+      for (val projectId : new ArrayList<String>(unsaved)){
+        // Removed before the project is read, so that a change published meanwhile is saved again
+        unsaved.remove(projectId);
+        val projectEndpoints = projects.get(projectId);
+        val projectFile      = projectFile(projectId);
+        try {
+          if (projectEndpoints.isEmpty()) {
+            if (projectFile.isFile() && (! projectFile.delete())) {
+              throw new IOException("Failed to delete '%s'".f(path(projectFile)));
+            }
+          }
+          else {
+            write(projectFile, toJson(projectEndpoints));
+          }
+        }
+        catch (Throwable t) {
+          unsaved.add(projectId);
+          error("Failed to save settings to '%s'".f(path(projectFile)), t);
+        }
+      }
+    }
+  }
+
+
+  private static byte[] toJson(@NonNull ImmutableMap<String, WebhookEndpoint> projectEndpoints){
+    val entries = new ArrayList<Object>();
+    for (val endpoint : projectEndpoints.values()){
+      entries.add(endpoint.toSettings());
+    }
+    return new Gson().toJson(entries).getBytes(UTF8);
+  }
+
+
+  /**
+   * Writes and syncs a temporary file, then renames it over the file specified.
+   */
+  private static void write(@NonNull File file, @NonNull byte[] content) throws IOException {
+    val tempFile = new File(file.getPath() + ".tmp");
+    Files.createParentDirs(tempFile);
+
+    val out = new FileOutputStream(tempFile);
+    try {
+      out.write(content);
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+
+    // Renaming over an existing file fails on Windows
+    if (! (tempFile.renameTo(file) || (file.delete() && tempFile.renameTo(file)))) {
+      throw new IOException("Failed to rename '%s' to '%s'".f(path(tempFile), path(file)));
+    }
   }
 }
@@ -11,7 +11,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Map;
 
 
@@ -21,14 +20,6 @@ final class WebhooksUtils {
   private WebhooksUtils() {}
 
 
-  @SuppressWarnings({"TypeMayBeWeakened" , "CollectionDeclaredAsConcreteClass"})
-  static <K, V> Map<K, V> map(@NonNull K key, @NonNull V value){
-    val map = new HashMap<K, V>();
-    map.put(key, value);
-    return map;
-  }
-
-
   /**
    * Reads JSON file specified and de-serializes it to Map.
    */
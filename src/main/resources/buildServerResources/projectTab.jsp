@@ -12,18 +12,57 @@
     <c:choose>
       <c:when test="${canEdit}">
         <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><input name="url${j.count}" type="text" value="<c:out value="${url}"/>" size="64" maxlength="256"/></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>>
+          <select name="url${j.count}-compression">
+            <c:forEach items="${compressionValues}" var="compression">
+              <option value="${compression}" <c:if test="${compressions[url] == compression}">selected</c:if>>${compression}</option>
+            </c:forEach>
+          </select>
+          <label><input name="url${j.count}-batch" type="checkbox" value="true" <c:if test="${batches[url]}">checked</c:if>/> batch</label>
+          <label><input name="url${j.count}-coalesce" type="checkbox" value="true" <c:if test="${coalesces[url]}">checked</c:if>/> coalesce</label>
+          <input name="url${j.count}-subscription" type="text" value="<c:out value="${subscriptions[url]}"/>" size="48" maxlength="1024" placeholder="all events" title="events=finished; statuses=failure,error; branches=master,release/*; buildTypes=Echo_Build"/>
+          <input name="url${j.count}-rateLimit" type="text" value="${rateLimits[url]}" size="4" maxlength="16" placeholder="no limit" title="Requests per second"/>/s
+          <input name="url${j.count}-burst" type="text" value="${bursts[url]}" size="3" maxlength="8" placeholder="1" title="Requests sent at once"/> burst
+          <button name="update" value="url${j.count}" class="submitButton" type="submit">Save</button>
+        </td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><span title="Circuit breaker"><c:out value="${breakers[url]}"/></span></td>
         <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><button name="delete" value="url${j.count}" class="submitButton" type="submit">Delete</button></td>
       </c:when>
       <c:otherwise>
-        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><span><c:out value="${url}"/></span></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><span><c:out value="${url}"/></span></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><span title="Circuit breaker"><c:out value="${breakers[url]}"/></span></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><span>${compressions[url]}<c:if test="${batches[url]}">, batch</c:if><c:if test="${coalesces[url]}">, coalesce</c:if><c:if test="${not empty subscriptions[url]}">, <c:out value="${subscriptions[url]}"/></c:if><c:if test="${not empty rateLimits[url]}">, ${rateLimits[url]}/s<c:if test="${not empty bursts[url]}">, burst ${bursts[url]}</c:if></c:if></span></td>
       </c:otherwise>
     </c:choose>
     </tr>
   </c:forEach>
+  <c:forEach items="${inherited}" var="entry" varStatus="j">
+    <tr>
+      <td <c:if test="${urls.size() < 1 && j.count == 1}">style="border-top: none"</c:if>><span><c:out value="${entry.key}"/></span></td>
+      <td <c:if test="${urls.size() < 1 && j.count == 1}">style="border-top: none"</c:if>><span>inherited from <c:out value="${entry.value}"/>: ${compressions[entry.key]}<c:if test="${batches[entry.key]}">, batch</c:if><c:if test="${coalesces[entry.key]}">, coalesce</c:if><c:if test="${not empty subscriptions[entry.key]}">, <c:out value="${subscriptions[entry.key]}"/></c:if><c:if test="${not empty rateLimits[entry.key]}">, ${rateLimits[entry.key]}/s<c:if test="${not empty bursts[entry.key]}">, burst ${bursts[entry.key]}</c:if></c:if></span></td>
+      <td <c:if test="${urls.size() < 1 && j.count == 1}">style="border-top: none"</c:if> <c:if test="${! canEdit}">class="noRightBorder"</c:if>><span title="Circuit breaker"><c:out value="${breakers[entry.key]}"/></span></td>
+      <c:if test="${canEdit}">
+        <td <c:if test="${urls.size() < 1 && j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"></td>
+      </c:if>
+    </tr>
+  </c:forEach>
   <c:if test="${canEdit}">
     <tr>
-      <td <c:if test="${urls.size() < 1}">style="border-top: none"</c:if>><input name="new-url" type="text" value="" size="64" maxlength="256" autofocus/></td>
-      <td <c:if test="${urls.size() < 1}">style="border-top: none"</c:if> class="noRightBorder"><button name="add" value="new-url" class="submitButton" type="submit">Add</button></td>
+      <td <c:if test="${urls.size() + inherited.size() < 1}">style="border-top: none"</c:if>><input name="new-url" type="text" value="" size="64" maxlength="256" autofocus/></td>
+      <td <c:if test="${urls.size() + inherited.size() < 1}">style="border-top: none"</c:if>>
+        <select name="new-url-compression">
+          <c:forEach items="${compressionValues}" var="compression">
+            <option value="${compression}">${compression}</option>
+          </c:forEach>
+        </select>
+        <label><input name="new-url-batch" type="checkbox" value="true"/> batch</label>
+        <label><input name="new-url-coalesce" type="checkbox" value="true" checked/> coalesce</label>
+        <input name="new-url-subscription" type="text" value="" size="48" maxlength="1024" placeholder="all events" title="events=finished; statuses=failure,error; branches=master,release/*; buildTypes=Echo_Build"/>
+        <input name="new-url-rateLimit" type="text" value="" size="4" maxlength="16" placeholder="no limit" title="Requests per second"/>/s
+        <input name="new-url-burst" type="text" value="" size="3" maxlength="8" placeholder="1" title="Requests sent at once"/> burst
+      </td>
+      <td <c:if test="${urls.size() + inherited.size() < 1}">style="border-top: none"</c:if>></td>
+      <td <c:if test="${urls.size() + inherited.size() < 1}">style="border-top: none"</c:if> class="noRightBorder"><button name="add" value="new-url" class="submitButton" type="submit">Add</button></td>
     </tr>
   </c:if>
 <c:if test="${canEdit}">
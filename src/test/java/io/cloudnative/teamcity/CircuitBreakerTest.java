@@ -0,0 +1,188 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.CircuitBreaker.State.*;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CircuitBreakerTest {
+
+  ManualTicker   ticker = new ManualTicker();
+  CircuitBreaker breaker;
+
+
+  @Before
+  public void start(){
+    System.setProperty(WebhooksConstants.BREAKER_WINDOW_PROPERTY, "10");
+    System.setProperty(WebhooksConstants.BREAKER_MIN_CALLS_PROPERTY, "4");
+    System.setProperty(WebhooksConstants.BREAKER_FAILURE_RATE_PROPERTY, "50");
+    System.setProperty(WebhooksConstants.BREAKER_SLOW_CALL_PROPERTY, "1000");
+    System.setProperty(WebhooksConstants.BREAKER_OPEN_DURATION_PROPERTY, "100");
+    breaker = new CircuitBreaker(ticker);
+  }
+
+
+  @After
+  public void stop(){
+    System.clearProperty(WebhooksConstants.BREAKER_WINDOW_PROPERTY);
+    System.clearProperty(WebhooksConstants.BREAKER_MIN_CALLS_PROPERTY);
+    System.clearProperty(WebhooksConstants.BREAKER_FAILURE_RATE_PROPERTY);
+    System.clearProperty(WebhooksConstants.BREAKER_SLOW_CALL_PROPERTY);
+    System.clearProperty(WebhooksConstants.BREAKER_OPEN_DURATION_PROPERTY);
+  }
+
+
+  @Test
+  public void staysClosedUntilMinCallsAreKnown(){
+    record(true, true, true);
+
+    assertEquals(CLOSED, breaker.state());
+    assertEquals(100, breaker.failureRate());
+    assertTrue(breaker.allow());
+  }
+
+
+  @Test
+  public void opensAtFailureRate(){
+    record(false, true, false, true);
+
+    assertEquals(OPEN, breaker.state());
+    assertEquals(1, breaker.trips());
+    assertFalse(breaker.allow());
+    assertEquals(100, breaker.retryDelay());
+  }
+
+
+  @Test
+  public void countsSlowCallsAsFailures(){
+    breaker.record(false, 10);
+    breaker.record(false, 1001);
+    breaker.record(false, 1000);
+    assertEquals("call as slow as the threshold is not slow", CLOSED, breaker.state());
+    breaker.record(false, 5000);
+
+    assertEquals(OPEN, breaker.state());
+  }
+
+
+  @Test
+  public void forgetsOutcomesOutOfWindow(){
+    record(false, false, false, false, false, false, true, true, true);
+    assertEquals(33, breaker.failureRate());
+    record(false, false, false, false, false, false, false, false, false, false);
+
+    assertEquals(CLOSED, breaker.state());
+    assertEquals(0, breaker.failureRate());
+  }
+
+
+  @Test
+  public void staysOpenForOpenDuration(){
+    open();
+
+    ticker.advance(60);
+    assertFalse(breaker.allow());
+    assertEquals(40, breaker.retryDelay());
+
+    ticker.advance(39);
+    assertFalse(breaker.allow());
+    assertEquals(OPEN, breaker.state());
+    assertEquals(1, breaker.retryDelay());
+  }
+
+
+  @Test
+  public void allowsSingleProbeWhenOpenDurationIsOver(){
+    open();
+    ticker.advance(100);
+
+    assertTrue(breaker.allow());
+    assertEquals(HALF_OPEN, breaker.state());
+    assertFalse("second probe is allowed", breaker.allow());
+    assertEquals(0, breaker.retryDelay());
+  }
+
+
+  @Test
+  public void closesWhenProbeSucceeds(){
+    open();
+    ticker.advance(100);
+    assertTrue(breaker.allow());
+
+    breaker.record(false, 10);
+
+    assertEquals(CLOSED, breaker.state());
+    assertEquals(0, breaker.failureRate());
+    assertTrue(breaker.allow());
+  }
+
+
+  @Test
+  public void opensAgainWhenProbeFails(){
+    open();
+    ticker.advance(100);
+    assertTrue(breaker.allow());
+    ticker.advance(30);
+
+    breaker.record(true, 10);
+
+    assertEquals(OPEN, breaker.state());
+    assertEquals(2, breaker.trips());
+    assertFalse(breaker.allow());
+    assertEquals("open duration starts over", 100, breaker.retryDelay());
+    ticker.advance(100);
+    assertTrue(breaker.allow());
+  }
+
+
+  @Test
+  public void opensAgainWhenProbeIsSlow(){
+    open();
+    ticker.advance(100);
+    assertTrue(breaker.allow());
+
+    breaker.record(false, 1001);
+
+    assertEquals(OPEN, breaker.state());
+  }
+
+
+  @Test
+  public void allowsAnotherProbeWhenProbeIsReleased(){
+    open();
+    ticker.advance(100);
+    assertTrue(breaker.allow());
+
+    breaker.release();
+
+    assertEquals(HALF_OPEN, breaker.state());
+    assertTrue(breaker.allow());
+    assertFalse(breaker.allow());
+  }
+
+
+  @Test
+  public void ignoresOutcomesOfRequestsAllowedBeforeOpened(){
+    open();
+
+    breaker.record(false, 10);
+
+    assertEquals(OPEN, breaker.state());
+  }
+
+
+  private void open(){
+    record(true, true, true, true);
+    assertEquals(OPEN, breaker.state());
+  }
+
+
+  private void record(boolean... failures){
+    for (boolean failed : failures){
+      assertTrue(breaker.allow());
+      breaker.record(failed, 10);
+    }
+  }
+}
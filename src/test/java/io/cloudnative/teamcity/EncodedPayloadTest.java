@@ -0,0 +1,118 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+
+public class EncodedPayloadTest {
+
+  @Test
+  public void joinsElementsIntoArray(){
+    EncodedPayload array = EncodedPayload.array(Arrays.asList(payload("{\"a\":1}"), payload("{\"b\":2}"), payload("3")));
+
+    assertEquals("[{\"a\":1},{\"b\":2},3]", array.toString());
+    assertEquals(crc(array.toString().getBytes(EncodedPayload.UTF8)), array.crc());
+    assertNull(array.contentEncoding());
+  }
+
+
+  @Test
+  public void joinsNoElementsIntoEmptyArray(){
+    assertEquals("[]", EncodedPayload.array(Collections.<EncodedPayload>emptyList()).toString());
+  }
+
+
+  @Test
+  public void copiesElementsOnce(){
+    List<EncodedPayload> elements  = Arrays.asList(payload(json(100 * 1024)), payload(json(10)));
+    long                 allocated = PayloadCounters.allocatedBytes();
+    long                 copied    = PayloadCounters.copiedBytes();
+
+    EncodedPayload array = EncodedPayload.array(elements);
+
+    assertEquals(array.size(), PayloadCounters.allocatedBytes() - allocated);
+    assertEquals(array.size(), PayloadCounters.copiedBytes() - copied);
+  }
+
+
+  @Test
+  public void keepsLargePayloadsOnHeap(){
+    EncodedPayload large = EncodedPayload.array(Arrays.asList(payload(json(1024 * 1024))));
+
+    assertFalse(large.buffer().isDirect());
+    assertFalse(large.compress(WebhookEndpoint.Compression.GZIP, 0).buffer().isDirect());
+  }
+
+
+  @Test
+  public void rejectsCompressedElements(){
+    EncodedPayload compressed = payload(json(10 * 1024)).compress(WebhookEndpoint.Compression.GZIP, 0);
+    try {
+      EncodedPayload.array(Arrays.asList(compressed));
+      fail("compressed element is joined");
+    }
+    catch (IllegalArgumentException expected) {}
+  }
+
+
+  @Test
+  public void compressesPayload() throws IOException {
+    String         json       = json(10 * 1024);
+    EncodedPayload compressed = payload(json).compress(WebhookEndpoint.Compression.GZIP, 1024);
+
+    assertEquals("gzip", compressed.contentEncoding());
+    assertTrue(compressed.size() < json.length());
+    assertEquals(json, new String(gunzip(compressed), EncodedPayload.UTF8));
+  }
+
+
+  @Test
+  public void leavesSmallPayloadUncompressed(){
+    EncodedPayload payload = payload("{\"a\":1}");
+
+    assertSame(payload, payload.compress(WebhookEndpoint.Compression.GZIP, 1024));
+    assertSame(payload, payload.compress(WebhookEndpoint.Compression.NONE, 0));
+  }
+
+
+  private static EncodedPayload payload(String json){
+    byte[] bytes = json.getBytes(EncodedPayload.UTF8);
+    return EncodedPayload.copyOf(bytes, bytes.length);
+  }
+
+
+  private static String json(int length){
+    StringBuilder builder = new StringBuilder("\"");
+    while (builder.length() < length - 1) { builder.append("abcdefgh".charAt(builder.length() % 8)); }
+    return builder.append('"').toString();
+  }
+
+
+  private static long crc(byte[] bytes){
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+
+  private static byte[] gunzip(EncodedPayload payload) throws IOException {
+    ByteBuffer buffer = payload.buffer();
+    byte[]     bytes  = new byte[buffer.remaining()];
+    buffer.get(bytes);
+
+    GZIPInputStream       in  = new GZIPInputStream(new ByteArrayInputStream(bytes));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[]                chunk = new byte[4096];
+    for (int read; (read = in.read(chunk)) > 0; ) { out.write(chunk, 0, read); }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,24 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time source of tests, only moves when advanced.
+ */
+public class ManualTicker extends Ticker {
+
+  long nanos = TimeUnit.DAYS.toNanos(1);
+
+
+  void advance(long millis){
+    nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+
+  @Override
+  public long read() {
+    return nanos;
+  }
+}
@@ -0,0 +1,102 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.junit.Test;
+
+
+public class PayloadArtifactsTest {
+
+  static final String ARCHIVE = "http://teamcity/repository/download/Echo/42:id/";
+  static final String S3      = "https://bucket.s3.amazonaws.com/";
+
+  @Test
+  public void keepsArtifactsUpToMax(){
+    PayloadArtifacts artifacts = new PayloadArtifacts(ARCHIVE, S3, 2);
+    artifacts.addArchived("a.jar");
+    artifacts.addS3("a.jar", "builds/42/a.jar");
+    artifacts.addS3("b.jar", "builds/42/b.jar");
+    artifacts.addArchived("c.jar");
+    artifacts.addS3("d.jar", "builds/42/d.jar");
+
+    assertEquals(2, artifacts.size());
+    assertTrue(artifacts.isTruncated());
+    assertEquals("{\"a.jar\":{\"archive\":\"" + ARCHIVE + "a.jar\",\"s3\":\"" + S3 + "builds/42/a.jar\"}," +
+                 "\"b.jar\":{\"s3\":\"" + S3 + "builds/42/b.jar\"}}",
+                 new Gson().toJson(artifacts));
+  }
+
+
+  @Test
+  public void isNotTruncatedWhenAllArtifactsAreKept(){
+    PayloadArtifacts artifacts = new PayloadArtifacts(ARCHIVE, null, 1);
+    artifacts.addArchived("a.jar");
+    artifacts.addArchived("a.jar");
+
+    assertEquals(1, artifacts.size());
+    assertFalse(artifacts.isTruncated());
+  }
+
+
+  @Test
+  public void keepsNoneEmpty(){
+    PayloadArtifacts.NONE.addArchived("a.jar");
+    PayloadArtifacts.NONE.addS3("b.jar", "builds/42/b.jar");
+
+    assertTrue(PayloadArtifacts.NONE.isEmpty());
+    assertFalse(PayloadArtifacts.NONE.isTruncated());
+    assertEquals("{}", new Gson().toJson(PayloadArtifacts.NONE));
+  }
+
+
+  @Test
+  public void readsArtifactsWritten(){
+    PayloadArtifacts artifacts = new PayloadArtifacts(ARCHIVE, S3, 10);
+    artifacts.addArchived("a.jar");
+    artifacts.addS3("b.jar", "builds/42/b.jar");
+    artifacts.addS3("a.jar", "builds/42/a.jar");
+    artifacts.addArchived("c/d.txt");
+    String json = new Gson().toJson(artifacts);
+
+    PayloadArtifacts read = new Gson().fromJson(json, PayloadArtifacts.class);
+
+    assertEquals(3, read.size());
+    assertEquals(ARCHIVE, read.getArchivePrefix());
+    assertEquals(json, new Gson().toJson(read));
+  }
+
+
+  @Test
+  public void readsNull(){
+    assertNull(new Gson().fromJson("null", PayloadArtifacts.class));
+  }
+
+
+  @Test(expected = JsonSyntaxException.class)
+  public void rejectsArchiveUrlsWithDifferentPrefixes(){
+    new Gson().fromJson("{\"a.jar\":{\"archive\":\"http://one/a.jar\"},\"b.jar\":{\"archive\":\"http://two/b.jar\"}}",
+                        PayloadArtifacts.class);
+  }
+
+
+  @Test
+  public void writesTruncatedMarkOnlyWhenTruncated(){
+    PayloadArtifacts artifacts = new PayloadArtifacts(ARCHIVE, null, 10);
+    artifacts.addArchived("a.jar");
+
+    assertFalse(write(artifacts, null).contains("artifacts_truncated"));
+    assertTrue(write(artifacts, Boolean.TRUE).contains(",\"artifacts_truncated\":true"));
+  }
+
+
+  private static String write(PayloadArtifacts artifacts, Boolean truncated){
+    WebhookPayload.PayloadBuild build = WebhookPayload.PayloadBuild.builder().
+      full_url("http://teamcity/viewLog.html?buildId=42").
+      status("success").
+      artifacts(artifacts).
+      artifacts_truncated(truncated).
+      build();
+    return WebhookPayloadWriter.write(WebhookPayload.of("Echo", "http://teamcity/viewType.html", build)).toString();
+  }
+}
@@ -0,0 +1,44 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.concurrent.CountDownLatch;
+
+
+public class StripedCounterTest {
+
+  @Test
+  public void sumsIncrementsAndDeltas(){
+    StripedCounter counter = new StripedCounter();
+    assertEquals(0, counter.get());
+
+    counter.increment();
+    counter.add(41);
+    counter.add(-2);
+
+    assertEquals(40, counter.get());
+  }
+
+
+  @Test
+  public void countsUpdatesOfAllThreads() throws InterruptedException {
+    final StripedCounter counter = new StripedCounter();
+    final CountDownLatch start   = new CountDownLatch(1);
+    Thread[]             threads = new Thread[32];
+    for (int j = 0; j < threads.length; j++) {
+      threads[j] = new Thread(new Runnable() {
+        public void run() {
+          try { start.await(); } catch (InterruptedException ignored) { return; }
+          for (int k = 0; k < 10000; k++) { counter.increment(); }
+          counter.add(5);
+        }
+      });
+      threads[j].start();
+    }
+
+    start.countDown();
+    for (Thread thread : threads){ thread.join(); }
+
+    assertEquals(threads.length * 10005L, counter.get());
+  }
+}
@@ -0,0 +1,142 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+
+public class TokenBucketTest {
+
+  ManualTicker ticker = new ManualTicker();
+  TokenBucket  bucket = new TokenBucket(ticker);
+
+
+  @Test
+  public void sendsRightAwayWithoutLimit(){
+    for (int j = 0; j < 100; j++) {
+      assertEquals(0, bucket.reserve());
+    }
+    assertEquals("no limit", bucket.toString());
+  }
+
+
+  @Test
+  public void spacesRequestsOverLimitEvenly(){
+    bucket.configure(10, 1);
+
+    assertEquals(0, bucket.reserve());
+    assertEquals(100, bucket.reserve());
+    assertEquals(200, bucket.reserve());
+    assertEquals(300, bucket.reserve());
+
+    ticker.advance(250);
+    assertEquals("slots reserved are kept", 150, bucket.reserve());
+  }
+
+
+  @Test
+  public void sendsRightAwayOnceIntervalHasPassed(){
+    bucket.configure(10, 1);
+    assertEquals(0, bucket.reserve());
+
+    ticker.advance(99);
+    assertEquals(1, bucket.reserve());
+    ticker.advance(201);
+    assertEquals(0, bucket.reserve());
+  }
+
+
+  @Test
+  public void sendsBurstAtOnce(){
+    bucket.configure(10, 3);
+
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(100, bucket.reserve());
+    assertEquals(200, bucket.reserve());
+  }
+
+
+  @Test
+  public void refillsBurstAfterQuietPeriod(){
+    bucket.configure(10, 3);
+    for (int j = 0; j < 3; j++) { assertEquals(0, bucket.reserve()); }
+
+    ticker.advance(200);
+    assertEquals(0, bucket.reserve());
+    assertEquals(0, bucket.reserve());
+    assertEquals(100, bucket.reserve());
+
+    ticker.advance(1000);
+    for (int j = 0; j < 3; j++) { assertEquals(0, bucket.reserve()); }
+    assertEquals(100, bucket.reserve());
+  }
+
+
+  @Test
+  public void keepsReservationsWhenConfiguredTheSame(){
+    bucket.configure(10, 1);
+    bucket.reserve();
+    bucket.configure(10, 1);
+
+    assertEquals(100, bucket.reserve());
+  }
+
+
+  @Test
+  public void holdsRequestsWhilePausedWithoutLimit(){
+    bucket.pause(500);
+
+    assertTrue(bucket.isPaused());
+    assertEquals(500, bucket.reserve());
+    assertEquals(500, bucket.reserve());
+    assertEquals("no limit, paused for 500 ms", bucket.toString());
+
+    ticker.advance(499);
+    assertTrue(bucket.isPaused());
+    assertEquals(1, bucket.reserve());
+    ticker.advance(1);
+    assertFalse(bucket.isPaused());
+    assertEquals(0, bucket.reserve());
+  }
+
+
+  @Test
+  public void keepsTheLongestPause(){
+    bucket.pause(500);
+    bucket.pause(100);
+
+    assertEquals(500, bucket.reserve());
+  }
+
+
+  @Test
+  public void resumesOneByOneAfterPause(){
+    bucket.configure(10, 3);
+    bucket.pause(500);
+
+    assertEquals(500, bucket.reserve());
+    assertEquals(600, bucket.reserve());
+    assertEquals(700, bucket.reserve());
+    assertEquals("10/s, burst 3, paused for 500 ms", bucket.toString());
+  }
+
+
+  @Test
+  public void isNotPausedOnceResumeTimeHasPassed(){
+    bucket.pause(0);
+
+    assertFalse(bucket.isPaused());
+    assertEquals(0, bucket.reserve());
+  }
+
+
+  @Test
+  public void describesLimit(){
+    bucket.configure(10, 1);
+    assertEquals("10/s", bucket.toString());
+
+    bucket.configure(0.5, 3);
+    assertEquals("0.5/s, burst 3", bucket.toString());
+  }
+}
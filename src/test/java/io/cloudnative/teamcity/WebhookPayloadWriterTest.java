@@ -0,0 +1,140 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import java.util.*;
+
+
+public class WebhookPayloadWriterTest {
+
+  /**
+   * Gson as payloads are written by hand, dates in the same format.
+   */
+  static final Gson GSON = new GsonBuilder().setDateFormat(WebhookPayloadWriter.DATE_FORMAT).create();
+
+  static final String TRICKY = "quote \" backslash \\ slash / tab \t newline \n return \r bell \u0007 nul \u0000 " +
+                               "unit separator \u001f delete \u007f latin é cyrillic ж cjk 漢 line separator \u2028 " +
+                               "emoji \uD83D\uDE80 clef \uD834\uDD1E <html> & 'apostrophe' =";
+
+
+  @Test
+  public void writesSameTreeAsGson(){
+    Map<String, String> parameters = new LinkedHashMap<String, String>();
+    parameters.put("env.NAME", TRICKY);
+    parameters.put(TRICKY, "key is escaped too");
+    parameters.put("empty", "");
+
+    Map<String, Map<String, String>> manifest = new LinkedHashMap<String, Map<String, String>>();
+    manifest.put("manifest.json", parameters);
+    manifest.put("other \"manifest\".json", Collections.singletonMap("version", "1.0 \uD83D\uDE80"));
+
+    PayloadArtifacts artifacts = new PayloadArtifacts("http://teamcity/repository/download/Echo/15:id/", "https://s3/", 2);
+    artifacts.addArchived("echo \"quoted\".jar");
+    artifacts.addS3("echo \"quoted\".jar", "artifacts/echo%20quoted.jar");
+    artifacts.addS3("ж.zip", "artifacts/ж.zip");
+    artifacts.addArchived("skipped.jar");
+
+    WebhookPayload payload = WebhookPayload.of(TRICKY, "http://teamcity/viewType.html?buildTypeId=Echo_Build",
+      WebhookPayload.PayloadBuild.builder().
+        full_url("http://teamcity/viewLog.html?buildId=15&tab=\"log\"").
+        build_id("15").
+        status("failure").
+        started_at(new Date(1500000000000L)).
+        finished_at(new Date(1500000123000L)).
+        scm(WebhookPayload.Scm.builder().
+              url("git@github.com:echo/echo.git").
+              branch("refs/heads/feature/\u00e9\uD83D\uDE80").
+              commit("0123456789abcdef").
+              changes(Arrays.asList("Fix \"quoting\"\n\nBody \\ with \t tabs", TRICKY)).
+              build()).
+        artifacts(artifacts).
+        artifacts_truncated(artifacts.isTruncated()).
+        manifest(manifest).
+        parameters(parameters).
+        build());
+
+    assertTrue(artifacts.isTruncated());
+    assertEquals(GSON.toJsonTree(payload), parse(payload));
+  }
+
+
+  @Test
+  public void writesNullFields(){
+    WebhookPayload payload = WebhookPayload.of("Echo", null, WebhookPayload.PayloadBuild.builder().
+      build_id("15").
+      scm(WebhookPayload.Scm.builder().build()).
+      build());
+
+    JsonObject written = parse(payload).getAsJsonObject();
+    JsonObject build   = written.getAsJsonObject("build");
+
+    assertTrue(written.get("url").isJsonNull());
+    assertTrue(build.get("status").isJsonNull());
+    assertTrue(build.get("started_at").isJsonNull());
+    assertTrue(build.get("artifacts").isJsonNull());
+    assertTrue(build.get("parameters").isJsonNull());
+    assertTrue(build.getAsJsonObject("scm").get("changes").isJsonNull());
+    assertFalse("manifest is written only when computed", build.has("manifest"));
+    assertFalse("artifacts_truncated is written only when truncated", build.has("artifacts_truncated"));
+    assertEquals(GSON.toJsonTree(payload), withoutNulls(written));
+  }
+
+
+  @Test
+  public void writesPayloadWithoutBuild(){
+    WebhookPayload payload = WebhookPayload.of("Echo", "http://teamcity", null);
+
+    assertEquals("{\"name\":\"Echo\",\"url\":\"http://teamcity\",\"build\":null}",
+                 WebhookPayloadWriter.write(payload).toString());
+  }
+
+
+  @Test
+  public void writesUtf8WithoutEscapingPrintableCharacters(){
+    WebhookPayload payload = WebhookPayload.of("ж \uD83D\uDE80 \u0001 \u2028", "http://teamcity", null);
+
+    assertEquals("{\"name\":\"ж \uD83D\uDE80 \\u0001 \\u2028\",\"url\":\"http://teamcity\",\"build\":null}",
+                 WebhookPayloadWriter.write(payload).toString());
+  }
+
+
+  @Test
+  public void writesLongValuesBeyondInitialBuffer(){
+    StringBuilder name = new StringBuilder();
+    while (name.length() < 100000) { name.append(TRICKY); }
+    WebhookPayload payload = WebhookPayload.of(name.toString(), "http://teamcity", null);
+
+    assertEquals(GSON.toJsonTree(payload), withoutNulls(parse(payload)));
+    assertEquals("buffer is reused", GSON.toJsonTree(payload), withoutNulls(parse(payload)));
+  }
+
+
+  private static JsonElement parse(WebhookPayload payload){
+    return new Gson().fromJson(WebhookPayloadWriter.write(payload).toString(), JsonElement.class);
+  }
+
+
+  /**
+   * Gson doesn't write null fields, payload writer does.
+   */
+  private static JsonElement withoutNulls(JsonElement element){
+    if (element.isJsonObject()) {
+      JsonObject object = new JsonObject();
+      for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()){
+        if (! entry.getValue().isJsonNull()) { object.add(entry.getKey(), withoutNulls(entry.getValue())); }
+      }
+      return object;
+    }
+    if (element.isJsonArray()) {
+      JsonArray array = new JsonArray();
+      for (JsonElement child : element.getAsJsonArray()){ array.add(withoutNulls(child)); }
+      return array;
+    }
+    return element;
+  }
+}
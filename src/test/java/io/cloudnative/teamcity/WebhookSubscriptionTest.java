@@ -0,0 +1,106 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+
+
+public class WebhookSubscriptionTest {
+
+  @Test
+  public void subscribesToAllEventsWithoutRules(){
+    assertSame(WebhookSubscription.ALL, WebhookSubscription.parse(null));
+    assertSame(WebhookSubscription.ALL, WebhookSubscription.parse(" "));
+    assertSame(WebhookSubscription.ALL, WebhookSubscription.parse("events=; branches= , "));
+    assertTrue(WebhookSubscription.ALL.matches("queued", "queued", "Echo_Build", null, null));
+  }
+
+
+  @Test
+  public void matchesEventsAndStatuses(){
+    WebhookSubscription subscription = WebhookSubscription.parse("events=Finished,interrupted; statuses=failure, ERROR");
+
+    assertTrue(subscription.matches("finished", "failure", "Echo_Build", null, null));
+    assertTrue(subscription.matches("interrupted", "error", "Echo_Build", null, null));
+    assertFalse(subscription.matches("finished", "success", "Echo_Build", null, null));
+    assertFalse(subscription.matches("started", "failure", "Echo_Build", null, null));
+  }
+
+
+  @Test
+  public void matchesBuildTypes(){
+    WebhookSubscription subscription = WebhookSubscription.parse("buildTypes=Echo_Build,Echo_Deploy");
+
+    assertTrue(subscription.matches("finished", "success", "Echo_Deploy", null, null));
+    assertFalse("build types are case sensitive", subscription.matches("finished", "success", "echo_build", null, null));
+  }
+
+
+  @Test
+  public void matchesBranchGlobsAgainstNameAndDisplayName(){
+    WebhookSubscription subscription = WebhookSubscription.parse("branches=master, release/*, v1.?");
+
+    assertTrue(subscription.matches("finished", "success", "Echo_Build", "refs/heads/master", "master"));
+    assertTrue(subscription.matches("finished", "success", "Echo_Build", "release/1.0", null));
+    assertTrue(subscription.matches("finished", "success", "Echo_Build", "v1.2", "v1.2"));
+    assertFalse(subscription.matches("finished", "success", "Echo_Build", "v1.23", "v1.23"));
+    assertFalse("dot is not a wildcard", subscription.matches("finished", "success", "Echo_Build", "v102", null));
+    assertFalse(subscription.matches("finished", "success", "Echo_Build", "refs/heads/feature", "feature"));
+    assertFalse(subscription.matches("finished", "success", "Echo_Build", null, null));
+  }
+
+
+  @Test
+  public void matchesBuildsWithoutBranchAsDefaultBranch(){
+    WebhookSubscription subscription = WebhookSubscription.parse("branches=<default>");
+
+    assertTrue(subscription.matches("finished", "success", "Echo_Build", null, null));
+    assertFalse(subscription.matches("finished", "success", "Echo_Build", "master", "master"));
+  }
+
+
+  @Test
+  public void requiresAllRules(){
+    WebhookSubscription subscription = WebhookSubscription.parse("events=finished; branches=master; buildTypes=Echo_Build");
+
+    assertTrue(subscription.matches("finished", "success", "Echo_Build", "master", "master"));
+    assertFalse(subscription.matches("started", "pending", "Echo_Build", "master", "master"));
+    assertFalse(subscription.matches("finished", "success", "Echo_Deploy", "master", "master"));
+    assertFalse(subscription.matches("finished", "success", "Echo_Build", "feature", "feature"));
+  }
+
+
+  @Test
+  public void rejectsInvalidRules(){
+    for (String text : Arrays.asList("events=built", "owners=me", "finished", "=finished")) {
+      try {
+        WebhookSubscription.parse(text);
+        fail("'" + text + "' is parsed");
+      }
+      catch (RuntimeException expected) {}
+    }
+  }
+
+
+  @Test
+  public void keepsRulesInSettings(){
+    WebhookSubscription subscription = WebhookSubscription.parse("events=finished; branches=master,release/*");
+    Map<String, Object> entry = new LinkedHashMap<String, Object>();
+
+    subscription.toSettings(entry);
+
+    assertEquals(Arrays.asList("finished"), entry.get("events"));
+    assertEquals(Arrays.asList("master", "release/*"), entry.get("branches"));
+    assertFalse(entry.containsKey("statuses"));
+    assertEquals(subscription, WebhookSubscription.fromSettings(entry));
+  }
+
+
+  @Test
+  public void formatsRulesAsParsed(){
+    String text = "events=finished,interrupted; statuses=failure; branches=master,release/*; buildTypes=Echo_Build";
+
+    assertEquals(text, WebhookSubscription.parse(text).toString());
+    assertEquals(WebhookSubscription.parse(text), WebhookSubscription.parse(WebhookSubscription.parse(text).toString()));
+  }
+}
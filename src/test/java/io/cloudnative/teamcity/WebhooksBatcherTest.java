@@ -0,0 +1,102 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+public class WebhooksBatcherTest {
+
+  static final WebhookEndpoint ENDPOINT = WebhookEndpoint.of("http://batch");
+
+  ScheduledExecutorService scheduler;
+  List<String>             payloads = Collections.synchronizedList(new ArrayList<String>());
+  List<String>             threads  = Collections.synchronizedList(new ArrayList<String>());
+  WebhooksBatcher          batcher;
+
+
+  @Before
+  public void start(){
+    System.setProperty(WebhooksConstants.BATCH_MAX_EVENTS_PROPERTY, "3");
+    System.setProperty(WebhooksConstants.BATCH_WINDOW_PROPERTY, "60000");
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).
+                                                                                     setNameFormat("batch-flush-%d").
+                                                                                     build());
+    batcher   = new WebhooksBatcher(scheduler, new WebhooksBatcher.Sink() {
+      public void send(WebhookEndpoint endpoint, EncodedPayload payload, String description) {
+        threads.add(Thread.currentThread().getName());
+        payloads.add(payload.toString());
+      }
+    });
+  }
+
+
+  @After
+  public void stop(){
+    scheduler.shutdownNow();
+    System.clearProperty(WebhooksConstants.BATCH_MAX_EVENTS_PROPERTY);
+    System.clearProperty(WebhooksConstants.BATCH_WINDOW_PROPERTY);
+  }
+
+
+  @Test
+  public void sendsFullBatchOnSchedulerThread() throws InterruptedException {
+    batcher.add(ENDPOINT, payload("1"), "Build 1", null);
+    batcher.add(ENDPOINT, payload("2"), "Build 2", null);
+    batcher.add(ENDPOINT, payload("3"), "Build 3", null);
+
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("[1,2,3]"), payloads);
+    assertEquals(Arrays.asList("batch-flush-0"), threads);
+    assertEquals(0, batcher.openBatches());
+  }
+
+
+  @Test
+  public void coalescesEventsOfTheSameKey(){
+    batcher.add(ENDPOINT, payload("1"), "Build 1", "42");
+    batcher.add(ENDPOINT, payload("2"), "Build 2", "42");
+    batcher.add(ENDPOINT, payload("3"), "Build 3", null);
+    batcher.flushAll();
+
+    assertEquals(Arrays.asList("[2,3]"), payloads);
+    assertEquals(1, batcher.coalescedCount());
+  }
+
+
+  @Test
+  public void flushesFullBatchNotSentYet() throws InterruptedException {
+    final CountDownLatch busy = new CountDownLatch(1);
+    scheduler.execute(new Runnable() {
+      public void run() {
+        try { busy.await(); } catch (InterruptedException ignored) {}
+      }
+    });
+
+    batcher.add(ENDPOINT, payload("1"), "Build 1", null);
+    batcher.add(ENDPOINT, payload("2"), "Build 2", null);
+    batcher.add(ENDPOINT, payload("3"), "Build 3", null);
+    batcher.add(WebhookEndpoint.of("http://other"), payload("4"), "Build 4", null);
+    batcher.flushAll();
+    busy.countDown();
+    scheduler.shutdown();
+    assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("[1,2,3]", "[4]"), payloads);
+  }
+
+
+  private static EncodedPayload payload(String json){
+    byte[] bytes = json.getBytes(EncodedPayload.UTF8);
+    return EncodedPayload.copyOf(bytes, bytes.length);
+  }
+}
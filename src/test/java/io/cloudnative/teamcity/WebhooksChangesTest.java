@@ -0,0 +1,176 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.vcs.SVcsModification;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+
+public class WebhooksChangesTest {
+
+  ManualTicker    ticker = new ManualTicker();
+  WebhooksChanges changes;
+
+
+  @Before
+  public void start(){
+    System.setProperty(WebhooksConstants.CHANGES_MAX_PROPERTY, "4");
+    changes = new WebhooksChanges(ticker);
+  }
+
+
+  @After
+  public void stop(){
+    System.clearProperty(WebhooksConstants.CHANGES_MAX_PROPERTY);
+    System.clearProperty(WebhooksConstants.CHANGES_CACHE_SIZE_PROPERTY);
+  }
+
+
+  @Test
+  public void addsChangesOfFailedBuildsBefore(){
+    assertEquals(Arrays.asList("b", "a"), changes.changes(build(1, "master", "b", "a")));
+    assertEquals(Arrays.asList("c", "b", "a"), changes.changes(build(2, "master", "c")));
+    assertEquals("build without changes of its own", Arrays.asList("c", "b", "a"), changes.changes(build(3, "master")));
+  }
+
+
+  @Test
+  public void startsOverAfterSuccessfulBuild(){
+    changes.changes(build(1, "master", "a"));
+    SBuild succeeded = build(2, "master", "b");
+    changes.changes(succeeded);
+
+    changes.buildSucceeded(succeeded);
+
+    assertEquals(Arrays.asList("c"), changes.changes(build(3, "master", "c")));
+  }
+
+
+  @Test
+  public void keepsChangesOfBuildsAfterSuccessfulOne(){
+    changes.changes(build(1, "master", "a"));
+    SBuild succeeded = build(2, "master", "b");
+    changes.changes(succeeded);
+    // Build 3 has finished before build 2
+    changes.changes(build(3, "master", "c"));
+
+    changes.buildSucceeded(succeeded);
+
+    assertEquals(Arrays.asList("d", "c"), changes.changes(build(4, "master", "d")));
+  }
+
+
+  @Test
+  public void keepsChangesPerBuildTypeAndBranch(){
+    changes.changes(build(1, "master", "a"));
+    changes.changes(build(2, "feature", "b"));
+    changes.changes(build(3, null, "c"));
+
+    assertEquals(Arrays.asList("d", "a"), changes.changes(build(4, "master", "d")));
+    assertEquals(Arrays.asList("e", "b"), changes.changes(build(5, "feature", "e")));
+    assertEquals(Arrays.asList("f", "c"), changes.changes(build(6, null, "f")));
+    assertEquals(Arrays.asList("g"), changes.changes(build("Echo_Deploy", 7, "master", "g")));
+  }
+
+
+  @Test
+  public void capsChangesAndForgetsBuildsBeyondTheCap(){
+    assertEquals(Arrays.asList("f", "e", "d", "c"), changes.changes(build(1, "master", "f", "e", "d", "c", "b", "a")));
+    assertEquals(Arrays.asList("h", "g", "f", "e"), changes.changes(build(2, "master", "h", "g")));
+    assertEquals(Arrays.asList("k", "j", "i", "h"), changes.changes(build(3, "master", "k", "j", "i")));
+
+    // Build 1 is forgotten, so are changes of build 2 beyond the cap
+    assertEquals(Arrays.asList("k", "j", "i", "h"), changes.changes(build(4, "master")));
+  }
+
+
+  @Test
+  public void reportsNoChangesWhenDisabled(){
+    System.setProperty(WebhooksConstants.CHANGES_MAX_PROPERTY, "0");
+    changes = new WebhooksChanges(ticker);
+
+    assertNull(changes.changes(build(1, "master", "a")));
+  }
+
+
+  @Test
+  public void forgetsChangesOfBuildTypesNotBuiltForAnHour(){
+    changes.changes(build(1, "master", "a"));
+    ticker.advance(WebhooksConstants.CHANGES_CACHE_TTL - 1);
+    assertEquals(Arrays.asList("b", "a"), changes.changes(build(2, "master", "b")));
+
+    ticker.advance(WebhooksConstants.CHANGES_CACHE_TTL - 1);
+    assertEquals("expiration is extended by every build", Arrays.asList("c", "b", "a"),
+                 changes.changes(build(3, "master", "c")));
+
+    ticker.advance(WebhooksConstants.CHANGES_CACHE_TTL);
+    assertEquals(Arrays.asList("d"), changes.changes(build(4, "master", "d")));
+  }
+
+
+  @Test
+  public void keepsChangesOfRecentlyBuiltBuildTypes(){
+    System.setProperty(WebhooksConstants.CHANGES_CACHE_SIZE_PROPERTY, "1");
+    changes = new WebhooksChanges(ticker);
+
+    changes.changes(build(1, "master", "a"));
+    changes.changes(build(2, "feature", "b"));
+
+    assertEquals(Arrays.asList("c"), changes.changes(build(3, "master", "c")));
+  }
+
+
+  @Test
+  public void ignoresSuccessOfUnknownBuildType(){
+    changes.buildSucceeded(build(1, "master", "a"));
+
+    assertEquals(Arrays.asList("b"), changes.changes(build(2, "master", "b")));
+  }
+
+
+  private static SBuild build(long buildId, String branch, String... versions){
+    return build("Echo_Build", buildId, branch, versions);
+  }
+
+
+  /**
+   * Build with its own changes, newest first, as TeamCity returns them.
+   */
+  private static SBuild build(final String buildTypeId, final long buildId, final String branch, final String... versions){
+    final List<SVcsModification> modifications = new ArrayList<SVcsModification>();
+    for (final String version : versions){
+      modifications.add(stub(SVcsModification.class, "getVersion", version));
+    }
+    final Branch buildBranch = (branch == null) ? null : stub(Branch.class, "getName", branch);
+
+    return (SBuild) Proxy.newProxyInstance(WebhooksChangesTest.class.getClassLoader(), new Class[]{ SBuild.class },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if ("getBuildId".equals(method.getName()))     { return buildId; }
+          if ("getBuildTypeId".equals(method.getName())) { return buildTypeId; }
+          if ("getBranch".equals(method.getName()))      { return buildBranch; }
+          if ("getChanges".equals(method.getName()))     { return modifications; }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, final String getter, final Object value){
+    return (T) Proxy.newProxyInstance(WebhooksChangesTest.class.getClassLoader(), new Class[]{ type },
+      new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if (getter.equals(method.getName())) { return value; }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+}
@@ -0,0 +1,445 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.io.Files;
+import io.cloudnative.teamcity.WebhooksHttpClientTest.LocalServer;
+import io.cloudnative.teamcity.WebhooksHttpClientTest.Script;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class WebhooksDispatcherTest {
+
+  static final String[] PROPERTIES = {
+    WebhooksConstants.DELIVERY_WORKERS_PROPERTY,
+    WebhooksConstants.DELIVERY_QUEUE_SIZE_PROPERTY,
+    WebhooksConstants.DELIVERY_OVERFLOW_PROPERTY,
+    WebhooksConstants.DELIVERY_OFFER_TIMEOUT_PROPERTY,
+    WebhooksConstants.DELIVERY_MAX_ATTEMPTS_PROPERTY,
+    WebhooksConstants.DELIVERY_RETRY_DELAY_PROPERTY,
+    WebhooksConstants.DELIVERY_RETRY_MAX_DELAY_PROPERTY,
+    WebhooksConstants.HTTP_MAX_IN_FLIGHT_PROPERTY,
+    WebhooksConstants.HTTP_TIMEOUT_PROPERTY,
+    WebhooksConstants.BREAKER_MIN_CALLS_PROPERTY,
+    WebhooksConstants.BREAKER_OPEN_DURATION_PROPERTY
+  };
+
+  File               dataDirectory;
+  WebhooksOutbox     outbox;
+  WebhooksDispatcher dispatcher;
+  LocalServer        server;
+
+  /**
+   * Responses of the server wait for it, when it's set.
+   */
+  volatile CountDownLatch hold;
+
+  /**
+   * Status codes responded, in order, the last one is repeated.
+   */
+  volatile List<Integer> statuses = Arrays.asList(200);
+
+
+  @Before
+  public void start() throws IOException {
+    dataDirectory = Files.createTempDir();
+    System.setProperty(WebhooksConstants.DELIVERY_WORKERS_PROPERTY, "1");
+    System.setProperty(WebhooksConstants.DELIVERY_QUEUE_SIZE_PROPERTY, "1");
+    System.setProperty(WebhooksConstants.DELIVERY_RETRY_DELAY_PROPERTY, "10");
+    System.setProperty(WebhooksConstants.DELIVERY_RETRY_MAX_DELAY_PROPERTY, "20");
+    // A single request in flight: the worker blocks on the second one, while the server holds the first
+    System.setProperty(WebhooksConstants.HTTP_MAX_IN_FLIGHT_PROPERTY, "1");
+    System.setProperty(WebhooksConstants.HTTP_TIMEOUT_PROPERTY, "3000");
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        CountDownLatch latch = hold;
+        try {
+          if ((latch != null) && (! latch.await(5, TimeUnit.SECONDS))) { return false; }
+        }
+        catch (InterruptedException e) {
+          return false;
+        }
+        int status = statuses.get(Math.min(request, statuses.size()) - 1);
+        out.write(("HTTP/1.1 " + status + " Status\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        return true;
+      }
+    });
+  }
+
+
+  @After
+  public void stop(){
+    if (hold != null) { hold.countDown(); }
+    if (dispatcher != null) { dispatcher.shutdown(); }
+    server.stop();
+    delete(dataDirectory);
+    for (String property : PROPERTIES){ System.clearProperty(property); }
+  }
+
+
+  @Test
+  public void deliversAndAcknowledges() throws Exception {
+    open();
+
+    assertTrue(dispatcher.dispatch(delivery("1", "42", false)));
+
+    await(1);
+    awaitPending(0);
+    assertEquals(Arrays.asList("1"), server.bodies);
+  }
+
+
+  @Test
+  public void dropsNewestWhenQueueIsFull() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_OVERFLOW_PROPERTY, "drop_newest");
+    open();
+    fill();
+
+    WebhookDelivery newest = delivery("4", null, false);
+    assertFalse(dispatcher.dispatch(newest));
+
+    assertTrue(newest.isDropped());
+    assertEquals(1, dispatcher.droppedCount());
+    assertEquals("dropped delivery stays in the outbox", 4, dispatcher.pendingCount());
+    release();
+    await(3);
+    assertEquals(Arrays.asList("1", "2", "3"), server.bodies);
+    assertSlotsGivenBack();
+  }
+
+
+  @Test
+  public void dropsOldestWhenQueueIsFull() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_OVERFLOW_PROPERTY, "drop_oldest");
+    open();
+    List<WebhookDelivery> deliveries = fill();
+
+    assertTrue(dispatcher.dispatch(delivery("4", null, false)));
+
+    assertTrue(deliveries.get(2).isDropped());
+    assertEquals(1, dispatcher.droppedCount());
+    assertEquals(1, dispatcher.queueSize());
+    release();
+    await(3);
+    assertEquals(Arrays.asList("1", "2", "4"), server.bodies);
+    awaitPending(1);
+    assertSlotsGivenBack();
+  }
+
+
+  @Test
+  public void blocksForOfferTimeoutWhenQueueIsFull() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_OVERFLOW_PROPERTY, "block");
+    System.setProperty(WebhooksConstants.DELIVERY_OFFER_TIMEOUT_PROPERTY, "200");
+    open();
+    fill();
+
+    long started = System.currentTimeMillis();
+    assertFalse(dispatcher.dispatch(delivery("4", null, false)));
+
+    assertTrue(System.currentTimeMillis() - started >= 190);
+    assertEquals(1, dispatcher.droppedCount());
+    release();
+    await(3);
+    assertSlotsGivenBack();
+  }
+
+
+  @Test
+  public void acknowledgesDroppedDeliverySupersededByNewerEvent() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_OVERFLOW_PROPERTY, "drop_newest");
+    open();
+    fill();
+    WebhookDelivery started = delivery("started", "42", false);
+    assertFalse(dispatcher.dispatch(started));
+    assertEquals(4, dispatcher.pendingCount());
+
+    release();
+    await(3);
+    assertTrue(dispatcher.dispatch(delivery("finished", "42", true)));
+
+    await(4);
+    awaitPending(0);
+    assertEquals("finished", server.bodies.get(3));
+  }
+
+
+  @Test
+  public void keepsDroppedLastEventInOutbox() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_OVERFLOW_PROPERTY, "drop_newest");
+    open();
+    fill();
+    assertFalse(dispatcher.dispatch(delivery("finished", "42", true)));
+
+    release();
+    await(3);
+    // Not tracked anymore, another delivery of the same key doesn't supersede it
+    assertTrue(dispatcher.dispatch(delivery("finished again", "42", true)));
+
+    await(4);
+    awaitPending(1);
+    dispatcher.shutdown();
+    dispatcher = null;
+
+    List<WebhookDelivery> recovered = recover();
+    assertEquals(1, recovered.size());
+    assertEquals("finished", recovered.get(0).getPayload().toString());
+    assertTrue(recovered.get(0).isLast());
+  }
+
+
+  @Test
+  public void sendsOnlyLatestEventToLaggingEndpoint() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_QUEUE_SIZE_PROPERTY, "10");
+    open();
+    occupy();
+
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("queued"), "Queued", "42", false);
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("started"), "Started", "42", false);
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("other build"), "Other", "43", false);
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("finished"), "Finished", "42", true);
+    release();
+
+    await(4);
+    awaitPending(0);
+    assertEquals(Arrays.asList("1", "2", "other build", "finished"), server.bodies);
+    assertEquals(2, dispatcher.coalescedCount());
+  }
+
+
+  @Test
+  public void sendsAllEventsToEndpointNotCoalescing() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_QUEUE_SIZE_PROPERTY, "10");
+    open();
+    occupy();
+
+    dispatcher.dispatch(Arrays.asList(endpoint(false)), payload("queued"), "Queued", "42", false);
+    dispatcher.dispatch(Arrays.asList(endpoint(false)), payload("started"), "Started", "42", false);
+    dispatcher.dispatch(Arrays.asList(endpoint(false)), payload("finished"), "Finished", "42", true);
+    release();
+
+    await(5);
+    awaitPending(0);
+    assertEquals(Arrays.asList("1", "2", "queued", "started", "finished"), server.bodies);
+    assertEquals(0, dispatcher.coalescedCount());
+  }
+
+
+  @Test
+  public void skipsRetryOfSupersededDelivery() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_QUEUE_SIZE_PROPERTY, "10");
+    System.setProperty(WebhooksConstants.DELIVERY_RETRY_DELAY_PROPERTY, "300");
+    System.setProperty(WebhooksConstants.DELIVERY_RETRY_MAX_DELAY_PROPERTY, "300");
+    statuses = Arrays.asList(503, 200);
+    open();
+
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("started"), "Started", "42", false);
+    await(1);
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("finished"), "Finished", "42", true);
+
+    await(2);
+    awaitPending(0);
+    Thread.sleep(400);
+    assertEquals(Arrays.asList("started", "finished"), server.bodies);
+    assertEquals(1, dispatcher.coalescedCount());
+  }
+
+
+  @Test
+  public void skipsParkedSupersededDelivery() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_QUEUE_SIZE_PROPERTY, "10");
+    System.setProperty(WebhooksConstants.BREAKER_MIN_CALLS_PROPERTY, "1");
+    System.setProperty(WebhooksConstants.BREAKER_OPEN_DURATION_PROPERTY, "300");
+    statuses = Arrays.asList(503, 200);
+    open();
+
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("started"), "Started", "42", false);
+    await(1);
+    // Parked by the open breaker, along with the retry of "started"
+    for (int j = 0; (j < 100) && (dispatcher.parkedCount() == 0); j++) { Thread.sleep(10); }
+    dispatcher.dispatch(Arrays.asList(endpoint(true)), payload("finished"), "Finished", "42", true);
+
+    await(2);
+    awaitPending(0);
+    assertTrue(dispatcher.parkedCount() > 0);
+    assertEquals(Arrays.asList("started", "finished"), server.bodies);
+    assertEquals(1, dispatcher.coalescedCount());
+    assertEquals(CircuitBreaker.State.CLOSED, dispatcher.breaker(server.url()).state());
+  }
+
+
+  @Test
+  public void retriesRetryableFailures() throws Exception {
+    statuses = Arrays.asList(503, 500, 200);
+    open();
+
+    dispatcher.dispatch(delivery("1", null, false));
+
+    await(3);
+    awaitPending(0);
+    Thread.sleep(200);
+    assertEquals(3, server.bodies.size());
+  }
+
+
+  @Test
+  public void givesUpAfterMaxAttempts() throws Exception {
+    System.setProperty(WebhooksConstants.DELIVERY_MAX_ATTEMPTS_PROPERTY, "2");
+    statuses = Arrays.asList(500);
+    open();
+
+    dispatcher.dispatch(delivery("1", null, false));
+
+    await(2);
+    awaitPending(0);
+    Thread.sleep(200);
+    assertEquals(2, server.bodies.size());
+  }
+
+
+  @Test
+  public void doesNotRetryClientErrors() throws Exception {
+    statuses = Arrays.asList(400);
+    open();
+
+    dispatcher.dispatch(delivery("1", null, false));
+
+    await(1);
+    awaitPending(0);
+    Thread.sleep(200);
+    assertEquals(1, server.bodies.size());
+  }
+
+
+  @Test
+  public void keepsUndeliveredDeliveriesInOutboxOnShutdown() throws Exception {
+    System.setProperty(WebhooksConstants.HTTP_TIMEOUT_PROPERTY, "300");
+    open();
+    fill();
+
+    dispatcher.shutdown();
+    dispatcher = null;
+
+    Set<String> recovered = new HashSet<String>();
+    for (WebhookDelivery delivery : recover()){
+      recovered.add(delivery.getPayload().toString());
+    }
+    assertEquals("request in flight, request waiting for a free slot and the queued one",
+                 new HashSet<String>(Arrays.asList("1", "2", "3")), recovered);
+  }
+
+
+  private void open(){
+    outbox     = new WebhooksOutbox(new ServerPaths(dataDirectory.getAbsolutePath()));
+    dispatcher = new WebhooksDispatcher(outbox, new WebhooksMetrics());
+    dispatcher.start();
+  }
+
+
+  /**
+   * Holds responses and takes all places: the first delivery is in flight, the second one is taken by the worker
+   * waiting for the first one to complete, and the third one is in the queue.
+   */
+  private List<WebhookDelivery> fill() throws InterruptedException {
+    List<WebhookDelivery> deliveries = new ArrayList<WebhookDelivery>(occupy());
+    deliveries.add(delivery("3", null, false));
+    assertTrue(dispatcher.dispatch(deliveries.get(2)));
+    assertEquals(1, dispatcher.queueSize());
+    return deliveries;
+  }
+
+
+  /**
+   * Holds responses and keeps the only worker busy: the first delivery is in flight and the second one is taken
+   * by the worker waiting for the first one to complete, so the rest wait in the queue.
+   */
+  private List<WebhookDelivery> occupy() throws InterruptedException {
+    hold = new CountDownLatch(1);
+    List<WebhookDelivery> deliveries = Arrays.asList(delivery("1", null, false), delivery("2", null, false));
+    assertTrue(dispatcher.dispatch(deliveries.get(0)));
+    await(1);
+    assertTrue(dispatcher.dispatch(deliveries.get(1)));
+    for (int j = 0; (j < 100) && (dispatcher.queueSize() > 0); j++) { Thread.sleep(10); }
+    assertEquals(0, dispatcher.queueSize());
+    return deliveries;
+  }
+
+
+  private List<WebhookDelivery> recover(){
+    WebhooksOutbox reopened = new WebhooksOutbox(new ServerPaths(dataDirectory.getAbsolutePath()));
+    try {
+      return reopened.recover();
+    }
+    finally {
+      reopened.close();
+    }
+  }
+
+
+  private void release(){
+    hold.countDown();
+  }
+
+
+  /**
+   * With the queue of one, any place not given back makes deliveries dropped.
+   */
+  private void assertSlotsGivenBack() throws InterruptedException {
+    long dropped = dispatcher.droppedCount();
+    int  bodies  = server.bodies.size();
+    for (int j = 1; j <= 3; j++) {
+      for (int k = 0; (k < 100) && (dispatcher.queueSize() > 0); k++) { Thread.sleep(10); }
+      assertTrue(dispatcher.dispatch(delivery("more " + j, null, false)));
+      await(bodies + j);
+    }
+    assertEquals(dropped, dispatcher.droppedCount());
+  }
+
+
+  private void await(int bodies) throws InterruptedException {
+    for (int j = 0; (j < 300) && (server.bodies.size() < bodies); j++) { Thread.sleep(10); }
+    assertTrue("expected " + bodies + " requests, got " + server.bodies, server.bodies.size() >= bodies);
+  }
+
+
+  private void awaitPending(int pending) throws InterruptedException {
+    for (int j = 0; (j < 300) && (dispatcher.pendingCount() != pending); j++) { Thread.sleep(10); }
+    assertEquals(pending, dispatcher.pendingCount());
+  }
+
+
+  private WebhookDelivery delivery(String payload, String key, boolean last){
+    return WebhookDelivery.of(server.url(), payload(payload), "Delivery " + payload, key, last);
+  }
+
+
+  private WebhookEndpoint endpoint(boolean coalesce){
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put("url", server.url());
+    options.put("coalesce", coalesce);
+    return WebhookEndpoint.fromSettings(options);
+  }
+
+
+  private static EncodedPayload payload(String payload){
+    return EncodedPayload.of(payload.getBytes(EncodedPayload.UTF8), null);
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+}
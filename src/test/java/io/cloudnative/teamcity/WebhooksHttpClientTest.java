@@ -0,0 +1,454 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class WebhooksHttpClientTest {
+
+  static final String PAYLOAD = "{\"build\":{\"status\":\"success\"}}";
+
+  SSLContext         sslContext;
+  LocalServer        server;
+  WebhooksHttpClient client;
+
+
+  @Before
+  public void start() throws Exception {
+    sslContext = sslContext();
+    client     = new WebhooksHttpClient(sslContext);
+  }
+
+
+  @After
+  public void stop(){
+    client.shutdown();
+    if (server != null) { server.stop(); }
+    System.clearProperty(WebhooksConstants.HTTP_TIMEOUT_PROPERTY);
+    System.clearProperty(WebhooksConstants.HTTP_MAX_WAIT_PROPERTY);
+    System.clearProperty(WebhooksConstants.HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY);
+  }
+
+
+  @Test
+  public void postsPayloadAndReadsContentLengthResponse() throws IOException {
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        return write(out, "HTTP/1.1 201 Created\r\nContent-Length: 5\r\nX-Request: " + request + "\r\n\r\nhello");
+      }
+    });
+
+    WebhooksHttpClient.Response response = post();
+
+    assertEquals(201, response.getStatusCode());
+    assertEquals("hello", response.getBody());
+    assertEquals("1", response.getHeaders().get("x-request"));
+    assertEquals(Arrays.asList(PAYLOAD), server.bodies);
+    assertEquals("application/json", server.headers.get("content-type"));
+    assertEquals("localhost:" + server.port(), server.headers.get("host"));
+  }
+
+
+  @Test
+  public void readsChunkedResponse() throws IOException {
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        return write(out, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                          "5\r\nhello\r\n7;name=value\r\n, world\r\n0\r\nX-Trailer: yes\r\n\r\n");
+      }
+    });
+
+    WebhooksHttpClient.Response first = post();
+    WebhooksHttpClient.Response second = post();
+
+    assertEquals("hello, world", first.getBody());
+    assertEquals("hello, world", second.getBody());
+    assertEquals("connection is reused after chunked response", 1, server.connections.get());
+  }
+
+
+  @Test
+  public void readsResponseUntilConnectionIsClosed() throws IOException {
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        write(out, "HTTP/1.0 200 OK\r\n\r\nno length");
+        return false;
+      }
+    });
+
+    assertEquals("no length", post().getBody());
+    assertEquals("no length", post().getBody());
+    assertEquals(2, server.connections.get());
+  }
+
+
+  @Test
+  public void reusesKeepAliveConnection() throws IOException {
+    server = new LocalServer(null, ok());
+
+    for (int j = 0; j < 5; j++) {
+      assertEquals(200, post().getStatusCode());
+    }
+
+    assertEquals(1, server.connections.get());
+    assertEquals(5, server.bodies.size());
+  }
+
+
+  @Test
+  public void opensNewConnectionWhenIdleOneIsClosed() throws Exception {
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        // Connection isn't announced as closed, but is closed right after the response
+        write(out, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+        return false;
+      }
+    });
+
+    assertEquals(200, post().getStatusCode());
+    Thread.sleep(500);
+    assertEquals(200, post().getStatusCode());
+
+    assertEquals(2, server.connections.get());
+    assertEquals(2, server.bodies.size());
+  }
+
+
+  @Test
+  public void doesNotResendRequestWrittenToConnectionClosedMeanwhile() throws Exception {
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        // Second request is received, but the connection is closed before responding (idle timeout race)
+        return (request == 1) && write(out, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+      }
+    });
+
+    assertEquals(200, post().getStatusCode());
+    try {
+      post();
+      fail("request is reported as delivered");
+    }
+    catch (IOException expected) {}
+    Thread.sleep(300);
+
+    assertEquals("request is received once", 2, server.bodies.size());
+    assertEquals(1, server.connections.get());
+  }
+
+
+  @Test
+  public void timesOutWaitingForResponse() throws IOException {
+    System.setProperty(WebhooksConstants.HTTP_TIMEOUT_PROPERTY, "300");
+    client.shutdown();
+    client = new WebhooksHttpClient(sslContext);
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) { return true; }
+    });
+
+    long started = System.currentTimeMillis();
+    try {
+      post();
+      fail("response is received");
+    }
+    catch (SocketTimeoutException expected) {}
+
+    assertTrue(System.currentTimeMillis() - started < 3000);
+  }
+
+
+  @Test
+  public void doesNotCountWaitingForConnectionAgainstTimeout() throws Exception {
+    System.setProperty(WebhooksConstants.HTTP_TIMEOUT_PROPERTY, "1000");
+    System.setProperty(WebhooksConstants.HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY, "4");
+    client.shutdown();
+    client = new WebhooksHttpClient(sslContext);
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        try { Thread.sleep(200); } catch (InterruptedException e) { return false; }
+        return write(out, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+      }
+    });
+
+    // 40 requests over 4 connections take about 2 seconds, twice the timeout of each one
+    final List<Object>                   outcomes = Collections.synchronizedList(new ArrayList<Object>());
+    final List<WebhooksHttpClient.Timing> timings = Collections.synchronizedList(new ArrayList<WebhooksHttpClient.Timing>());
+    for (int j = 0; j < 40; j++) {
+      client.post(server.url(), payload(), "application/json", new WebhooksHttpClient.Callback() {
+        public void completed(WebhooksHttpClient.Response response, WebhooksHttpClient.Timing timing) {
+          timings.add(timing);
+          outcomes.add(response.getStatusCode());
+        }
+        public void failed(IOException error, WebhooksHttpClient.Timing timing) { outcomes.add(error); }
+      });
+    }
+
+    for (int j = 0; (j < 100) && (outcomes.size() < 40); j++) { Thread.sleep(100); }
+
+    assertEquals(Collections.nCopies(40, (Object) 200), outcomes);
+    assertEquals(4, server.connections.get());
+    long maxWaited = 0;
+    for (WebhooksHttpClient.Timing timing : timings){
+      assertTrue("duration is " + timing.getDuration(), timing.getDuration() < 1000);
+      maxWaited = Math.max(maxWaited, timing.getWaited());
+    }
+    assertTrue("waited at most " + maxWaited, maxWaited >= 1000);
+  }
+
+
+  @Test
+  public void timesOutWaitingForConnection() throws Exception {
+    System.setProperty(WebhooksConstants.HTTP_TIMEOUT_PROPERTY, "2000");
+    System.setProperty(WebhooksConstants.HTTP_MAX_WAIT_PROPERTY, "300");
+    System.setProperty(WebhooksConstants.HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY, "1");
+    client.shutdown();
+    client = new WebhooksHttpClient(sslContext);
+    server = new LocalServer(null, new Script() {
+      public boolean respond(int request, OutputStream out) { return true; }
+    });
+
+    final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException>());
+    WebhooksHttpClient.Callback callback = new WebhooksHttpClient.Callback() {
+      public void completed(WebhooksHttpClient.Response response, WebhooksHttpClient.Timing timing) {}
+      public void failed(IOException error, WebhooksHttpClient.Timing timing) { errors.add(error); }
+    };
+    client.post(server.url(), payload(), "application/json", callback);
+    client.post(server.url(), payload(), "application/json", callback);
+
+    for (int j = 0; (j < 15) && errors.isEmpty(); j++) { Thread.sleep(100); }
+
+    assertEquals("first request is still waiting for its response", 1, errors.size());
+    assertTrue(errors.get(0) instanceof WebhooksHttpClient.WaitTimeoutException);
+    assertEquals(1, server.bodies.size());
+  }
+
+
+  @Test
+  public void postsOverTls() throws Exception {
+    server = new LocalServer(sslContext, ok());
+
+    assertEquals(200, post().getStatusCode());
+    assertEquals(200, post().getStatusCode());
+
+    assertEquals(Arrays.asList(PAYLOAD, PAYLOAD), server.bodies);
+    assertEquals("TLS connection is reused", 1, server.connections.get());
+  }
+
+
+  @Test
+  public void rejectsUntrustedCertificate() throws Exception {
+    server = new LocalServer(sslContext, ok());
+    client.shutdown();
+    client = new WebhooksHttpClient(SSLContext.getDefault());
+
+    try {
+      post();
+      fail("untrusted certificate is accepted");
+    }
+    catch (IOException expected) {}
+    assertTrue(server.bodies.isEmpty());
+  }
+
+
+  @Test
+  public void reportsUnknownHostToCallback() throws Exception {
+    final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException>());
+    client.post("http://webhook.invalid/hook", payload(), "application/json", new WebhooksHttpClient.Callback() {
+      public void completed(WebhooksHttpClient.Response response, WebhooksHttpClient.Timing timing) {}
+      public void failed(IOException error, WebhooksHttpClient.Timing timing) { errors.add(error); }
+    });
+
+    for (int j = 0; (j < 100) && errors.isEmpty(); j++) { Thread.sleep(100); }
+
+    assertEquals(1, errors.size());
+    assertTrue(errors.get(0) instanceof UnknownHostException);
+  }
+
+
+  private WebhooksHttpClient.Response post() throws IOException {
+    return client.post(server.url(), payload(), "application/json");
+  }
+
+
+  private static EncodedPayload payload(){
+    byte[] bytes = PAYLOAD.getBytes(EncodedPayload.UTF8);
+    return EncodedPayload.copyOf(bytes, bytes.length);
+  }
+
+
+  private static Script ok(){
+    return new Script() {
+      public boolean respond(int request, OutputStream out) throws IOException {
+        return write(out, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+      }
+    };
+  }
+
+
+  private static boolean write(OutputStream out, String response) throws IOException {
+    out.write(response.getBytes("US-ASCII"));
+    out.flush();
+    return true;
+  }
+
+
+  /**
+   * Trusts and serves the self-signed "localhost" certificate of "localhost.jks".
+   */
+  private static SSLContext sslContext() throws Exception {
+    char[]      password = "changeit".toCharArray();
+    KeyStore    keyStore = KeyStore.getInstance("JKS");
+    InputStream in       = WebhooksHttpClientTest.class.getResourceAsStream("/localhost.jks");
+    try {
+      keyStore.load(in, password);
+    }
+    finally {
+      in.close();
+    }
+
+    KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keys.init(keyStore, password);
+    TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust.init(keyStore);
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+    return context;
+  }
+
+
+  /**
+   * Answers requests received on a connection.
+   */
+  interface Script {
+    /**
+     * @param request number of the request received by the server, starting from 1
+     * @return false to close the connection
+     */
+    boolean respond(int request, OutputStream out) throws IOException;
+  }
+
+
+  /**
+   * Webhook receiver on "localhost", plain or TLS, with a thread per connection.
+   */
+  static class LocalServer {
+    final ServerSocket        socket;
+    final boolean             secure;
+    final Script              script;
+    final AtomicInteger       connections = new AtomicInteger();
+    final List<String>        bodies      = Collections.synchronizedList(new ArrayList<String>());
+    final Map<String, String> headers     = Collections.synchronizedMap(new HashMap<String, String>());
+    final List<Socket>        sockets     = Collections.synchronizedList(new ArrayList<Socket>());
+
+    LocalServer(SSLContext sslContext, Script script) throws IOException {
+      InetAddress localhost = InetAddress.getByName("localhost");
+      this.socket = (sslContext == null) ? new ServerSocket(0, 50, localhost) :
+                                           sslContext.getServerSocketFactory().createServerSocket(0, 50, localhost);
+      this.secure = (sslContext != null);
+      this.script = script;
+      Thread acceptor = new Thread(new Runnable() {
+        public void run() { accept(); }
+      }, "local-server");
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    int port(){
+      return socket.getLocalPort();
+    }
+
+    String url(){
+      return (secure ? "https" : "http") + "://localhost:" + port() + "/hook";
+    }
+
+    void stop(){
+      try { socket.close(); } catch (IOException ignored) {}
+      synchronized (sockets) {
+        for (Socket connection : sockets){
+          try { connection.close(); } catch (IOException ignored) {}
+        }
+      }
+    }
+
+    private void accept(){
+      try {
+        while (true) {
+          final Socket connection = socket.accept();
+          connections.incrementAndGet();
+          sockets.add(connection);
+          Thread thread = new Thread(new Runnable() {
+            public void run() { serve(connection); }
+          }, "local-server-connection");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+      catch (IOException ignored) {
+        // Stopped
+      }
+    }
+
+    private void serve(Socket connection){
+      try {
+        InputStream  in  = new BufferedInputStream(connection.getInputStream());
+        OutputStream out = connection.getOutputStream();
+        while (true) {
+          String body = read(in);
+          if (body == null) { break; }
+          bodies.add(body);
+          if (! script.respond(bodies.size(), out)) { break; }
+        }
+      }
+      catch (IOException ignored) {
+        // Closed by the client or by the test
+      }
+      finally {
+        try { connection.close(); } catch (IOException ignored) {}
+      }
+    }
+
+    /**
+     * Reads request headers and body, returns null if connection is closed.
+     */
+    private String read(InputStream in) throws IOException {
+      int    length = 0;
+      String line   = line(in);
+      if (line == null) { return null; }
+      while (((line = line(in)) != null) && (line.length() > 0)) {
+        int colon = line.indexOf(':');
+        String name  = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+        String value = line.substring(colon + 1).trim();
+        headers.put(name, value);
+        if ("content-length".equals(name)) { length = Integer.parseInt(value); }
+      }
+
+      byte[] body = new byte[length];
+      new DataInputStream(in).readFully(body);
+      return new String(body, "UTF-8");
+    }
+
+    private static String line(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) { return null; }
+        if (b != '\r') { line.append((char) b); }
+      }
+      return line.toString();
+    }
+  }
+}
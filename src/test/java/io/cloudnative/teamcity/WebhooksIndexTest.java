@@ -0,0 +1,182 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.io.Files;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+
+public class WebhooksIndexTest {
+
+  File             dataDirectory;
+  WebhooksSettings settings;
+  WebhooksIndex    index;
+
+  /**
+   * Parent project id by project id, "_Root" has none.
+   */
+  Map<String, String> parents = new HashMap<String, String>();
+
+
+  @Before
+  public void start(){
+    dataDirectory = Files.createTempDir();
+    settings      = new WebhooksSettings(new ServerPaths(dataDirectory.getAbsolutePath()));
+    index         = new WebhooksIndex(settings, stub(SBuildServer.class, null), projectManager());
+    parents.put("Echo", "_Root");
+    parents.put("Echo_Backend", "Echo");
+    parents.put("Other", "_Root");
+  }
+
+
+  @After
+  public void stop(){
+    settings.shutdown();
+    delete(dataDirectory);
+  }
+
+
+  @Test
+  public void includesWebhooksOfAncestors(){
+    settings.addUrl("_Root", "http://root");
+    settings.addUrl("Echo", "http://echo");
+    settings.addUrl("Echo_Backend", "http://backend");
+    settings.addUrl("Other", "http://other");
+
+    assertEquals(Arrays.asList("http://backend", "http://echo", "http://root"), urls("Echo_Backend"));
+    assertEquals(Arrays.asList("http://other", "http://root"), urls("Other"));
+  }
+
+
+  @Test
+  public void overridesAncestorWebhookWithTheSameUrl(){
+    settings.addUrl("Echo", "http://shared");
+    settings.addEndpoint("Echo_Backend", batch("http://shared"));
+
+    Collection<WebhookEndpoint> endpoints = index.getEndpoints("Echo_Backend");
+
+    assertEquals(1, endpoints.size());
+    assertTrue(endpoints.iterator().next().isBatch());
+    assertFalse(index.getEndpoints("Echo").iterator().next().isBatch());
+  }
+
+
+  @Test
+  public void keepsOwnWebhooksOfUnknownProject(){
+    settings.addUrl("Removed", "http://removed");
+
+    assertEquals(Arrays.asList("http://removed"), urls("Removed"));
+  }
+
+
+  @Test
+  public void resolvesAgainWhenSettingsChange(){
+    settings.addUrl("Echo", "http://echo");
+    Collection<WebhookEndpoint> resolved = index.getEndpoints("Echo_Backend");
+    assertSame(resolved, index.getEndpoints("Echo_Backend"));
+
+    settings.addUrl("_Root", "http://root");
+
+    assertEquals(Arrays.asList("http://echo", "http://root"), urls("Echo_Backend"));
+  }
+
+
+  @Test
+  public void resolvesAgainWhenProjectIsMoved(){
+    settings.addUrl("Echo", "http://echo");
+    settings.addUrl("Other", "http://other");
+    assertEquals(Arrays.asList("http://echo"), urls("Echo_Backend"));
+
+    parents.put("Echo_Backend", "Other");
+    assertEquals("project tree changes are not watched", Arrays.asList("http://echo"), urls("Echo_Backend"));
+    index.projectMoved(project("Echo_Backend"), project("Echo"));
+
+    assertEquals(Arrays.asList("http://other"), urls("Echo_Backend"));
+  }
+
+
+  @Test
+  public void mapsInheritedWebhooksToTheirProjects(){
+    settings.addUrl("_Root", "http://root");
+    settings.addUrl("_Root", "http://shared");
+    settings.addUrl("Echo", "http://shared");
+    settings.addUrl("Echo", "http://echo");
+    settings.addUrl("Echo_Backend", "http://echo");
+
+    Map<String, String> inherited = index.getInherited("Echo_Backend");
+
+    assertEquals(Arrays.asList("http://shared", "http://root"), new ArrayList<String>(inherited.keySet()));
+    assertEquals("Project Echo", inherited.get("http://shared"));
+    assertEquals("Project _Root", inherited.get("http://root"));
+    assertTrue(index.getInherited("Removed").isEmpty());
+  }
+
+
+  private List<String> urls(String projectId){
+    List<String> urls = new ArrayList<String>();
+    for (WebhookEndpoint endpoint : index.getEndpoints(projectId)){ urls.add(endpoint.getUrl()); }
+    return urls;
+  }
+
+
+  private static WebhookEndpoint batch(String url){
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put("url", url);
+    options.put("batch", true);
+    return WebhookEndpoint.fromSettings(options);
+  }
+
+
+  private ProjectManager projectManager(){
+    return stub(ProjectManager.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "findProjectByExternalId".equals(method.getName()) ? project((String) args[0]) : null;
+      }
+    });
+  }
+
+
+  /**
+   * Project of the tree in "parents", null if there's no such project.
+   */
+  private SProject project(final String projectId){
+    if (! (parents.containsKey(projectId) || "_Root".equals(projectId))) { return null; }
+
+    return stub(SProject.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("getExternalId".equals(method.getName()))    { return projectId; }
+        if ("getFullName".equals(method.getName()))      { return "Project " + projectId; }
+        if ("getParentProject".equals(method.getName())) { return project(parents.get(projectId)); }
+        return null;
+      }
+    });
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, InvocationHandler handler){
+    return (T) Proxy.newProxyInstance(WebhooksIndexTest.class.getClassLoader(), new Class[]{ type },
+                                      (handler != null) ? handler : new InvocationHandler() {
+                                        public Object invoke(Object proxy, Method method, Object[] args) { return null; }
+                                      });
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+}
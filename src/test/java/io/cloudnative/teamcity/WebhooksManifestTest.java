@@ -0,0 +1,180 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+public class WebhooksManifestTest {
+
+  static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  File             artifacts;
+  Guard            guard;
+  WebhooksManifest manifest;
+
+
+  @Before
+  public void start(){
+    artifacts = Files.createTempDir();
+    guard     = new Guard();
+    System.setProperty(WebhooksConstants.MANIFEST_ENABLED_PROPERTY, "true");
+  }
+
+
+  @After
+  public void stop(){
+    if (manifest != null) { manifest.shutdown(); }
+    delete(artifacts);
+    System.clearProperty(WebhooksConstants.MANIFEST_ENABLED_PROPERTY);
+    System.clearProperty(WebhooksConstants.MANIFEST_MAX_BYTES_PROPERTY);
+  }
+
+
+  @Test
+  public void hashesArtifactsRecursively() throws Exception {
+    write("a.txt", "abc");
+    write("docs/nested/b.txt", "abc");
+    write(".teamcity/logs/buildLog.msg5", "abc");
+    manifest = new WebhooksManifest(guard.proxy());
+
+    Map<String, Map<String, String>> result = get(manifest.manifest(1, artifacts));
+
+    assertEquals(Arrays.asList("a.txt", "docs/nested/b.txt"), new ArrayList<String>(result.keySet()));
+    assertEquals("3", result.get("a.txt").get("size"));
+    assertEquals(ABC_SHA256, result.get("a.txt").get("sha256"));
+    assertEquals(ABC_SHA256, result.get("docs/nested/b.txt").get("sha256"));
+    assertEquals("artifacts are read under the guard", Arrays.asList("lock", "unlock"), guard.calls);
+  }
+
+
+  @Test
+  public void hashesFilesLargerThanBuffer() throws Exception {
+    byte[] content = new byte[(WebhooksConstants.MANIFEST_BUFFER_SIZE * 2) + 17];
+    new Random(15).nextBytes(content);
+    Files.write(content, new File(artifacts, "large.bin"));
+    manifest = new WebhooksManifest(guard.proxy());
+
+    Map<String, Map<String, String>> result = get(manifest.manifest(1, artifacts));
+
+    assertEquals(BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(content)),
+                 result.get("large.bin").get("sha256"));
+  }
+
+
+  @Test
+  public void hashesBuildOnce() throws Exception {
+    write("a.txt", "abc");
+    manifest = new WebhooksManifest(guard.proxy());
+
+    ListenableFuture<Map<String, Map<String, String>>> first = manifest.manifest(1, artifacts);
+    get(first);
+
+    assertSame(first, manifest.manifest(1, artifacts));
+    assertEquals(2, guard.calls.size());
+  }
+
+
+  @Test
+  public void listsFilesOverBudgetWithSizeOnly() throws Exception {
+    write("a.txt", "abc");
+    write("b.txt", "abcdef");
+    System.setProperty(WebhooksConstants.MANIFEST_MAX_BYTES_PROPERTY, "4");
+    manifest = new WebhooksManifest(guard.proxy());
+
+    ListenableFuture<Map<String, Map<String, String>>> first  = manifest.manifest(1, artifacts);
+    Map<String, Map<String, String>>                   result = get(first);
+
+    assertEquals(ABC_SHA256, result.get("a.txt").get("sha256"));
+    assertEquals("6", result.get("b.txt").get("size"));
+    assertNull(result.get("b.txt").get("sha256"));
+    assertSame("budget is the same for every event, manifest is kept", first, manifest.manifest(1, artifacts));
+  }
+
+
+  @Test
+  public void failedManifestIsNotKept() throws Exception {
+    write("a.txt", "abc");
+    guard.failures = 1;
+    manifest = new WebhooksManifest(guard.proxy());
+
+    try {
+      get(manifest.manifest(1, artifacts));
+      fail("manifest is computed despite the failure");
+    }
+    catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+
+    assertEquals(ABC_SHA256, get(manifest.manifest(1, artifacts)).get("a.txt").get("sha256"));
+  }
+
+
+  private static Map<String, Map<String, String>> get(ListenableFuture<Map<String, Map<String, String>>> future)
+    throws Exception {
+    return future.get(10, TimeUnit.SECONDS);
+  }
+
+
+  private void write(String path, String content) throws IOException {
+    File file = new File(artifacts, path);
+    file.getParentFile().mkdirs();
+    Files.write(content, file, Charset.forName("UTF-8"));
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+
+
+  /**
+   * Records locking of artifacts, failing the first "failures" attempts to lock them.
+   */
+  static class Guard implements InvocationHandler {
+
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    volatile int       failures;
+
+    ArtifactsGuard proxy(){
+      return (ArtifactsGuard) Proxy.newProxyInstance(ArtifactsGuard.class.getClassLoader(),
+                                                     new Class<?>[]{ ArtifactsGuard.class }, this);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args){
+      if ("lockReading".equals(method.getName())) {
+        if (failures > 0) {
+          failures--;
+          throw new IllegalStateException("artifacts are being removed");
+        }
+        calls.add("lock");
+      }
+      else if ("unlockReading".equals(method.getName())) {
+        calls.add("unlock");
+      }
+      else if ("isLocked".equals(method.getName())) {
+        return false;
+      }
+      return null;
+    }
+  }
+}
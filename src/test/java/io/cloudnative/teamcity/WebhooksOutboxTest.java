@@ -0,0 +1,293 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.io.Files;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+public class WebhooksOutboxTest {
+
+  File           dataDirectory;
+  WebhooksOutbox outbox;
+
+
+  @Before
+  public void start(){
+    dataDirectory = Files.createTempDir();
+    outbox        = open();
+  }
+
+
+  @After
+  public void stop(){
+    outbox.close();
+    delete(dataDirectory);
+    System.clearProperty(WebhooksConstants.OUTBOX_SEGMENT_SIZE_PROPERTY);
+    System.clearProperty(WebhooksConstants.OUTBOX_MAX_SEGMENTS_PROPERTY);
+  }
+
+
+  @Test
+  public void recoversDeliveriesNotAcknowledged(){
+    WebhookDelivery first  = delivery("http://first", "{\"build\":1}", "42");
+    WebhookDelivery second = delivery("http://second", "{\"build\":2}", null);
+    WebhookDelivery third  = WebhookDelivery.of("http://third", EncodedPayload.of(new byte[]{ 1, 2, 3 }, "gzip"), "Batch");
+    outbox.add(first);
+    outbox.add(second);
+    outbox.add(third);
+    outbox.ack(second);
+
+    List<WebhookDelivery> recovered = restart();
+
+    assertEquals(2, recovered.size());
+    assertEquals(2, outbox.pendingCount());
+    WebhookDelivery recoveredFirst = recovered.get(0);
+    assertEquals(first.getId(), recoveredFirst.getId());
+    assertEquals("http://first", recoveredFirst.getUrl());
+    assertEquals("Build 'http://first' finished", recoveredFirst.getDescription());
+    assertEquals("42", recoveredFirst.getKey());
+    assertEquals("{\"build\":1}", recoveredFirst.getPayload().toString());
+    assertNull(recoveredFirst.getPayload().contentEncoding());
+
+    WebhookDelivery recoveredThird = recovered.get(1);
+    assertEquals(third.getId(), recoveredThird.getId());
+    assertNull(recoveredThird.getKey());
+    assertEquals("gzip", recoveredThird.getPayload().contentEncoding());
+    assertArrayEquals(new byte[]{ 1, 2, 3 }, bytes(recoveredThird.getPayload()));
+  }
+
+
+  @Test
+  public void recoversAttemptsMade(){
+    WebhookDelivery delivery = delivery("http://first", "{}", null);
+    outbox.add(delivery);
+    delivery.attempted();
+    outbox.attempted(delivery);
+    delivery.attempted();
+    outbox.attempted(delivery);
+
+    assertEquals(2, restart().get(0).getAttempts());
+  }
+
+
+  @Test
+  public void assignsNewIdsAfterRecovered(){
+    WebhookDelivery delivery = delivery("http://first", "{}", null);
+    outbox.add(delivery);
+    restart();
+
+    WebhookDelivery next = delivery("http://second", "{}", null);
+    outbox.add(next);
+
+    assertTrue(next.getId() > delivery.getId());
+  }
+
+
+  @Test
+  public void stopsAtCorruptedRecordHeader() throws IOException {
+    outbox.add(delivery("http://first", "{\"build\":1}", null));
+    outbox.add(delivery("http://second", "{\"build\":2}", null));
+    outbox.close();
+
+    File segment = singleSegment();
+    // Second record starts right after the first one: [int length][long CRC][header][payload]
+    int second = recordLength(segment, 0);
+    flip(segment, second + 12 + 10);
+
+    List<WebhookDelivery> recovered = restart();
+
+    assertEquals(1, recovered.size());
+    assertEquals("http://first", recovered.get(0).getUrl());
+  }
+
+
+  @Test
+  public void stopsAtCorruptedPayload() throws IOException {
+    outbox.add(delivery("http://first", "{\"build\":1}", null));
+    outbox.add(delivery("http://second", "{\"build\":2}", null));
+    outbox.add(delivery("http://third", "{\"build\":3}", null));
+    outbox.close();
+
+    File segment = singleSegment();
+    int second = recordLength(segment, 0);
+    // Last byte of the second record's payload
+    flip(segment, second + recordLength(segment, second) - 1);
+
+    List<WebhookDelivery> recovered = restart();
+
+    assertEquals(1, recovered.size());
+    assertEquals("http://first", recovered.get(0).getUrl());
+  }
+
+
+  @Test
+  public void ignoresTruncatedRecord() throws IOException {
+    outbox.add(delivery("http://first", "{\"build\":1}", null));
+    outbox.add(delivery("http://second", "{\"build\":2}", null));
+    outbox.close();
+
+    File segment = singleSegment();
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.setLength(segment.length() - 3);
+    }
+    finally {
+      file.close();
+    }
+
+    List<WebhookDelivery> recovered = restart();
+
+    assertEquals(1, recovered.size());
+    assertEquals("http://first", recovered.get(0).getUrl());
+  }
+
+
+  @Test
+  public void deletesSegmentsOfAcknowledgedDeliveries(){
+    System.setProperty(WebhooksConstants.OUTBOX_SEGMENT_SIZE_PROPERTY, "1024");
+    restart();
+
+    for (int j = 0; j < 50; j++) {
+      WebhookDelivery delivery = delivery("http://first", payload(200), null);
+      outbox.add(delivery);
+      outbox.ack(delivery);
+    }
+
+    assertTrue(restart().isEmpty());
+    assertTrue(segments().size() <= 2);
+  }
+
+
+  @Test
+  public void relocatesLongPendingDeliveries(){
+    System.setProperty(WebhooksConstants.OUTBOX_SEGMENT_SIZE_PROPERTY, "1024");
+    System.setProperty(WebhooksConstants.OUTBOX_MAX_SEGMENTS_PROPERTY, "3");
+    restart();
+
+    WebhookDelivery pending = delivery("http://pending", "{\"build\":1}", "7");
+    outbox.add(pending);
+    pending.attempted();
+    outbox.attempted(pending);
+    for (int j = 0; j < 50; j++) {
+      WebhookDelivery delivery = delivery("http://first", payload(200), null);
+      outbox.add(delivery);
+      outbox.ack(delivery);
+    }
+
+    List<WebhookDelivery> recovered = restart();
+
+    assertTrue(segments().size() <= 4);
+    assertEquals(1, recovered.size());
+    assertEquals(pending.getId(), recovered.get(0).getId());
+    assertEquals(1, recovered.get(0).getAttempts());
+    assertEquals("{\"build\":1}", recovered.get(0).getPayload().toString());
+  }
+
+
+  private WebhooksOutbox open(){
+    WebhooksOutbox outbox = new WebhooksOutbox(new ServerPaths(dataDirectory.getAbsolutePath()));
+    outbox.recover();
+    return outbox;
+  }
+
+
+  /**
+   * Closes the outbox and recovers it again.
+   */
+  private List<WebhookDelivery> restart(){
+    outbox.close();
+    outbox = new WebhooksOutbox(new ServerPaths(dataDirectory.getAbsolutePath()));
+    return outbox.recover();
+  }
+
+
+  private static WebhookDelivery delivery(String url, String payload, String key){
+    return WebhookDelivery.of(url, EncodedPayload.of(payload.getBytes(EncodedPayload.UTF8), null),
+                              "Build '" + url + "' finished", key);
+  }
+
+
+  private static String payload(int length){
+    StringBuilder builder = new StringBuilder("\"");
+    while (builder.length() < length - 1) { builder.append('x'); }
+    return builder.append('"').toString();
+  }
+
+
+  private static byte[] bytes(EncodedPayload payload){
+    ByteBuffer buffer = payload.buffer();
+    byte[]     bytes  = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+
+  private List<File> segments(){
+    File[] files = new File(dataDirectory, "system/pluginData/webhooks/outbox").listFiles();
+    List<File> result = new ArrayList<File>();
+    for (File file : files){
+      if (file.length() > 0) { result.add(file); }
+    }
+    return result;
+  }
+
+
+  private File singleSegment(){
+    List<File> segments = segments();
+    assertEquals(1, segments.size());
+    return segments.get(0);
+  }
+
+
+  /**
+   * Length of the record at the offset specified, including its payload.
+   */
+  private static int recordLength(File segment, int offset) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment, "r");
+    try {
+      file.seek(offset);
+      int headerLength = file.readInt();
+      // [long CRC][byte type][long id][UTF url][UTF description][int attempts][int payload size]..
+      file.seek(offset + 12 + 1 + 8);
+      file.skipBytes(file.readUnsignedShort());
+      file.skipBytes(file.readUnsignedShort());
+      file.readInt();
+      int payloadSize = file.readInt();
+      return 12 + headerLength + payloadSize;
+    }
+    finally {
+      file.close();
+    }
+  }
+
+
+  private static void flip(File segment, long position) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.seek(position);
+      int value = file.read();
+      file.seek(position);
+      file.write(value ^ 0xFF);
+    }
+    finally {
+      file.close();
+    }
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,279 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.io.Files;
+import jetbrains.buildServer.parameters.ParametersProvider;
+import jetbrains.buildServer.serverSide.BuildRevision;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class WebhooksPayloadCacheTest {
+
+  File                 dataDirectory;
+  ManualTicker         ticker = new ManualTicker();
+  WebhooksSettings     settings;
+  WebhooksOutbox       outbox;
+  WebhooksDispatcher   dispatcher;
+  WebhooksManifest     manifest;
+  WebhooksMetrics      metrics;
+  WebhooksPayloadCache payloadCache;
+  WebhooksListener     listener;
+
+  /**
+   * Revisions resolved (once per fragments resolved), by build id.
+   */
+  Map<Long, AtomicInteger> resolved = new HashMap<Long, AtomicInteger>();
+
+  /**
+   * "env.BuildDate" parameter of builds.
+   */
+  volatile String buildDate = "20170714.1";
+
+
+  @Before
+  public void start(){
+    System.setProperty(WebhooksConstants.PAYLOAD_CACHE_SIZE_PROPERTY, "2");
+    dataDirectory = Files.createTempDir();
+    ServerPaths serverPaths = new ServerPaths(dataDirectory.getAbsolutePath());
+    SBuildServer buildServer = stub(SBuildServer.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "getRootUrl".equals(method.getName()) ? "http://teamcity" : null;
+      }
+    });
+
+    settings     = new WebhooksSettings(serverPaths);
+    outbox       = new WebhooksOutbox(serverPaths);
+    metrics      = new WebhooksMetrics();
+    dispatcher   = new WebhooksDispatcher(outbox, metrics);
+    manifest     = new WebhooksManifest(stub(ArtifactsGuard.class, null));
+    payloadCache = new WebhooksPayloadCache(ticker);
+    listener     = new WebhooksListener(new WebhooksIndex(settings, buildServer, stub(ProjectManager.class, null)),
+                                        buildServer,
+                                        stub(ArtifactsGuard.class, null),
+                                        dispatcher,
+                                        new WebhooksS3Resolver(serverPaths),
+                                        new WebhooksS3Lister(),
+                                        manifest,
+                                        payloadCache,
+                                        new WebhooksChanges(ticker),
+                                        metrics,
+                                        new WebhooksPayloadLog());
+  }
+
+
+  @After
+  public void stop(){
+    dispatcher.shutdown();
+    manifest.shutdown();
+    settings.shutdown();
+    delete(dataDirectory);
+    System.clearProperty(WebhooksConstants.PAYLOAD_CACHE_SIZE_PROPERTY);
+    System.clearProperty(WebhooksConstants.PAYLOAD_CACHE_TTL_PROPERTY);
+  }
+
+
+  @Test
+  public void sharesFragmentsAcrossEventsOfBuild(){
+    SBuild build = build(15);
+
+    WebhookPayload started     = listener.buildPayload(build, "pending", new Date(1000), null);
+    WebhookPayload finished    = listener.buildPayload(build, "success", new Date(1000), new Date(2000));
+    WebhookPayload interrupted = listener.buildPayload(build, "cancelled", new Date(1000), new Date(3000));
+
+    assertEquals(1, resolved.get(15L).get());
+    assertSame(started.getBuild().scm, finished.getBuild().scm);
+    assertSame(started.getBuild().scm, interrupted.getBuild().scm);
+    assertEquals("Echo :: Build", interrupted.getName());
+    assertEquals("http://teamcity/viewType.html?buildTypeId=Echo_Build", interrupted.getUrl());
+    assertEquals("http://teamcity/viewLog.html?buildTypeId=Echo_Build&buildId=15", interrupted.getBuild().full_url);
+    assertEquals("git@github.com:echo/echo.git", interrupted.getBuild().scm.url);
+    assertEquals("refs/heads/master", interrupted.getBuild().scm.branch);
+    assertEquals("cancelled", interrupted.getBuild().status);
+
+    assertEquals(2, payloadCache.hitCount());
+    assertEquals(1, payloadCache.missCount());
+    assertEquals(1, payloadCache.size());
+  }
+
+
+  @Test
+  public void resolvesFragmentsOfEachBuild(){
+    listener.buildPayload(build(15), "pending", new Date(), null);
+    listener.buildPayload(build(16), "pending", new Date(), null);
+    listener.buildPayload(build(15), "success", new Date(), new Date());
+
+    assertEquals(1, resolved.get(15L).get());
+    assertEquals(1, resolved.get(16L).get());
+    assertEquals(1, payloadCache.hitCount());
+    assertEquals(2, payloadCache.missCount());
+    assertEquals(0, payloadCache.evictionCount());
+  }
+
+
+  @Test
+  public void resolvesParametersForEachEvent(){
+    SBuild build = build(15);
+
+    WebhookPayload started = listener.buildPayload(build, "pending", new Date(), null);
+    buildDate = "20170714.2";
+    WebhookPayload finished = listener.buildPayload(build, "success", new Date(), new Date());
+
+    assertEquals(1, resolved.get(15L).get());
+    assertEquals("20170714.1", started.getBuild().parameters.get("build_date"));
+    assertEquals("20170714.2", finished.getBuild().parameters.get("build_date"));
+  }
+
+
+  @Test
+  public void evictsLeastRecentlyUsedBuilds(){
+    listener.buildPayload(build(15), "pending", new Date(), null);
+    listener.buildPayload(build(16), "pending", new Date(), null);
+    listener.buildPayload(build(15), "pending", new Date(), null);
+    listener.buildPayload(build(17), "pending", new Date(), null);
+
+    listener.buildPayload(build(15), "success", new Date(), new Date());
+    listener.buildPayload(build(16), "success", new Date(), new Date());
+
+    assertEquals(1, resolved.get(15L).get());
+    assertEquals("evicted and resolved again", 2, resolved.get(16L).get());
+    assertEquals(2, payloadCache.hitCount());
+    assertEquals(4, payloadCache.missCount());
+    assertEquals(2, payloadCache.evictionCount());
+    assertEquals(2, payloadCache.size());
+  }
+
+
+  @Test
+  public void expiresBuildsNotUsedWithinTtl(){
+    System.setProperty(WebhooksConstants.PAYLOAD_CACHE_TTL_PROPERTY, "60000");
+    payloadCache = new WebhooksPayloadCache(ticker);
+    Callable<WebhooksPayloadCache.Fragments> loader = loader();
+
+    WebhooksPayloadCache.Fragments fragments = payloadCache.fragments(15, loader);
+    ticker.advance(59999);
+    assertSame(fragments, payloadCache.fragments(15, loader));
+    ticker.advance(59999);
+    assertSame("expiration is extended by every event", fragments, payloadCache.fragments(15, loader));
+
+    ticker.advance(60000);
+    assertNotSame(fragments, payloadCache.fragments(15, loader));
+    assertEquals(2, payloadCache.hitCount());
+    assertEquals(2, payloadCache.missCount());
+  }
+
+
+  @Test
+  public void exposesCountersAsMetrics(){
+    listener.buildPayload(build(15), "pending", new Date(), null);
+    listener.buildPayload(build(15), "success", new Date(), new Date());
+    listener.buildPayload(build(16), "pending", new Date(), null);
+    listener.buildPayload(build(17), "pending", new Date(), null);
+
+    StringBuilder out = new StringBuilder();
+    metrics.write(out, dispatcher, payloadCache);
+    List<String> lines = Arrays.asList(out.toString().split("\n"));
+
+    assertTrue(lines.contains("webhooks_payload_cache_size 2"));
+    assertTrue(lines.contains("webhooks_payload_cache_hits_total 1"));
+    assertTrue(lines.contains("webhooks_payload_cache_misses_total 3"));
+    assertTrue(lines.contains("webhooks_payload_cache_evictions_total 1"));
+  }
+
+
+  private static Callable<WebhooksPayloadCache.Fragments> loader(){
+    return new Callable<WebhooksPayloadCache.Fragments>() {
+      public WebhooksPayloadCache.Fragments call() {
+        return WebhooksPayloadCache.Fragments.of("Echo :: Build", "http://teamcity", "http://teamcity/viewLog.html", null);
+      }
+    };
+  }
+
+
+  /**
+   * Running build of "Echo_Build" with a git revision on "master", counting revisions resolved in "resolved".
+   */
+  private SBuild build(final long buildId){
+    if (! resolved.containsKey(buildId)) { resolved.put(buildId, new AtomicInteger()); }
+    final AtomicInteger revisions = resolved.get(buildId);
+
+    final SBuildType buildType = stub(SBuildType.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "getExternalId".equals(method.getName()) ? "Echo_Build" : null;
+      }
+    });
+    final VcsRoot root = stub(VcsRoot.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "getProperty".equals(method.getName()) && "url".equals(args[0]) ? "git@github.com:echo/echo.git" : null;
+      }
+    });
+    final BuildRevision.RepositoryVersion version = stub(BuildRevision.RepositoryVersion.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "getVcsBranch".equals(method.getName()) ? "refs/heads/master" : null;
+      }
+    });
+    final BuildRevision revision = stub(BuildRevision.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("getRoot".equals(method.getName()))              { return root; }
+        if ("getRepositoryVersion".equals(method.getName())) { return version; }
+        if ("getRevision".equals(method.getName()))          { return "0123456789abcdef"; }
+        return null;
+      }
+    });
+    final ParametersProvider parameters = stub(ParametersProvider.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "env.BuildDate".equals(args[0]) ? buildDate : null;
+      }
+    });
+
+    return stub(SBuild.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("getBuildId".equals(method.getName()))            { return buildId; }
+        if ("getBuildNumber".equals(method.getName()))        { return String.valueOf(buildId); }
+        if ("getFullName".equals(method.getName()))           { return "Echo :: Build"; }
+        if ("getBuildTypeId".equals(method.getName()))        { return "bt1"; }
+        if ("getBuildType".equals(method.getName()))          { return buildType; }
+        if ("getParametersProvider".equals(method.getName())) { return parameters; }
+        if ("getChanges".equals(method.getName()))            { return Collections.emptyList(); }
+        if ("getRevisions".equals(method.getName())) {
+          revisions.incrementAndGet();
+          return Arrays.asList(revision);
+        }
+        return null;
+      }
+    });
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, InvocationHandler handler){
+    return (T) Proxy.newProxyInstance(WebhooksPayloadCacheTest.class.getClassLoader(), new Class[]{ type },
+                                      (handler != null) ? handler : new InvocationHandler() {
+                                        public Object invoke(Object proxy, Method method, Object[] args) { return null; }
+                                      });
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+}
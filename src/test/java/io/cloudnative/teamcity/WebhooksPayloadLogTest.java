@@ -0,0 +1,160 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class WebhooksPayloadLogTest {
+
+  static final String[] PROPERTIES = {
+    WebhooksConstants.LOG_MAX_LENGTH_PROPERTY,
+    WebhooksConstants.LOG_SAMPLE_THRESHOLD_PROPERTY,
+    WebhooksConstants.LOG_SAMPLE_RATE_PROPERTY,
+    WebhooksConstants.LOG_QUEUE_SIZE_PROPERTY
+  };
+
+  Captured           category = new Captured();
+  WebhooksPayloadLog log;
+
+
+  @After
+  public void stop(){
+    category.release();
+    if (log != null) { log.shutdown(); }
+    for (String property : PROPERTIES){ System.clearProperty(property); }
+  }
+
+
+  @Test
+  public void logsPayloadsUpToMaxLength() throws Exception {
+    System.setProperty(WebhooksConstants.LOG_MAX_LENGTH_PROPERTY, "10");
+    log = new WebhooksPayloadLog(category);
+
+    log.payload("Build 'Echo/#1' started", payload("0123456789"));
+    log.payload("Build 'Echo/#1' finished", payload("0123456789abcdef"));
+    log.shutdown();
+
+    assertEquals(Arrays.asList("INFO WebHooks plugin - Build 'Echo/#1' started, payload is '0123456789'",
+                               "INFO WebHooks plugin - Build 'Echo/#1' finished, payload of 16 bytes is '0123456789..' (truncated)"),
+                 category.messages);
+  }
+
+
+  @Test
+  public void logsSizeOnlyWithoutMaxLength() throws Exception {
+    System.setProperty(WebhooksConstants.LOG_MAX_LENGTH_PROPERTY, "0");
+    log = new WebhooksPayloadLog(category);
+
+    log.payload("Build 'Echo/#1' started", payload("0123456789"));
+    log.shutdown();
+
+    assertEquals(Arrays.asList("INFO WebHooks plugin - Build 'Echo/#1' started, payload of 10 bytes"), category.messages);
+  }
+
+
+  @Test
+  public void samplesPayloadsAboveThreshold() throws Exception {
+    System.setProperty(WebhooksConstants.LOG_SAMPLE_THRESHOLD_PROPERTY, "5");
+    System.setProperty(WebhooksConstants.LOG_SAMPLE_RATE_PROPERTY, "3");
+    log = new WebhooksPayloadLog(category);
+
+    for (int j = 0; j < 7; j++) {
+      log.payload("large " + j, payload("012345"));
+      log.payload("small " + j, payload("01234"));
+    }
+    log.shutdown();
+
+    List<String> logged = new ArrayList<String>();
+    for (String message : category.messages){ logged.add(message.split(",")[0]); }
+    assertEquals(Arrays.asList("INFO WebHooks plugin - large 0", "INFO WebHooks plugin - small 0",
+                               "INFO WebHooks plugin - small 1",
+                               "INFO WebHooks plugin - small 2",
+                               "INFO WebHooks plugin - large 3", "INFO WebHooks plugin - small 3",
+                               "INFO WebHooks plugin - small 4",
+                               "INFO WebHooks plugin - small 5",
+                               "INFO WebHooks plugin - large 6", "INFO WebHooks plugin - small 6"),
+                 logged);
+  }
+
+
+  @Test
+  public void logsEveryPayloadInFullWithDebug() throws Exception {
+    System.setProperty(WebhooksConstants.LOG_MAX_LENGTH_PROPERTY, "10");
+    System.setProperty(WebhooksConstants.LOG_SAMPLE_THRESHOLD_PROPERTY, "5");
+    System.setProperty(WebhooksConstants.LOG_SAMPLE_RATE_PROPERTY, "100");
+    category.debug = true;
+    log = new WebhooksPayloadLog(category);
+
+    log.payload("Build 'Echo/#1' started", payload("0123456789abcdef"));
+    log.payload("Build 'Echo/#1' finished", payload("0123456789abcdef"));
+    log.shutdown();
+
+    assertEquals(Arrays.asList("DEBUG WebHooks plugin - Build 'Echo/#1' started, payload is '0123456789abcdef'",
+                               "DEBUG WebHooks plugin - Build 'Echo/#1' finished, payload is '0123456789abcdef'"),
+                 category.messages);
+  }
+
+
+  @Test
+  public void reportsPayloadsDroppedWhenQueueIsFull() throws Exception {
+    System.setProperty(WebhooksConstants.LOG_QUEUE_SIZE_PROPERTY, "1");
+    log = new WebhooksPayloadLog(category);
+    category.hold = new CountDownLatch(1);
+
+    log.payload("first", payload("1"));
+    assertTrue(category.writing.await(5, TimeUnit.SECONDS));
+    log.payload("second", payload("2"));
+    log.payload("third", payload("3"));
+    log.payload("fourth", payload("4"));
+    category.release();
+    log.shutdown();
+
+    assertEquals(Arrays.asList("INFO WebHooks plugin - first, payload is '1'",
+                               "WARN WebHooks plugin - 2 payloads were not logged, logging queue was full",
+                               "INFO WebHooks plugin - second, payload is '2'"),
+                 category.messages);
+  }
+
+
+  private static EncodedPayload payload(String json) throws UnsupportedEncodingException {
+    return EncodedPayload.of(json.getBytes("UTF-8"), null);
+  }
+
+
+  /**
+   * Log category keeping messages written, by level. Messages are written once "hold" is released, when it's set.
+   */
+  static class Captured implements WebhooksPayloadLog.Category {
+
+    final List<String>      messages = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch    writing  = new CountDownLatch(1);
+    volatile boolean        debug;
+    volatile CountDownLatch hold;
+
+    public boolean isDebugEnabled() { return debug; }
+    public void debug(String message) { write("DEBUG " + message); }
+    public void info(String message) { write("INFO " + message); }
+    public void warn(String message) { write("WARN " + message); }
+
+    void release(){
+      if (hold != null) { hold.countDown(); }
+    }
+
+    private void write(String message){
+      messages.add(message);
+      writing.countDown();
+      CountDownLatch latch = hold;
+      try {
+        if (latch != null) { latch.await(5, TimeUnit.SECONDS); }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
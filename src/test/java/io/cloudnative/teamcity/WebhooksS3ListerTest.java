@@ -0,0 +1,230 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+
+
+public class WebhooksS3ListerTest {
+
+  static final String BUCKET = "artifacts";
+  static final String PREFIX = "Echo::Build/15/";
+
+  S3StandIn        s3;
+  AmazonS3         s3Client;
+  WebhooksS3Lister lister;
+
+
+  @Before
+  public void start() throws IOException {
+    s3       = new S3StandIn();
+    s3Client = s3.client();
+    lister   = new WebhooksS3Lister();
+  }
+
+
+  @After
+  public void stop(){
+    lister.shutdown();
+    s3.stop();
+    System.clearProperty(WebhooksConstants.S3_LISTING_TIMEOUT_PROPERTY);
+  }
+
+
+  @Test
+  public void listsFlatPrefixOfManyPages(){
+    Set<String> keys = s3.put(PREFIX, 2500);
+
+    List<String> listed = list(PREFIX);
+
+    assertEquals(keys, new TreeSet<String>(listed));
+    assertEquals("no key is listed twice", keys.size(), listed.size());
+    assertTrue(s3.requests > 2);
+  }
+
+
+  @Test
+  public void listsNestedPrefixesFoundOnEveryPage(){
+    s3.pageSize = 5;
+    Set<String> keys = new TreeSet<String>();
+    keys.addAll(s3.put(PREFIX, 12));
+    // More "directories" than fit on the first page of the top level, some of them nested
+    for (int j = 0; j < 23; j++) {
+      keys.addAll(s3.put(PREFIX + "dir-" + j + "/", 3));
+      if ((j % 4) == 0) {
+        keys.addAll(s3.put(PREFIX + "dir-" + j + "/nested/deeper/", 7));
+      }
+    }
+    s3.put("Echo::Build/16/", 5);
+
+    List<String> listed = list(PREFIX);
+
+    assertEquals(keys, new TreeSet<String>(listed));
+    assertEquals("no key is listed twice", keys.size(), listed.size());
+  }
+
+
+  @Test
+  public void listsEmptyPrefix(){
+    s3.put("Echo::Build/16/", 5);
+    assertEquals(Collections.<String>emptyList(), list(PREFIX));
+  }
+
+
+  @Test
+  public void reportsListingOutOfTime(){
+    System.setProperty(WebhooksConstants.S3_LISTING_TIMEOUT_PROPERTY, "300");
+    lister.shutdown();
+    lister = new WebhooksS3Lister();
+    s3.put(PREFIX + "dir/", 50);
+    s3.pageSize = 5;
+    s3.delay    = 100;
+
+    final List<String> listed = new ArrayList<String>();
+    boolean complete = lister.list(s3Client, BUCKET, PREFIX, new WebhooksS3Lister.KeyVisitor() {
+      public void visit(String key) { listed.add(key); }
+    });
+
+    assertFalse(complete);
+    assertTrue(listed.size() < 50);
+  }
+
+
+  private List<String> list(String prefix){
+    final List<String> listed = new ArrayList<String>();
+    final Thread caller = Thread.currentThread();
+    boolean complete = lister.list(s3Client, BUCKET, prefix, new WebhooksS3Lister.KeyVisitor() {
+      public void visit(String key) {
+        assertSame("keys are visited on the calling thread", caller, Thread.currentThread());
+        listed.add(key);
+      }
+    });
+    assertTrue(complete);
+    return listed;
+  }
+
+
+  /**
+   * S3 bucket answering "GET Bucket (List Objects)" requests from keys in memory,
+   * with at most "pageSize" keys and common prefixes per page.
+   */
+  static class S3StandIn implements HttpHandler {
+
+    final TreeSet<String> keys = new TreeSet<String>();
+    final HttpServer      server;
+    volatile int          pageSize = 1000;
+    volatile long         delay;
+    volatile int          requests;
+
+    S3StandIn() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", this);
+      server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+      server.start();
+    }
+
+    @SuppressWarnings("deprecation")
+    AmazonS3 client(){
+      AmazonS3Client client = new AmazonS3Client(new BasicAWSCredentials("access", "secret"));
+      client.setEndpoint("http://127.0.0.1:" + server.getAddress().getPort());
+      client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+      return client;
+    }
+
+    void stop(){
+      server.stop(0);
+    }
+
+    synchronized Set<String> put(String prefix, int count){
+      Set<String> added = new TreeSet<String>();
+      for (int j = 0; j < count; j++) {
+        added.add(prefix + String.format("artifact-%04d.jar", j));
+      }
+      keys.addAll(added);
+      return added;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+      synchronized (this) { requests++; }
+      try {
+        if (delay > 0) { Thread.sleep(delay); }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+      byte[] body = listing(query.containsKey("prefix")    ? query.get("prefix")    : "",
+                            query.get("delimiter"),
+                            query.containsKey("marker")    ? query.get("marker")    : "",
+                            query.containsKey("max-keys")  ? Integer.parseInt(query.get("max-keys")) : 1000).getBytes("UTF-8");
+      exchange.getResponseHeaders().add("Content-Type", "application/xml");
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    }
+
+    private synchronized String listing(String prefix, String delimiter, String marker, int maxKeys){
+      int                 max        = Math.min(maxKeys, pageSize);
+      List<String>        contents   = new ArrayList<String>();
+      Set<String>         prefixes   = new LinkedHashSet<String>();
+      String              last       = null;
+      boolean             truncated  = false;
+
+      for (String key : keys.tailSet(marker, false)) {
+        if (! key.startsWith(prefix)) { continue; }
+        int    at     = (delimiter == null) ? -1 : key.indexOf(delimiter, prefix.length());
+        String common = (at < 0) ? null : key.substring(0, at + delimiter.length());
+        if ((common != null) && (prefixes.contains(common) || (common.compareTo(marker) <= 0))) { continue; }
+
+        if (contents.size() + prefixes.size() == max) { truncated = true; break; }
+        if (common != null) { prefixes.add(common); last = common; }
+        else                { contents.add(key);    last = key;    }
+      }
+
+      StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      xml.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+      xml.append("<Name>").append(BUCKET).append("</Name>");
+      xml.append("<Prefix>").append(prefix).append("</Prefix>");
+      xml.append("<Marker>").append(marker).append("</Marker>");
+      if (truncated) { xml.append("<NextMarker>").append(last).append("</NextMarker>"); }
+      xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+      if (delimiter != null) { xml.append("<Delimiter>").append(delimiter).append("</Delimiter>"); }
+      xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+      for (String key : contents) {
+        xml.append("<Contents><Key>").append(key).append("</Key>").
+            append("<LastModified>2015-06-01T12:00:00.000Z</LastModified><ETag>&quot;0&quot;</ETag>").
+            append("<Size>1</Size><StorageClass>STANDARD</StorageClass></Contents>");
+      }
+      for (String common : prefixes) {
+        xml.append("<CommonPrefixes><Prefix>").append(common).append("</Prefix></CommonPrefixes>");
+      }
+      return xml.append("</ListBucketResult>").toString();
+    }
+
+    private static Map<String, String> query(String rawQuery) throws IOException {
+      Map<String, String> query = new HashMap<String, String>();
+      if (rawQuery == null) { return query; }
+      for (String parameter : rawQuery.split("&")) {
+        int at = parameter.indexOf('=');
+        query.put(URLDecoder.decode((at < 0) ? parameter : parameter.substring(0, at), "UTF-8"),
+                  (at < 0) ? "" : URLDecoder.decode(parameter.substring(at + 1), "UTF-8"));
+      }
+      return query;
+    }
+  }
+}
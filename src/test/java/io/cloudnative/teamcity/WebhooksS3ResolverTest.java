@@ -0,0 +1,204 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.google.common.io.Files;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+
+
+public class WebhooksS3ResolverTest {
+
+  File               dataDirectory;
+  File               settingsFile;
+  ManualTicker       ticker  = new ManualTicker();
+  WebhooksS3Resolver resolver;
+
+  /**
+   * Clients created by the resolver, in order.
+   */
+  List<StubS3> clients = new ArrayList<StubS3>();
+
+  /**
+   * Buckets existing in S3.
+   */
+  Set<String> buckets = new HashSet<String>(Arrays.asList("artifacts"));
+
+
+  @Before
+  public void start(){
+    dataDirectory = Files.createTempDir();
+    ServerPaths serverPaths = new ServerPaths(dataDirectory.getAbsolutePath());
+    settingsFile  = new File(serverPaths.getConfigDir(), WebhooksConstants.S3_SETTINGS_FILE);
+    System.setProperty(WebhooksConstants.S3_BUCKET_CACHE_TTL_PROPERTY, "60000");
+    resolver      = new WebhooksS3Resolver(serverPaths, new WebhooksS3Resolver.ClientFactory() {
+      public AmazonS3 create(String awsAccessKey, String awsSecretKey) {
+        StubS3 client = new StubS3(awsAccessKey, awsSecretKey);
+        clients.add(client);
+        return client;
+      }
+    }, ticker);
+  }
+
+
+  @After
+  public void stop(){
+    System.clearProperty(WebhooksConstants.S3_BUCKET_CACHE_TTL_PROPERTY);
+    delete(dataDirectory);
+  }
+
+
+  @Test
+  public void resolvesNothingWithoutSettings(){
+    assertNull(resolver.resolve());
+    assertTrue(clients.isEmpty());
+  }
+
+
+  @Test
+  public void resolvesBucketOfSettings() throws IOException {
+    writeSettings("artifacts", 1000);
+
+    WebhooksS3Resolver.Bucket bucket = resolver.resolve();
+
+    assertEquals(1, clients.size());
+    assertEquals("key", clients.get(0).awsAccessKey);
+    assertEquals("secret", clients.get(0).awsSecretKey);
+    assertSame(clients.get(0), bucket.getS3Client());
+    assertEquals("artifacts", bucket.getName());
+    assertEquals("eu-west-1", bucket.getRegion());
+  }
+
+
+  @Test
+  public void resolvesNothingWhenBucketDoesNotExist() throws IOException {
+    writeSettings("missing", 1000);
+
+    assertNull(resolver.resolve());
+    assertEquals(1, clients.size());
+  }
+
+
+  @Test
+  public void reloadsSettingsWhenFileIsModified() throws IOException {
+    writeSettings("artifacts", 1000);
+    StubS3 first = (StubS3) resolver.resolve().getS3Client();
+    assertSame(first, resolver.resolve().getS3Client());
+
+    // Same length, modified later
+    writeSettings("artifact2", 2000);
+    buckets.add("artifact2");
+    StubS3 second = (StubS3) resolver.resolve().getS3Client();
+
+    assertEquals(2, clients.size());
+    assertEquals("artifact2", resolver.resolve().getName());
+    assertTrue("previous client is shut down", first.shutdown);
+    assertFalse(second.shutdown);
+
+    // Different length, same modification time
+    writeSettings("artifacts3", 2000);
+    buckets.add("artifacts3");
+    StubS3 third = (StubS3) resolver.resolve().getS3Client();
+
+    assertEquals(3, clients.size());
+    assertEquals("artifacts3", resolver.resolve().getName());
+    assertTrue(second.shutdown);
+    assertFalse(third.shutdown);
+  }
+
+
+  @Test
+  public void shutsDownClientWhenSettingsAreRemoved() throws IOException {
+    writeSettings("artifacts", 1000);
+    StubS3 client = (StubS3) resolver.resolve().getS3Client();
+
+    assertTrue(settingsFile.delete());
+
+    assertNull(resolver.resolve());
+    assertTrue(client.shutdown);
+  }
+
+
+  @Test
+  public void cachesBucketExistenceForTtl() throws IOException {
+    writeSettings("created", 1000);
+    assertNull(resolver.resolve());
+    StubS3 client = clients.get(0);
+
+    buckets.add("created");
+    ticker.advance(59999);
+    assertNull("bucket existence is cached", resolver.resolve());
+    assertEquals(1, client.existenceChecks);
+
+    ticker.advance(1);
+    assertEquals("created", resolver.resolve().getName());
+    assertEquals(2, client.existenceChecks);
+
+    ticker.advance(59999);
+    assertNotNull(resolver.resolve());
+    assertEquals("bucket details are kept for TTL since they're resolved", 2, client.existenceChecks);
+  }
+
+
+  /**
+   * Writes S3 settings with the bucket specified, modified at the time specified in seconds since the epoch
+   * (file systems keep modification time in seconds or coarser).
+   */
+  private void writeSettings(String bucketName, long lastModified) throws IOException {
+    Files.write("{\"artifactBucket\": \"" + bucketName + "\", \"awsAccessKey\": \"key\", \"awsSecretKey\": \"secret\"}",
+                settingsFile, Charset.forName("UTF-8"));
+    assertTrue(settingsFile.setLastModified(lastModified * 1000));
+  }
+
+
+  /**
+   * S3 client of the buckets in "buckets", in "eu-west-1".
+   */
+  class StubS3 extends AmazonS3Client {
+
+    final String awsAccessKey;
+    final String awsSecretKey;
+    int          existenceChecks;
+    boolean      shutdown;
+
+    StubS3(String awsAccessKey, String awsSecretKey) {
+      super(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+      this.awsAccessKey = awsAccessKey;
+      this.awsSecretKey = awsSecretKey;
+    }
+
+    @Override
+    public boolean doesBucketExist(String bucketName) {
+      existenceChecks++;
+      return buckets.contains(bucketName);
+    }
+
+    @Override
+    public String getBucketLocation(String bucketName) {
+      return "eu-west-1";
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+      super.shutdown();
+    }
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+}
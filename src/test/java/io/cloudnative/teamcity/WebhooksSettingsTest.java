@@ -0,0 +1,119 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import com.google.common.io.Files;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+
+
+public class WebhooksSettingsTest {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  File dataDirectory;
+
+
+  @Before
+  public void start(){
+    dataDirectory = Files.createTempDir();
+  }
+
+
+  @After
+  public void stop(){
+    delete(dataDirectory);
+  }
+
+
+  @Test
+  public void readsProjectFileWhenFirstNeeded() throws IOException {
+    write("config/webhooks/First.json", "[\"http://first\", {\"url\": \"http://second\", \"batch\": true}]");
+    write("config/webhooks/Third.json.tmp", "[\"http://ignored\"]");
+
+    WebhooksSettings settings = settings();
+    write("config/webhooks/Second.json", "[\"http://third\"]");
+
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("http://first", "http://second")), settings.getUrls("First"));
+    assertEquals("file written after startup is read", Collections.singleton("http://third"), settings.getUrls("Second"));
+    assertTrue(settings.getUrls("Third").isEmpty());
+    assertTrue(settings.getUrls("Unknown").isEmpty());
+    assertTrue(settings.getUrls("../First").isEmpty());
+
+    write("config/webhooks/Second.json", "[\"http://changed\"]");
+    assertEquals("file is read once", Collections.singleton("http://third"), settings.getUrls("Second"));
+    settings.shutdown();
+  }
+
+
+  @Test
+  public void savesChangedProjectsOnShutdown(){
+    WebhooksSettings settings = settings();
+    settings.addUrl("First", "http://first");
+    settings.addUrl("Second", "http://second");
+    settings.removeUrl("Second", "http://second");
+    settings.shutdown();
+
+    assertTrue(file("config/webhooks/First.json").isFile());
+    assertFalse(file("config/webhooks/Second.json").exists());
+    assertEquals(Collections.singleton("http://first"), settings().getUrls("First"));
+  }
+
+
+  @Test
+  public void splitsLegacyFileIntoProjectFiles() throws IOException {
+    write("config/webhooks.json", "{\"First\": [\"http://first\"], \"Second\": [\"http://second\"]}");
+
+    WebhooksSettings settings = settings();
+
+    assertEquals(Collections.singleton("http://first"), settings.getUrls("First"));
+    assertEquals(Collections.singleton("http://second"), settings.getUrls("Second"));
+    assertFalse(file("config/webhooks.json").exists());
+    assertTrue(file("config/webhooks.json.migrated").isFile());
+    settings.shutdown();
+  }
+
+
+  @Test
+  public void keepsProjectFilesWrittenBeforeMigrationWasInterrupted() throws IOException {
+    write("config/webhooks.json", "{\"First\": [\"http://first\"], \"Second\": [\"http://second\"]}");
+    write("config/webhooks/First.json", "[\"http://first/changed\"]");
+
+    WebhooksSettings settings = settings();
+
+    assertEquals(Collections.singleton("http://first/changed"), settings.getUrls("First"));
+    assertEquals(Collections.singleton("http://second"), settings.getUrls("Second"));
+    settings.shutdown();
+  }
+
+
+  private WebhooksSettings settings(){
+    return new WebhooksSettings(new ServerPaths(dataDirectory.getAbsolutePath()));
+  }
+
+
+  private File file(String path){
+    return new File(dataDirectory, path);
+  }
+
+
+  private void write(String path, String content) throws IOException {
+    File file = file(path);
+    Files.createParentDirs(file);
+    Files.write(content, file, UTF8);
+  }
+
+
+  private static void delete(File file){
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children){ delete(child); }
+    }
+    file.delete();
+  }
+}